@@ -0,0 +1,113 @@
+package il.ac.idc.cs.sinkhole.benchmarks;
+
+import il.ac.idc.cs.sinkhole.BlockListCompiler;
+import il.ac.idc.cs.sinkhole.BlockListEnforcer;
+import il.ac.idc.cs.sinkhole.CompiledBlockList;
+import il.ac.idc.cs.sinkhole.DNSMessageView;
+import il.ac.idc.cs.sinkhole.DNSPacketHandler;
+import il.ac.idc.cs.sinkhole.DomainMatcher;
+import il.ac.idc.cs.sinkhole.DomainTrie;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * BlockListEnforcer.isAllowed for blocked (hit) and allowed (miss) names, by name string and straight from a
+ * received packet, with the list held in a DomainTrie or a memory-mapped CompiledBlockList.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class BlockListEnforcerBenchmark {
+
+    private static final int SAMPLE_SIZE = 4096;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int listSize;
+
+    @Param({"trie", "compiled"})
+    public String listKind;
+
+    private BlockListEnforcer blockListEnforcer;
+    private Path compiledFile;
+    private final String[] blockedNames = new String[SAMPLE_SIZE];
+    private final String[] allowedNames = new String[SAMPLE_SIZE];
+    private final DNSMessageView[] blockedQueries = new DNSMessageView[SAMPLE_SIZE];
+    private final DNSMessageView[] allowedQueries = new DNSMessageView[SAMPLE_SIZE];
+    private int next;
+
+    static String listedName(int i) {
+        return "ads" + i + ".tracker" + (i & 4095) + ".com";
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        DomainMatcher blockList;
+        if (listKind.equals("trie")) {
+            DomainTrie trie = new DomainTrie();
+            for (int i = 0; i < listSize; i++) {
+                trie.add(listedName(i));
+            }
+            blockList = trie;
+        } else {
+            BlockListCompiler compiler = new BlockListCompiler();
+            for (int i = 0; i < listSize; i++) {
+                compiler.add(listedName(i));
+            }
+            compiledFile = Files.createTempFile("blocklist", ".bin");
+            compiler.write(compiledFile);
+            blockList = CompiledBlockList.open(compiledFile);
+        }
+        blockListEnforcer = new BlockListEnforcer(blockList);
+        int stride = Math.max(1, listSize / SAMPLE_SIZE);
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            blockedNames[i] = listedName((i * stride) % listSize);
+            // Same parent zones as listed names, so misses walk as deep as hits.
+            allowedNames[i] = "www" + i + ".tracker" + (i & 4095) + ".com";
+            blockedQueries[i] = queryView(blockedNames[i]);
+            allowedQueries[i] = queryView(allowedNames[i]);
+        }
+    }
+
+    private static DNSMessageView queryView(String name) {
+        DatagramPacket query = DNSPacketHandler.buildQuery(name, 1);
+        return new DNSMessageView().wrap(ByteBuffer.wrap(query.getData(), 0, query.getLength()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (compiledFile != null) Files.deleteIfExists(compiledFile);
+    }
+
+    private int nextIndex() {
+        return next = (next + 1) & (SAMPLE_SIZE - 1);
+    }
+
+    @Benchmark
+    public boolean hitByName() {
+        return blockListEnforcer.isAllowed(blockedNames[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean missByName() {
+        return blockListEnforcer.isAllowed(allowedNames[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean hitFromPacket() {
+        return blockListEnforcer.isAllowed(blockedQueries[nextIndex()], DNSMessageView.LENGTH_OF_HEADER);
+    }
+
+    @Benchmark
+    public boolean missFromPacket() {
+        return blockListEnforcer.isAllowed(allowedQueries[nextIndex()], DNSMessageView.LENGTH_OF_HEADER);
+    }
+}
@@ -0,0 +1,67 @@
+package il.ac.idc.cs.sinkhole.benchmarks;
+
+import il.ac.idc.cs.sinkhole.BlockListCompiler;
+import il.ac.idc.cs.sinkhole.BlockListForDNS;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Startup cost of a blocklist: BlockListForDNS.Load into a HashSet, parsing text into a trie, and mapping a
+ * precompiled list.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class BlockListLoadBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int listSize;
+
+    private final BlockListForDNS blockListLoader = new BlockListForDNS();
+    private Path textFile;
+    private Path compiledFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        textFile = Files.createTempFile("blocklist", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(textFile)) {
+            for (int i = 0; i < listSize; i++) {
+                writer.write(BlockListEnforcerBenchmark.listedName(i));
+                writer.newLine();
+            }
+        }
+        compiledFile = Files.createTempFile("blocklist", ".bin");
+        BlockListCompiler compiler = new BlockListCompiler();
+        compiler.addFile(textFile);
+        compiler.write(compiledFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(textFile);
+        Files.deleteIfExists(compiledFile);
+    }
+
+    @Benchmark
+    public Object loadHashSet() {
+        return blockListLoader.Load(textFile.toString());
+    }
+
+    @Benchmark
+    public Object loadTrie() {
+        return blockListLoader.LoadMatcher(textFile.toString());
+    }
+
+    @Benchmark
+    public Object mapCompiled() {
+        return blockListLoader.LoadMatcher(compiledFile.toString());
+    }
+}
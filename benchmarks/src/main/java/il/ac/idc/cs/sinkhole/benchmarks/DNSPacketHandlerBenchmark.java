@@ -0,0 +1,83 @@
+package il.ac.idc.cs.sinkhole.benchmarks;
+
+import il.ac.idc.cs.sinkhole.DNSMessageView;
+import il.ac.idc.cs.sinkhole.DNSPacketHandler;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Parsing the three kinds of messages the server handles: client queries, referrals and final answers (the last
+ * two with compressed names), through the DNSPacketHandler and through the allocation-free DNSMessageView.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DNSPacketHandlerBenchmark {
+
+    private DatagramPacket queryPacket;
+    private DatagramPacket referralPacket;
+    private DatagramPacket answerPacket;
+    private ByteBuffer queryBuffer;
+    private ByteBuffer answerBuffer;
+    private final DNSMessageView view = new DNSMessageView();
+
+    @Setup
+    public void setUp() {
+        byte[] query = DnsMessages.query();
+        byte[] referral = DnsMessages.referral();
+        byte[] answer = DnsMessages.answer();
+        queryPacket = new DatagramPacket(query, query.length);
+        referralPacket = new DatagramPacket(referral, referral.length);
+        answerPacket = new DatagramPacket(answer, answer.length);
+        queryBuffer = ByteBuffer.wrap(query);
+        answerBuffer = ByteBuffer.wrap(answer);
+    }
+
+    @Benchmark
+    public void parseQuery(Blackhole blackhole) {
+        DNSPacketHandler query = new DNSPacketHandler(queryPacket);
+        blackhole.consume(query.getQDomainName());
+        blackhole.consume(query.getQType());
+    }
+
+    @Benchmark
+    public void parseReferral(Blackhole blackhole) {
+        DNSPacketHandler referral = new DNSPacketHandler(referralPacket);
+        blackhole.consume(referral.isFinalAnswer());
+        blackhole.consume(referral.getReferralZone());
+        blackhole.consume(referral.getAuthorityNames());
+        blackhole.consume(referral.getGlueAddresses());
+    }
+
+    @Benchmark
+    public void parseAnswer(Blackhole blackhole) {
+        DNSPacketHandler answer = new DNSPacketHandler(answerPacket);
+        blackhole.consume(answer.isFinalAnswer());
+        blackhole.consume(answer.getAnswerAddresses());
+        blackhole.consume(answer.getMinAnswerTtl());
+    }
+
+    @Benchmark
+    public boolean viewQuery() {
+        view.wrap(queryBuffer, 0, queryBuffer.capacity());
+        return view.nameEquals(DNSMessageView.LENGTH_OF_HEADER, "www.example.com") && view.questionEnd() > 0;
+    }
+
+    @Benchmark
+    public long viewAnswer() {
+        view.wrap(answerBuffer, 0, answerBuffer.capacity());
+        DNSMessageView.RecordCursor answers = view.records(DNSMessageView.SECTION_ANSWER);
+        long minTtl = Long.MAX_VALUE;
+        while (answers.next()) {
+            minTtl = Math.min(minTtl, answers.ttl());
+        }
+        return minTtl;
+    }
+}
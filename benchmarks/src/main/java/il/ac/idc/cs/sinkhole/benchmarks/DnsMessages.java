@@ -0,0 +1,121 @@
+package il.ac.idc.cs.sinkhole.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/***
+ * Builds the wire-format messages the benchmarks parse: a query, a referral and an answer, with names compressed
+ * the way real servers send them.
+ */
+final class DnsMessages {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    private static final int CLASS_IN = 1;
+
+    private final byte[] out = new byte[512];
+    private int size;
+    private final Map<String, Integer> nameOffsets = new HashMap<>();
+
+    private DnsMessages(int transactionId, int flags, int questions, int answers, int authorities, int additionals) {
+        writeShort(transactionId);
+        writeShort(flags);
+        writeShort(questions);
+        writeShort(answers);
+        writeShort(authorities);
+        writeShort(additionals);
+    }
+
+    /*** A recursion-desired query for www.example.com A. */
+    static byte[] query() {
+        DnsMessages message = new DnsMessages(0x1234, 0x0100, 1, 0, 0, 0);
+        message.question("www.example.com");
+        return message.toByteArray();
+    }
+
+    /*** What a .com server answers for www.example.com: two NS records and their glue. */
+    static byte[] referral() {
+        DnsMessages message = new DnsMessages(0x1234, 0x8000, 1, 0, 2, 2);
+        message.question("www.example.com");
+        message.nameRecord("example.com", TYPE_NS, 172800, "ns1.example.com");
+        message.nameRecord("example.com", TYPE_NS, 172800, "ns2.example.com");
+        message.record("ns1.example.com", TYPE_A, 172800, new byte[]{(byte) 192, 0, 2, 1});
+        message.record("ns2.example.com", TYPE_A, 172800, new byte[]{(byte) 192, 0, 2, 2});
+        return message.toByteArray();
+    }
+
+    /*** An authoritative answer for www.example.com: a CNAME to a CDN name with three addresses. */
+    static byte[] answer() {
+        DnsMessages message = new DnsMessages(0x1234, 0x8400, 1, 4, 0, 0);
+        message.question("www.example.com");
+        message.nameRecord("www.example.com", TYPE_CNAME, 300, "edge.cdn.example.com");
+        message.record("edge.cdn.example.com", TYPE_A, 60, new byte[]{(byte) 198, 51, 100, 1});
+        message.record("edge.cdn.example.com", TYPE_A, 60, new byte[]{(byte) 198, 51, 100, 2});
+        message.record("edge.cdn.example.com", TYPE_A, 60, new byte[]{(byte) 198, 51, 100, 3});
+        return message.toByteArray();
+    }
+
+    private void question(String name) {
+        writeName(name);
+        writeShort(TYPE_A);
+        writeShort(CLASS_IN);
+    }
+
+    private void record(String name, int type, int ttl, byte[] data) {
+        writeRecordHeader(name, type, ttl);
+        writeShort(data.length);
+        System.arraycopy(data, 0, out, size, data.length);
+        size += data.length;
+    }
+
+    /*** A record whose RDATA is a name, compressed against the names written so far. */
+    private void nameRecord(String name, int type, int ttl, String target) {
+        writeRecordHeader(name, type, ttl);
+        int lengthOffset = size;
+        writeShort(0);
+        writeName(target);
+        int length = size - lengthOffset - 2;
+        out[lengthOffset] = (byte) (length >>> 8);
+        out[lengthOffset + 1] = (byte) length;
+    }
+
+    private void writeRecordHeader(String name, int type, int ttl) {
+        writeName(name);
+        writeShort(type);
+        writeShort(CLASS_IN);
+        writeShort(ttl >>> 16);
+        writeShort(ttl);
+    }
+
+    private void writeName(String name) {
+        String remaining = name;
+        while (!remaining.isEmpty()) {
+            Integer pointer = nameOffsets.get(remaining);
+            if (pointer != null) {
+                writeShort(0xc000 | pointer);
+                return;
+            }
+            nameOffsets.put(remaining, size);
+            int dot = remaining.indexOf('.');
+            String label = (dot < 0) ? remaining : remaining.substring(0, dot);
+            out[size++] = (byte) label.length();
+            byte[] labelBytes = label.getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(labelBytes, 0, out, size, labelBytes.length);
+            size += labelBytes.length;
+            remaining = (dot < 0) ? "" : remaining.substring(dot + 1);
+        }
+        out[size++] = 0;
+    }
+
+    private void writeShort(int value) {
+        out[size++] = (byte) (value >>> 8);
+        out[size++] = (byte) value;
+    }
+
+    private byte[] toByteArray() {
+        return Arrays.copyOf(out, size);
+    }
+}
@@ -0,0 +1,65 @@
+package il.ac.idc.cs.sinkhole.benchmarks;
+
+import il.ac.idc.cs.sinkhole.DNSMessageView;
+import il.ac.idc.cs.sinkhole.DNSPacketHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Turning a query into the NXDOMAIN the sinkhole answers blocked names with: through a DNSPacketHandler (parse,
+ * then setRCodeToNXDomain and friends), and in place through a DNSMessageView, which is what the server does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseRewriteBenchmark {
+
+    private DatagramPacket queryPacket;
+    private DNSPacketHandler parsedQuery;
+    private ByteBuffer queryBuffer;
+    private final DNSMessageView view = new DNSMessageView();
+
+    @Setup
+    public void setUp() {
+        byte[] query = DnsMessages.query();
+        queryPacket = new DatagramPacket(query, query.length);
+        parsedQuery = new DNSPacketHandler(queryPacket);
+        queryBuffer = ByteBuffer.wrap(query.clone());
+    }
+
+    @Benchmark
+    public byte[] rewriteParsed() {
+        parsedQuery.setRCodeToNXDomain();
+        parsedQuery.setResponseBit(true);
+        parsedQuery.setRecursionBit(true);
+        return parsedQuery.getData();
+    }
+
+    @Benchmark
+    public byte[] parseAndRewrite() {
+        DNSPacketHandler query = new DNSPacketHandler(queryPacket);
+        query.setRCodeToNXDomain();
+        query.setResponseBit(true);
+        query.setRecursionBit(true);
+        return query.getData();
+    }
+
+    @Benchmark
+    public int rewriteInPlace() {
+        view.wrap(queryBuffer, 0, queryBuffer.capacity());
+        int questionEnd = view.questionEnd();
+        view.setResponseCode(DNSMessageView.RCODE_NAME_ERROR);
+        view.setResponseBit(true);
+        view.setRecursionAvailableBit(true);
+        view.setSectionCount(DNSMessageView.SECTION_ANSWER, 0);
+        view.setSectionCount(DNSMessageView.SECTION_AUTHORITY, 0);
+        view.setSectionCount(DNSMessageView.SECTION_ADDITIONAL, 0);
+        return questionEnd;
+    }
+}
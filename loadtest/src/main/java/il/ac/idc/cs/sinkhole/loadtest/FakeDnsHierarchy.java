@@ -0,0 +1,566 @@
+package il.ac.idc.cs.sinkhole.loadtest;
+
+import il.ac.idc.cs.sinkhole.DNSMessageView;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * A whole DNS hierarchy in-process, on loopback: one root server, a few TLD servers and a few authoritative
+ * servers, each on its own 127.53.x.y address and all on the same port.
+ * Every name resolves the way it would on the Internet, only synthetically:
+ * 1.   The root refers a name's last label (its TLD) to ns1.nic.[tld], with glue.
+ * 2.   A TLD server refers the last two labels (the zone) to ns1.[zone] and ns2.[zone], with glue. The two are
+ *      on authoritative servers half the ring apart, so a zone can still be answered when one of them is slow.
+ * 3.   An authoritative server answers A questions with an address derived from the name, and other types with
+ *      NODATA. Names whose first label starts with "nx" do not exist, so they get NXDOMAIN, with the zone's SOA.
+ * Zones are spread over the servers by hash. Each server can be made slow and lossy while running, to see how
+ * the resolver copes, and the first few authoritative servers can be made slower than the rest. Every server also answers over TCP, and the authoritative ones can be made to truncate
+ * every UDP answer, as if it were too large, so the resolver has to ask again over TCP. Binding 127.53.x.y works out of the box on Linux; other systems need loopback aliases.
+ */
+public final class FakeDnsHierarchy implements Closeable {
+
+    public static final int DEFAULT_PORT = 10053;
+    public static final int DEFAULT_TLD_SERVER_COUNT = 4;
+    public static final int DEFAULT_AUTH_SERVER_COUNT = 16;
+    public static final int DEFAULT_ANSWER_TTL = 300;
+    public static final String NONEXISTENT_LABEL_PREFIX = "nx";
+    private static final String ROOT_SERVER_NAME = "a.root-servers.net";
+    private static final int REFERRAL_TTL = 172800;
+    private static final int MAX_MESSAGE_SIZE = 512;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_SOA = 6;
+    private static final int CLASS_IN = 1;
+    private static final int ROLE_ROOT = 0;
+    private static final int ROLE_TLD = 1;
+    private static final int ROLE_AUTH = 2;
+
+    private final int port;
+    private final InetAddress rootServerAddress;
+    private final InetAddress[] tldServerAddresses;
+    private final InetAddress[] authServerAddresses;
+    private final Selector selector;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<ServerSocket> tcpServerSockets = new ArrayList<>();
+    private final ExecutorService tcpConnections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-dns-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService delayedReplies;
+    private final LongAdder receivedQueries = new LongAdder();
+    private final LongAdder droppedQueries = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private volatile long latencyMicros;
+    private volatile long jitterMicros;
+    private volatile double lossRate;
+    private volatile int answerTtl = DEFAULT_ANSWER_TTL;
+    private volatile boolean isTruncatingOverUdp;
+    private volatile int slowServerCount;
+    private volatile long slowServerLatencyMicros;
+
+    public FakeDnsHierarchy() throws IOException {
+        this(DEFAULT_PORT, DEFAULT_TLD_SERVER_COUNT, DEFAULT_AUTH_SERVER_COUNT);
+    }
+
+    /***
+     * Binds every server and starts answering.
+     * @param port - The port all the servers listen on; the resolver must send upstream queries to it.
+     * @param tldServerCount - How many TLD servers the TLDs are spread over (at most 254).
+     * @param authServerCount - How many authoritative servers the zones are spread over (at most 254).
+     */
+    public FakeDnsHierarchy(int port, int tldServerCount, int authServerCount) throws IOException {
+        if (tldServerCount < 1 || tldServerCount > 254 || authServerCount < 1 || authServerCount > 254) {
+            throw new IllegalArgumentException("Server counts must be between 1 and 254");
+        }
+        this.port = port;
+        rootServerAddress = loopbackAddress(0, 1);
+        tldServerAddresses = new InetAddress[tldServerCount];
+        for (int i = 0; i < tldServerCount; i++) tldServerAddresses[i] = loopbackAddress(1, i + 1);
+        authServerAddresses = new InetAddress[authServerCount];
+        for (int i = 0; i < authServerCount; i++) authServerAddresses[i] = loopbackAddress(2, i + 1);
+        selector = Selector.open();
+        try {
+            bind(rootServerAddress, ROLE_ROOT, 0);
+            for (int i = 0; i < tldServerCount; i++) bind(tldServerAddresses[i], ROLE_TLD, i);
+            for (int i = 0; i < authServerCount; i++) bind(authServerAddresses[i], ROLE_AUTH, i);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-dns-delayed-replies");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread serverThread = new Thread(this::serve, "fake-dns-hierarchy");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        System.out.printf("Fake DNS hierarchy is serving %d servers on port %d.\r\n", channels.size(), port);
+    }
+
+    private static InetAddress loopbackAddress(int group, int host) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{127, 53, (byte) group, (byte) host});
+    }
+
+    private void bind(InetAddress address, int role, int index) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channels.add(channel);
+        channel.bind(new InetSocketAddress(address, port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Endpoint(role, index));
+        ServerSocket tcpServerSocket = new ServerSocket();
+        tcpServerSockets.add(tcpServerSocket);
+        tcpServerSocket.bind(new InetSocketAddress(address, port));
+        tcpConnections.execute(() -> acceptTcpConnections(tcpServerSocket, role));
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public List<InetAddress> getRootServerAddresses() {
+        return List.of(rootServerAddress);
+    }
+
+    /***
+     * Writes the root's address as a named.root file, so a separately started server can be pointed at it.
+     */
+    public void writeRootHints(Path path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.US_ASCII))) {
+            writer.println("; root hints of a fake DNS hierarchy on loopback, port " + port);
+            writer.printf(".                        3600000      NS    %s.%n", ROOT_SERVER_NAME.toUpperCase(Locale.ROOT));
+            writer.printf("%-24s 3600000      A     %s%n", ROOT_SERVER_NAME.toUpperCase(Locale.ROOT) + ".",
+                    rootServerAddress.getHostAddress());
+        }
+    }
+
+    /***
+     * Every reply is held back for the latency, plus a uniformly random part of the jitter.
+     */
+    public void setLatency(long latency, long jitter, TimeUnit unit) {
+        latencyMicros = unit.toMicros(latency);
+        jitterMicros = unit.toMicros(jitter);
+    }
+
+    /***
+     * @param lossRate - The fraction of queries that are silently dropped, between 0 and 1.
+     */
+    public void setLossRate(double lossRate) {
+        if (lossRate < 0 || lossRate > 1) throw new IllegalArgumentException("Loss rate must be between 0 and 1");
+        this.lossRate = lossRate;
+    }
+
+    /***
+     * Holds back the UDP replies of the first few authoritative servers for longer, on top of the latency set
+     * for all. As long as they are at most half of them, every zone keeps one fast server.
+     */
+    public void setSlowServers(int slowServerCount, long extraLatency, TimeUnit unit) {
+        this.slowServerCount = slowServerCount;
+        slowServerLatencyMicros = unit.toMicros(extraLatency);
+    }
+
+    public void setAnswerTtl(int answerTtl) {
+        this.answerTtl = answerTtl;
+    }
+
+    /***
+     * @param isTruncatingOverUdp - Whether the authoritative servers answer UDP queries with TC set and no records.
+     */
+    public void setTruncatingOverUdp(boolean isTruncatingOverUdp) {
+        this.isTruncatingOverUdp = isTruncatingOverUdp;
+    }
+
+    public long getTcpQueryCount() {
+        return tcpQueries.sum();
+    }
+
+    public long getReceivedQueryCount() {
+        return receivedQueries.sum();
+    }
+
+    public long getDroppedQueryCount() {
+        return droppedQueries.sum();
+    }
+
+    private void serve() {
+        ByteBuffer request = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        DNSMessageView requestView = new DNSMessageView();
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    Endpoint endpoint = (Endpoint) key.attachment();
+                    SocketAddress client;
+                    while ((client = receive(channel, request)) != null) {
+                        receivedQueries.increment();
+                        ByteBuffer response = respond(requestView.wrap(request), endpoint.role, true);
+                        if (response != null) send(channel, response, client, endpoint);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (ClosedSelectorException e) {
+            // closed while waiting
+        } catch (IOException e) {
+            if (selector.isOpen()) {
+                System.err.printf("Exception occurred in Fake DNS Hierarchy, while serving queries. " +
+                        "exception = %s\r\n", e);
+            }
+        }
+    }
+
+    private static SocketAddress receive(DatagramChannel channel, ByteBuffer request) throws IOException {
+        request.clear();
+        SocketAddress client = channel.receive(request);
+        request.flip();
+        return client;
+    }
+
+    private void send(DatagramChannel channel, ByteBuffer response, SocketAddress client, Endpoint endpoint) {
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            droppedQueries.increment();
+            return;
+        }
+        long delayMicros = latencyMicros;
+        if (endpoint.role == ROLE_AUTH && endpoint.index < slowServerCount) delayMicros += slowServerLatencyMicros;
+        if (jitterMicros > 0) delayMicros += ThreadLocalRandom.current().nextLong(jitterMicros + 1);
+        if (delayMicros <= 0) {
+            sendNow(channel, response, client);
+        } else {
+            delayedReplies.schedule(() -> sendNow(channel, response, client), delayMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static void sendNow(DatagramChannel channel, ByteBuffer response, SocketAddress client) {
+        try {
+            channel.send(response, client);
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Fake DNS Hierarchy, while sending a response to %s. " +
+                    "exception = %s\r\n", client, e);
+        }
+    }
+
+    private void acceptTcpConnections(ServerSocket tcpServerSocket, int role) {
+        while (!tcpServerSocket.isClosed()) {
+            try {
+                Socket connection = tcpServerSocket.accept();
+                tcpConnections.execute(() -> serveTcpConnection(connection, role));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /***
+     * Answers length-prefixed queries on the connection, one after the other, until the client closes it.
+     * TCP answers are neither delayed nor lost.
+     */
+    private void serveTcpConnection(Socket connection, int role) {
+        DNSMessageView requestView = new DNSMessageView();
+        try (connection) {
+            DataInputStream input = new DataInputStream(connection.getInputStream());
+            OutputStream output = connection.getOutputStream();
+            while (true) {
+                byte[] request = new byte[input.readUnsignedShort()];
+                input.readFully(request);
+                tcpQueries.increment();
+                ByteBuffer response = respond(requestView.wrap(ByteBuffer.wrap(request)), role, false);
+                if (response == null) return;
+                byte[] framedResponse = new byte[2 + response.remaining()];
+                framedResponse[0] = (byte) (response.remaining() >>> 8);
+                framedResponse[1] = (byte) response.remaining();
+                response.get(framedResponse, 2, response.remaining());
+                output.write(framedResponse);
+            }
+        } catch (IOException e) {
+            // the client is done with the connection
+        }
+    }
+
+    /***
+     * @return The response to the query, or null if it is not a query we can read.
+     */
+    private ByteBuffer respond(DNSMessageView query, int role, boolean isOverUdp) {
+        if (!query.hasHeader() || query.isResponse() || query.getSectionCount(DNSMessageView.SECTION_QUESTION) != 1) {
+            return null;
+        }
+        int questionEnd = query.questionEnd();
+        if (questionEnd < 0) return null;
+        String questionName = query.readName(DNSMessageView.LENGTH_OF_HEADER);
+        if (questionName == null) return null;
+        String name = questionName.toLowerCase(Locale.ROOT);
+        int type = query.readUnsignedShort(questionEnd - 4);
+        Message response = new Message(query, questionEnd, questionName);
+        if (role == ROLE_AUTH && isOverUdp && isTruncatingOverUdp) {
+            response.truncated();
+        } else if (role == ROLE_ROOT) {
+            answerAsRoot(response, name);
+        } else if (role == ROLE_TLD) {
+            answerAsTld(response, name);
+        } else {
+            answerAsAuthority(response, name, type);
+        }
+        return response.toByteBuffer();
+    }
+
+    private void answerAsRoot(Message response, String name) {
+        if (name.isEmpty()) {
+            response.noData("", ROOT_SERVER_NAME, answerTtl);
+            return;
+        }
+        String tld = zoneOf(name, 1);
+        String nameServer = "ns1.nic." + tld;
+        response.referral(tld, nameServer, tldServerAddresses[serverIndex(tld, tldServerAddresses.length)], null, null);
+    }
+
+    private void answerAsTld(Message response, String name) {
+        String zone = zoneOf(name, 2);
+        if (zone.indexOf('.') < 0) {
+            response.noData(zone, "ns1.nic." + zone, answerTtl);
+            return;
+        }
+        int serverIndex = serverIndex(zone, authServerAddresses.length);
+        response.referral(zone, "ns1." + zone, authServerAddresses[serverIndex],
+                "ns2." + zone, authServerAddresses[secondServerIndex(serverIndex)]);
+    }
+
+    private void answerAsAuthority(Message response, String name, int type) {
+        String zone = zoneOf(name, 2);
+        String nameServer = "ns1." + zone;
+        if (name.startsWith(NONEXISTENT_LABEL_PREFIX)) {
+            response.nameError(zone, nameServer, answerTtl);
+        } else if (type != TYPE_A) {
+            response.noData(zone, nameServer, answerTtl);
+        } else if (name.equals(nameServer)) {
+            response.answer(authServerAddresses[serverIndex(zone, authServerAddresses.length)], answerTtl);
+        } else if (name.equals("ns2." + zone)) {
+            response.answer(authServerAddresses[secondServerIndex(serverIndex(zone, authServerAddresses.length))],
+                    answerTtl);
+        } else {
+            int hash = name.hashCode();
+            response.answer(new byte[]{10, (byte) (hash >>> 16), (byte) (hash >>> 8), (byte) hash}, answerTtl);
+        }
+    }
+
+    /***
+     * @return The name's last labels, as many as asked for (or all of them).
+     */
+    private static String zoneOf(String name, int labels) {
+        int start = name.length();
+        for (int i = 0; i < labels; i++) {
+            int dot = name.lastIndexOf('.', start - 1);
+            if (dot < 0) return name;
+            start = dot;
+        }
+        return name.substring(start + 1);
+    }
+
+    private static int serverIndex(String zone, int serverCount) {
+        return Math.floorMod(zone.hashCode(), serverCount);
+    }
+
+    private int secondServerIndex(int serverIndex) {
+        return (serverIndex + authServerAddresses.length / 2) % authServerAddresses.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        for (DatagramChannel channel : channels) channel.close();
+        for (ServerSocket tcpServerSocket : tcpServerSockets) tcpServerSocket.close();
+        tcpConnections.shutdownNow();
+        if (delayedReplies != null) delayedReplies.shutdownNow();
+    }
+
+    /***
+     * A response under construction. Names are written whole, without compression, which every reader accepts.
+     */
+    private static final class Message {
+        private static final int FLAG_RESPONSE = 0x8000;
+        private static final int FLAG_AUTH_ANSWER = 0x0400;
+        private static final int FLAG_TRUNCATED = 0x0200;
+        private static final int QUESTION_FLAGS_MASK = 0x7900; // opcode and RD are copied
+
+        private final byte[] out = new byte[MAX_MESSAGE_SIZE];
+        private final String questionName;
+        private int size;
+
+        private Message(DNSMessageView query, int questionEnd, String questionName) {
+            this.questionName = questionName;
+            query.buffer().get(0, out, 0, questionEnd);
+            size = questionEnd;
+            int flags = query.readUnsignedShort(2) & QUESTION_FLAGS_MASK;
+            writeShort(2, flags | FLAG_RESPONSE);
+        }
+
+        /***
+         * @param secondNameServer - Another name server for the zone, with its glue, or null if it has one only.
+         */
+        private void referral(String zone, String nameServer, InetAddress glue,
+                              String secondNameServer, InetAddress secondGlue) {
+            int nameServerCount = (secondNameServer == null) ? 1 : 2;
+            setCounts(0, nameServerCount, nameServerCount);
+            writeNameServer(zone, nameServer);
+            if (secondNameServer != null) writeNameServer(zone, secondNameServer);
+            writeGlue(nameServer, glue);
+            if (secondNameServer != null) writeGlue(secondNameServer, secondGlue);
+        }
+
+        private void writeNameServer(String zone, String nameServer) {
+            writeRecord(zone, TYPE_NS, REFERRAL_TTL);
+            int rdataStart = startRdata();
+            writeName(nameServer);
+            endRdata(rdataStart);
+        }
+
+        private void writeGlue(String nameServer, InetAddress glue) {
+            writeRecord(nameServer, TYPE_A, REFERRAL_TTL);
+            int rdataStart = startRdata();
+            writeBytes(glue.getAddress());
+            endRdata(rdataStart);
+        }
+
+        private void answer(InetAddress address, int ttl) {
+            answer(address.getAddress(), ttl);
+        }
+
+        private void answer(byte[] address, int ttl) {
+            setAuthAnswer();
+            setCounts(1, 0, 0);
+            writeRecord(questionName, TYPE_A, ttl);
+            int rdataStart = startRdata();
+            writeBytes(address);
+            endRdata(rdataStart);
+        }
+
+        private void noData(String zone, String nameServer, int negativeTtl) {
+            setAuthAnswer();
+            setCounts(0, 1, 0);
+            writeSoa(zone, nameServer, negativeTtl);
+        }
+
+        private void truncated() {
+            setAuthAnswer();
+            setCounts(0, 0, 0);
+            out[2] |= (byte) (FLAG_TRUNCATED >>> 8);
+        }
+
+        private void nameError(String zone, String nameServer, int negativeTtl) {
+            noData(zone, nameServer, negativeTtl);
+            out[3] = (byte) ((out[3] & 0xF0) | DNSMessageView.RCODE_NAME_ERROR);
+        }
+
+        private void writeSoa(String zone, String nameServer, int negativeTtl) {
+            writeRecord(zone, TYPE_SOA, negativeTtl);
+            int rdataStart = startRdata();
+            writeName(nameServer);
+            writeName(zone.isEmpty() ? "hostmaster" : "hostmaster." + zone);
+            // serial, refresh, retry, expire, minimum
+            writeInt(1);
+            writeInt(3600);
+            writeInt(600);
+            writeInt(86400);
+            writeInt(negativeTtl);
+            endRdata(rdataStart);
+        }
+
+        private void setAuthAnswer() {
+            out[2] |= (byte) (FLAG_AUTH_ANSWER >>> 8);
+        }
+
+        private void setCounts(int answers, int authorities, int additionals) {
+            writeShort(6, answers);
+            writeShort(8, authorities);
+            writeShort(10, additionals);
+        }
+
+        private void writeRecord(String name, int type, int ttl) {
+            writeName(name);
+            writeShort(size, type);
+            writeShort(size + 2, CLASS_IN);
+            size += 4;
+            writeInt(ttl);
+        }
+
+        private int startRdata() {
+            size += 2;
+            return size;
+        }
+
+        private void endRdata(int rdataStart) {
+            writeShort(rdataStart - 2, size - rdataStart);
+        }
+
+        private void writeName(String name) {
+            if (!name.isEmpty()) {
+                for (String label : name.split("\\.")) {
+                    out[size++] = (byte) label.length();
+                    for (int i = 0; i < label.length(); i++) out[size++] = (byte) label.charAt(i);
+                }
+            }
+            out[size++] = 0;
+        }
+
+        private void writeBytes(byte[] bytes) {
+            System.arraycopy(bytes, 0, out, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeInt(int value) {
+            writeShort(size, value >>> 16);
+            writeShort(size + 2, value);
+            size += 4;
+        }
+
+        private void writeShort(int offset, int value) {
+            out[offset] = (byte) (value >>> 8);
+            out[offset + 1] = (byte) value;
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(out, 0, size);
+        }
+    }
+
+    /***
+     * What a UDP channel serves: its role, and its place among the servers of that role.
+     */
+    private static final class Endpoint {
+        private final int role;
+        private final int index;
+
+        private Endpoint(int role, int index) {
+            this.role = role;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package il.ac.idc.cs.sinkhole.loadtest;
+
+import il.ac.idc.cs.sinkhole.BlockListEnforcer;
+import il.ac.idc.cs.sinkhole.BlockListForDNS;
+import il.ac.idc.cs.sinkhole.CacheSnapshot;
+import il.ac.idc.cs.sinkhole.DomainMatcher;
+import il.ac.idc.cs.sinkhole.DomainTrie;
+import il.ac.idc.cs.sinkhole.IterativeDNSServer;
+import il.ac.idc.cs.sinkhole.Prefetcher;
+import il.ac.idc.cs.sinkhole.QueryLog;
+import il.ac.idc.cs.sinkhole.RecursiveDNSClient;
+import il.ac.idc.cs.sinkhole.SinkholeServer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * A capacity test that runs completely offline: it starts a fake DNS hierarchy on loopback, a sinkhole resolving
+ * through it, and a replay client hammering the sinkhole, all in this process, then reports what the client saw
+ * alongside the sinkhole's own counters (blocked queries, cache hits, coalesced resolutions).
+ * Without a query file it makes up a Zipf-distributed workload over a number of distinct names, a tenth of them
+ * blocked (under *.adtracker.net) and a tenth nonexistent. Usage:
+ *     java -jar loadtest/target/loadtest.jar [-d queries.txt] [-n distinct names] [-b blocklist]
+ *          [-Q qps] [-c outstanding] [-l seconds] [-t timeout seconds]
+ *          [-L upstream latency ms] [-J upstream jitter ms] [-D upstream loss rate] [-o query log]
+ *          [-T answer TTL seconds] [-P prefetch (true|false)] [-U truncate upstream UDP answers (true|false)]
+ *          [-S receive shards] [-k client sockets] [-H max hedges per resolution]
+ *          [-W slow authoritative servers] [-X their extra latency ms] [-C cache snapshot file]
+ *          [-F forwarders: resolve through this many sinkholes of their own, without blocklists, instead]
+ */
+public final class LoadTest {
+
+    public static final int DEFAULT_DISTINCT_NAMES = 10000;
+    public static final String GENERATED_BLOCK_RULE = "*.adtracker.net";
+    private static final int GENERATED_QUERIES_PER_NAME = 4;
+    private static final String[] GENERATED_TLDS = {"com", "net", "org", "io"};
+    private static final long SERVER_START_TIMEOUT_MILLIS = 5000;
+    private static final int READINESS_PROBE_TIMEOUT_MILLIS = 100;
+    private static final String READINESS_QUESTION = "ready.loadtest A";
+
+    private LoadTest() {
+    }
+
+    /***
+     * Makes up names to replay: the i-th name is blocked when i % 10 == 0, nonexistent when i % 10 == 1, and
+     * resolvable otherwise. Popularity falls off with the index (Zipf, s = 1), so the hot names get cache hits.
+     */
+    public static List<byte[]> generateQueries(int distinctNames, long seed) {
+        String[] names = new String[distinctNames];
+        double[] cumulativeWeights = new double[distinctNames];
+        double totalWeight = 0;
+        for (int i = 0; i < distinctNames; i++) {
+            names[i] = generatedName(i);
+            totalWeight += 1.0 / (i + 1);
+            cumulativeWeights[i] = totalWeight;
+        }
+        Random random = new Random(seed);
+        List<byte[]> queries = new ArrayList<>();
+        for (int i = 0; i < distinctNames * GENERATED_QUERIES_PER_NAME; i++) {
+            int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * totalWeight);
+            if (index < 0) index = Math.min(-index - 1, distinctNames - 1);
+            queries.add(QueryReplayClient.parseQueryLine(names[index] + " A"));
+        }
+        return queries;
+    }
+
+    private static String generatedName(int i) {
+        String site = "site" + (i % 1000) + "." + GENERATED_TLDS[(i / 1000) % GENERATED_TLDS.length];
+        switch (i % 10) {
+            case 0: return "ads" + i + ".adtracker.net";
+            case 1: return FakeDnsHierarchy.NONEXISTENT_LABEL_PREFIX + i + "." + site;
+            default: return "www" + i + "." + site;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String queryFile = null;
+        String blockListFile = null;
+        String queryLogFile = null;
+        String cacheSnapshotFile = null;
+        int distinctNames = DEFAULT_DISTINCT_NAMES;
+        int targetQps = 0;
+        int maxOutstanding = QueryReplayClient.DEFAULT_MAX_OUTSTANDING;
+        long seconds = 10;
+        double timeoutSeconds = QueryReplayClient.DEFAULT_TIMEOUT_MILLIS / 1e3;
+        long latencyMillis = 0;
+        long jitterMillis = 0;
+        double lossRate = 0;
+        int answerTtl = FakeDnsHierarchy.DEFAULT_ANSWER_TTL;
+        boolean isPrefetching = false;
+        boolean isTruncatingOverUdp = false;
+        int receiveShardCount = 1;
+        int socketCount = 1;
+        int maxHedges = RecursiveDNSClient.DEFAULT_MAX_HEDGES_PER_RESOLUTION;
+        int slowServerCount = 0;
+        long slowServerLatencyMillis = 100;
+        int forwarderCount = 0;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-d": queryFile = args[i + 1]; break;
+                case "-n": distinctNames = Integer.parseInt(args[i + 1]); break;
+                case "-b": blockListFile = args[i + 1]; break;
+                case "-Q": targetQps = Integer.parseInt(args[i + 1]); break;
+                case "-c": maxOutstanding = Integer.parseInt(args[i + 1]); break;
+                case "-l": seconds = Long.parseLong(args[i + 1]); break;
+                case "-t": timeoutSeconds = Double.parseDouble(args[i + 1]); break;
+                case "-L": latencyMillis = Long.parseLong(args[i + 1]); break;
+                case "-J": jitterMillis = Long.parseLong(args[i + 1]); break;
+                case "-D": lossRate = Double.parseDouble(args[i + 1]); break;
+                case "-o": queryLogFile = args[i + 1]; break;
+                case "-T": answerTtl = Integer.parseInt(args[i + 1]); break;
+                case "-P": isPrefetching = Boolean.parseBoolean(args[i + 1]); break;
+                case "-U": isTruncatingOverUdp = Boolean.parseBoolean(args[i + 1]); break;
+                case "-S": receiveShardCount = Integer.parseInt(args[i + 1]); break;
+                case "-k": socketCount = Integer.parseInt(args[i + 1]); break;
+                case "-H": maxHedges = Integer.parseInt(args[i + 1]); break;
+                case "-W": slowServerCount = Integer.parseInt(args[i + 1]); break;
+                case "-X": slowServerLatencyMillis = Long.parseLong(args[i + 1]); break;
+                case "-C": cacheSnapshotFile = args[i + 1]; break;
+                case "-F": forwarderCount = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        List<byte[]> queries = (queryFile != null)
+                ? QueryReplayClient.loadQueries(Paths.get(queryFile))
+                : generateQueries(distinctNames, 1);
+        DomainMatcher blockList;
+        if (blockListFile != null) {
+            blockList = new BlockListForDNS().LoadMatcher(blockListFile);
+        } else {
+            DomainTrie generatedBlockList = new DomainTrie();
+            generatedBlockList.add(GENERATED_BLOCK_RULE);
+            blockList = generatedBlockList;
+        }
+
+        try (FakeDnsHierarchy hierarchy = new FakeDnsHierarchy()) {
+            hierarchy.setLatency(latencyMillis, jitterMillis, TimeUnit.MILLISECONDS);
+            hierarchy.setLossRate(lossRate);
+            hierarchy.setAnswerTtl(answerTtl);
+            hierarchy.setTruncatingOverUdp(isTruncatingOverUdp);
+            hierarchy.setSlowServers(slowServerCount, slowServerLatencyMillis, TimeUnit.MILLISECONDS);
+            int serverPort = findFreePort();
+            IterativeDNSServer server = new IterativeDNSServer(serverPort, new BlockListEnforcer(blockList),
+                    SinkholeServer.MAX_IN_FLIGHT_QUERIES, hierarchy.getRootServerAddresses(), hierarchy.getPort());
+            if (queryLogFile != null) {
+                server.setQueryLog(new QueryLog(Paths.get(queryLogFile), QueryLog.LEVEL_ALL, 1,
+                        QueryLog.DEFAULT_CAPACITY));
+            }
+            if (isPrefetching) server.setPrefetcher(new Prefetcher());
+            server.setReceiveShardCount(receiveShardCount);
+            server.setMaxHedgesPerResolution(maxHedges);
+            if (cacheSnapshotFile != null) {
+                server.setCacheSnapshot(Paths.get(cacheSnapshotFile), CacheSnapshot.DEFAULT_INTERVAL_SECONDS);
+            }
+            if (forwarderCount > 0) server.setForwarders(startForwarders(forwarderCount, hierarchy));
+            Thread serverThread = new Thread(server::Start, "sinkhole-under-test");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            awaitAnswer(serverPort);
+
+            System.out.printf("Replaying %d queries against the sinkhole on port %d for %d s (%s).%n",
+                    queries.size(), serverPort, seconds,
+                    targetQps > 0 ? targetQps + " qps" : maxOutstanding + " outstanding");
+            QueryReplayClient client = new QueryReplayClient(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), serverPort), queries);
+            client.setTimeout((long) (timeoutSeconds * 1e3), TimeUnit.MILLISECONDS);
+            client.setSocketCount(socketCount);
+            ReplayReport report = client.run(seconds, TimeUnit.SECONDS, targetQps, maxOutstanding);
+            report.print(System.out);
+            printServerCounters(System.out, server, hierarchy);
+        }
+        // the sinkhole has no way to stop, and its query threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    /***
+     * Starts sinkholes with empty blocklists, resolving through the fake hierarchy, for the one under test to
+     * forward to.
+     */
+    private static List<InetSocketAddress> startForwarders(int forwarderCount, FakeDnsHierarchy hierarchy)
+            throws IOException {
+        List<InetSocketAddress> forwarders = new ArrayList<>();
+        for (int i = 0; i < forwarderCount; i++) {
+            int forwarderPort = findFreePort();
+            IterativeDNSServer forwarder = new IterativeDNSServer(forwarderPort,
+                    new BlockListEnforcer(new DomainTrie()), SinkholeServer.MAX_IN_FLIGHT_QUERIES,
+                    hierarchy.getRootServerAddresses(), hierarchy.getPort());
+            Thread forwarderThread = new Thread(forwarder::Start, "forwarder-" + i);
+            forwarderThread.setDaemon(true);
+            forwarderThread.start();
+            awaitAnswer(forwarderPort);
+            forwarders.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), forwarderPort));
+        }
+        return forwarders;
+    }
+
+    private static void printServerCounters(PrintStream out, IterativeDNSServer server, FakeDnsHierarchy hierarchy) {
+        long answerHits = server.getAnswerCache().getHitCount();
+        long answerMisses = server.getAnswerCache().getMissCount();
+        out.println("Sinkhole:");
+        out.printf("    %-24s %d%n", "blocked queries", server.getBlockedQueryCount());
+        out.printf("    %-24s %d of %d (%.2f%%)%n", "answer cache hits", answerHits, answerHits + answerMisses,
+                answerHits + answerMisses == 0 ? 0 : answerHits * 100.0 / (answerHits + answerMisses));
+        out.printf("    %-24s %d%n", "negative cache hits", server.getNegativeCache().getHitCount());
+        out.printf("    %-24s %d%n", "upstream resolutions", server.getUpstreamResolutions().getLeaderCount());
+        out.printf("    %-24s %d%n", "coalesced resolutions", server.getUpstreamResolutions().getCoalescedCount());
+        Map<String, Long> counters = server.getMetrics().getCounters();
+        Long prefetches = counters.get("prefetches_scheduled");
+        if (prefetches != null) out.printf("    %-24s %d%n", "prefetches", prefetches);
+        if (counters.containsKey("upstream_hedges_fired")) {
+            out.printf("    %-24s %d fired, %d won%n", "upstream hedges",
+                    counters.get("upstream_hedges_fired"), counters.get("upstream_hedges_won"));
+            out.printf("    %-24s %d%n", "upstream failovers", counters.get("upstream_failovers"));
+        }
+        Long restoredEntries = server.getMetrics().getGauges().get("cache_snapshot_loaded_entries");
+        if (restoredEntries != null) out.printf("    %-24s %d%n", "restored cache entries", restoredEntries);
+        for (int i = 0; counters.containsKey("forwarder_" + i + "_queries"); i++) {
+            out.printf("    %-24s %d queries, %d failures%n", "forwarder " + i,
+                    counters.get("forwarder_" + i + "_queries"), counters.get("forwarder_" + i + "_failures"));
+        }
+        Long failovers = counters.get("forwarder_failovers");
+        if (failovers != null) out.printf("    %-24s %d%n", "forwarder failovers", failovers);
+        for (int i = 0; counters.containsKey("receive_shard_" + i + "_queries"); i++) {
+            out.printf("    %-24s %d%n", "queries on shard " + i, counters.get("receive_shard_" + i + "_queries"));
+        }
+        server.getMetrics().getLatencyP99Micros().forEach((stage, micros) ->
+                out.printf("    %-24s %.1f us%n", "p99 " + stage, micros));
+        out.println("Fake hierarchy:");
+        out.printf("    %-24s %d%n", "queries received", hierarchy.getReceivedQueryCount());
+        out.printf("    %-24s %d%n", "queries dropped", hierarchy.getDroppedQueryCount());
+        out.printf("    %-24s %d%n", "queries over TCP", hierarchy.getTcpQueryCount());
+    }
+
+    private static int findFreePort() throws SocketException {
+        try (DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /***
+     * The server binds its socket on its own thread, so we ask it a question until it answers.
+     */
+    private static void awaitAnswer(int port) throws IOException {
+        byte[] query = QueryReplayClient.parseQueryLine(READINESS_QUESTION);
+        byte[] response = new byte[QueryReplayClient.MAX_MESSAGE_SIZE];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SERVER_START_TIMEOUT_MILLIS);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(READINESS_PROBE_TIMEOUT_MILLIS);
+            while (System.nanoTime() < deadline) {
+                socket.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), port));
+                try {
+                    socket.receive(new DatagramPacket(response, response.length));
+                    return;
+                } catch (SocketTimeoutException | PortUnreachableException e) {
+                    // not listening yet
+                }
+            }
+        }
+        throw new SocketException("The sinkhole did not answer on port " + port);
+    }
+}
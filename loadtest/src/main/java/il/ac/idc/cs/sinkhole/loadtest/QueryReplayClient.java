@@ -0,0 +1,338 @@
+package il.ac.idc.cs.sinkhole.loadtest;
+
+import il.ac.idc.cs.sinkhole.DNSMessageView;
+import il.ac.idc.cs.sinkhole.DNSPacketHandler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * A dnsperf-style load generator. It replays a query file against a DNS server over UDP, from one or more
+ * non-blocking sockets served by a single thread, looping over the file until the run time is up, in one of two
+ * modes:
+ * 1.   Paced (a target QPS): queries are sent on a fixed schedule whether or not answers keep up, so a slow server
+ *      shows up as latency and timeouts rather than as a lower send rate.
+ * 2.   Closed loop (no target): a fixed number of queries is kept outstanding, so it finds the server's peak rate.
+ * Either way, at most 65536 queries can be outstanding, one per transaction ID, over all the sockets. Several
+ * sockets look like several clients, which a server sharding its port with SO_REUSEPORT spreads over its shards.
+ * The query file has a question per line, as dnsperf's does: "www.example.com A". Lines starting with ';' or '#'
+ * are comments. Usage:
+ *     java il.ac.idc.cs.sinkhole.loadtest.QueryReplayClient -d queries.txt [-s 127.0.0.1] [-p 5300]
+ *          [-Q qps] [-c outstanding] [-l seconds] [-t timeout seconds] [-k sockets]
+ */
+public final class QueryReplayClient {
+
+    public static final int DEFAULT_MAX_OUTSTANDING = 100;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    private static final int TRANSACTION_IDS = 0x10000;
+    static final int MAX_MESSAGE_SIZE = 4096;
+    private static final int RECEIVE_BUFFER_SIZE = 4 << 20;
+    private static final long TIMEOUT_SCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final int FLAG_RECURSION_DESIRED = 0x01;
+    private static final Map<String, Integer> RECORD_TYPES = Map.of(
+            "A", 1, "NS", 2, "CNAME", 5, "SOA", 6, "PTR", 12,
+            "MX", 15, "TXT", 16, "AAAA", 28, "SRV", 33, "ANY", 255);
+
+    private final InetSocketAddress server;
+    private final List<byte[]> queries;
+    private long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIMEOUT_MILLIS);
+    private int socketCount = 1;
+
+    public QueryReplayClient(InetSocketAddress server, List<byte[]> queries) {
+        if (queries.isEmpty()) throw new IllegalArgumentException("There are no queries to replay");
+        this.server = server;
+        this.queries = List.copyOf(queries);
+    }
+
+    public void setTimeout(long timeout, TimeUnit unit) {
+        timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /***
+     * @param socketCount - How many sockets (source ports) the queries are spread over, round robin.
+     */
+    public void setSocketCount(int socketCount) {
+        if (socketCount < 1) throw new IllegalArgumentException("There must be at least one socket");
+        this.socketCount = socketCount;
+    }
+
+    /***
+     * Reads a query file into wire-format queries, with recursion desired.
+     */
+    public static List<byte[]> loadQueries(Path path) throws IOException {
+        List<byte[]> queries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                byte[] query = parseQueryLine(line);
+                if (query != null) queries.add(query);
+            }
+        }
+        System.out.printf("Loaded %d queries from %s.\r\n", queries.size(), path);
+        return queries;
+    }
+
+    /***
+     * @return The query the line asks, or null for a blank or comment line.
+     */
+    public static byte[] parseQueryLine(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith(";") || line.startsWith("#")) return null;
+        String[] fields = line.split("\\s+");
+        String name = fields[0].endsWith(".") ? fields[0].substring(0, fields[0].length() - 1) : fields[0];
+        int type = fields.length > 1 ? parseType(fields[1]) : RECORD_TYPES.get("A");
+        DatagramPacket queryPacket = DNSPacketHandler.buildQuery(name, type);
+        byte[] query = Arrays.copyOf(queryPacket.getData(), queryPacket.getLength());
+        query[2] |= FLAG_RECURSION_DESIRED;
+        return query;
+    }
+
+    private static int parseType(String field) {
+        String type = field.toUpperCase(Locale.ROOT);
+        Integer known = RECORD_TYPES.get(type);
+        if (known != null) return known;
+        if (type.startsWith("TYPE")) return Integer.parseInt(type.substring(4));
+        throw new IllegalArgumentException("Unknown record type " + field);
+    }
+
+    /***
+     * Replays the queries for the given time, then waits out the stragglers.
+     * @param duration - How long to keep sending.
+     * @param targetQps - The paced send rate, or 0 for a closed loop.
+     * @param maxOutstanding - How many queries may await an answer at once.
+     */
+    public ReplayReport run(long duration, TimeUnit unit, int targetQps, int maxOutstanding) throws IOException {
+        if (maxOutstanding < 1 || maxOutstanding > TRANSACTION_IDS) {
+            throw new IllegalArgumentException("The outstanding limit must be between 1 and " + TRANSACTION_IDS);
+        }
+        DatagramChannel[] channels = new DatagramChannel[socketCount];
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < socketCount; i++) {
+                channels[i] = DatagramChannel.open();
+                channels[i].setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+                channels[i].connect(server);
+                channels[i].configureBlocking(false);
+                channels[i].register(selector, SelectionKey.OP_READ);
+            }
+            return new Replay(channels, selector, targetQps, maxOutstanding).run(unit.toNanos(duration));
+        } finally {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+        }
+    }
+
+    /***
+     * The state of one run. Outstanding queries are tracked by transaction ID, with their send time (0 when free).
+     */
+    private final class Replay {
+        private final DatagramChannel[] channels;
+        private final Selector selector;
+        private final int targetQps;
+        private final int maxOutstanding;
+        private final long[] sentAtNanos = new long[TRANSACTION_IDS];
+        private final ByteBuffer sendBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_MESSAGE_SIZE);
+        private final DNSMessageView responseView = new DNSMessageView();
+        private final long[] responseCodeCounts = new long[16];
+        private long[] latencyNanos = new long[1 << 16];
+        private int latencyCount;
+        private int outstanding;
+        private int nextTransactionId;
+        private int nextQuery;
+        private long sent;
+        private long skipped;
+        private long timedOut;
+        private long unexpected;
+        private long blocked;
+
+        private Replay(DatagramChannel[] channels, Selector selector, int targetQps, int maxOutstanding) {
+            this.channels = channels;
+            this.selector = selector;
+            this.targetQps = targetQps;
+            this.maxOutstanding = maxOutstanding;
+        }
+
+        private ReplayReport run(long durationNanos) throws IOException {
+            long start = System.nanoTime();
+            long sendUntil = start + durationNanos;
+            long nextTimeoutScan = start + TIMEOUT_SCAN_INTERVAL_NANOS;
+            long now = start;
+            while (now < sendUntil || (outstanding > 0 && now < sendUntil + timeoutNanos)) {
+                if (now < sendUntil) sendDue(start, now);
+                long wakeUp = Math.min(nextTimeoutScan, now < sendUntil ? nextSendAt(start) : sendUntil + timeoutNanos);
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(wakeUp - now);
+                if (waitMillis > 0 && (outstanding > 0 || targetQps > 0)) {
+                    selector.select(waitMillis);
+                } else {
+                    selector.selectNow();
+                }
+                selector.selectedKeys().clear();
+                receiveAll();
+                now = System.nanoTime();
+                if (now >= nextTimeoutScan) {
+                    expire(now);
+                    nextTimeoutScan = now + TIMEOUT_SCAN_INTERVAL_NANOS;
+                }
+            }
+            long end = Math.min(System.nanoTime(), sendUntil + timeoutNanos);
+            timedOut += outstanding;
+            return new ReplayReport(sent, skipped, timedOut, unexpected, blocked, responseCodeCounts,
+                    latencyNanos, latencyCount, end - start);
+        }
+
+        private long nextSendAt(long start) {
+            if (targetQps <= 0) return outstanding < maxOutstanding ? start : Long.MAX_VALUE;
+            return start + (sent + skipped) * TimeUnit.SECONDS.toNanos(1) / targetQps;
+        }
+
+        private void sendDue(long start, long now) throws IOException {
+            if (targetQps <= 0) {
+                while (outstanding < maxOutstanding) send(now);
+                return;
+            }
+            while (nextSendAt(start) <= now) {
+                if (outstanding < maxOutstanding) {
+                    send(now);
+                } else {
+                    skipped++;
+                }
+            }
+        }
+
+        private void send(long now) throws IOException {
+            while (sentAtNanos[nextTransactionId] != 0) {
+                nextTransactionId = (nextTransactionId + 1) & (TRANSACTION_IDS - 1);
+            }
+            int transactionId = nextTransactionId;
+            nextTransactionId = (nextTransactionId + 1) & (TRANSACTION_IDS - 1);
+            byte[] query = queries.get(nextQuery);
+            nextQuery = (nextQuery + 1) % queries.size();
+            sendBuffer.clear();
+            sendBuffer.put(query).flip();
+            sendBuffer.putShort(0, (short) transactionId);
+            sentAtNanos[transactionId] = now;
+            outstanding++;
+            sent++;
+            channels[transactionId % channels.length].write(sendBuffer);
+        }
+
+        private void receiveAll() throws IOException {
+            for (DatagramChannel channel : channels) {
+                receiveAll(channel);
+            }
+        }
+
+        private void receiveAll(DatagramChannel channel) throws IOException {
+            while (true) {
+                receiveBuffer.clear();
+                try {
+                    if (channel.read(receiveBuffer) <= 0) return;
+                } catch (PortUnreachableException e) {
+                    // nothing listens on the server's port (yet); the queries will time out
+                    return;
+                }
+                long now = System.nanoTime();
+                receiveBuffer.flip();
+                responseView.wrap(receiveBuffer);
+                if (!responseView.hasHeader() || !responseView.isResponse()) {
+                    unexpected++;
+                    continue;
+                }
+                int transactionId = responseView.getTransactionId();
+                long sentAt = sentAtNanos[transactionId];
+                if (sentAt == 0) {
+                    // an answer to a query that already timed out, or to none of ours
+                    unexpected++;
+                    continue;
+                }
+                sentAtNanos[transactionId] = 0;
+                outstanding--;
+                recordLatency(now - sentAt);
+                int responseCode = responseView.getResponseCode();
+                responseCodeCounts[responseCode]++;
+                if (isBlockedResponse(responseView)) blocked++;
+            }
+        }
+
+        private void expire(long now) {
+            if (outstanding == 0) return;
+            long sentBefore = now - timeoutNanos;
+            for (int transactionId = 0; transactionId < TRANSACTION_IDS; transactionId++) {
+                long sentAt = sentAtNanos[transactionId];
+                if (sentAt != 0 && sentAt < sentBefore) {
+                    sentAtNanos[transactionId] = 0;
+                    outstanding--;
+                    timedOut++;
+                }
+            }
+        }
+
+        private void recordLatency(long nanos) {
+            if (latencyCount == latencyNanos.length) latencyNanos = Arrays.copyOf(latencyNanos, latencyCount * 2);
+            latencyNanos[latencyCount++] = nanos;
+        }
+    }
+
+    /***
+     * @return Whether this is a sinkhole's NXDOMAIN: the question alone, without a SOA from an authority.
+     */
+    static boolean isBlockedResponse(DNSMessageView response) {
+        return response.getResponseCode() == DNSMessageView.RCODE_NAME_ERROR
+                && response.getSectionCount(DNSMessageView.SECTION_ANSWER) == 0
+                && response.getSectionCount(DNSMessageView.SECTION_AUTHORITY) == 0;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String queryFile = null;
+        String serverHost = "127.0.0.1";
+        int serverPort = 5300;
+        int targetQps = 0;
+        int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+        long seconds = 10;
+        double timeoutSeconds = DEFAULT_TIMEOUT_MILLIS / 1e3;
+        int socketCount = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-d": queryFile = args[i + 1]; break;
+                case "-s": serverHost = args[i + 1]; break;
+                case "-p": serverPort = Integer.parseInt(args[i + 1]); break;
+                case "-Q": targetQps = Integer.parseInt(args[i + 1]); break;
+                case "-c": maxOutstanding = Integer.parseInt(args[i + 1]); break;
+                case "-l": seconds = Long.parseLong(args[i + 1]); break;
+                case "-t": timeoutSeconds = Double.parseDouble(args[i + 1]); break;
+                case "-k": socketCount = Integer.parseInt(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (queryFile == null) {
+            System.err.println("Usage: QueryReplayClient -d queries.txt [-s server] [-p port] [-Q qps] " +
+                    "[-c outstanding] [-l seconds] [-t timeout seconds] [-k sockets]");
+            return;
+        }
+        QueryReplayClient client = new QueryReplayClient(
+                new InetSocketAddress(InetAddress.getByName(serverHost), serverPort), loadQueries(Paths.get(queryFile)));
+        client.setTimeout((long) (timeoutSeconds * 1e3), TimeUnit.MILLISECONDS);
+        client.setSocketCount(socketCount);
+        client.run(seconds, TimeUnit.SECONDS, targetQps, maxOutstanding).print(System.out);
+    }
+}
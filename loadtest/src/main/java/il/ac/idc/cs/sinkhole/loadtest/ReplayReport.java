@@ -0,0 +1,104 @@
+package il.ac.idc.cs.sinkhole.loadtest;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/***
+ * What a replay measured: how many queries were sent and answered, how fast, and what the answers were.
+ * A sinkhole's blocked answer is an NXDOMAIN with nothing but the question, while a real NXDOMAIN carries its
+ * zone's SOA, so the two are told apart without help from the server.
+ */
+public final class ReplayReport {
+
+    private static final String[] RCODE_NAMES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    private final long sentQueries;
+    private final long skippedQueries;
+    private final long timedOutQueries;
+    private final long unexpectedResponses;
+    private final long blockedResponses;
+    private final long[] responseCodeCounts;
+    private final long[] sortedLatencyNanos;
+    private final long elapsedNanos;
+
+    ReplayReport(long sentQueries, long skippedQueries, long timedOutQueries, long unexpectedResponses,
+                 long blockedResponses, long[] responseCodeCounts, long[] latencyNanos, int latencyCount,
+                 long elapsedNanos) {
+        this.sentQueries = sentQueries;
+        this.skippedQueries = skippedQueries;
+        this.timedOutQueries = timedOutQueries;
+        this.unexpectedResponses = unexpectedResponses;
+        this.blockedResponses = blockedResponses;
+        this.responseCodeCounts = responseCodeCounts.clone();
+        this.sortedLatencyNanos = Arrays.copyOf(latencyNanos, latencyCount);
+        Arrays.sort(sortedLatencyNanos);
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getSentQueries() {
+        return sentQueries;
+    }
+
+    /***
+     * @return How many queries were due but not sent, because the outstanding limit was reached.
+     */
+    public long getSkippedQueries() {
+        return skippedQueries;
+    }
+
+    public long getAnsweredQueries() {
+        return sortedLatencyNanos.length;
+    }
+
+    public long getTimedOutQueries() {
+        return timedOutQueries;
+    }
+
+    public long getBlockedResponses() {
+        return blockedResponses;
+    }
+
+    public long getResponseCodeCount(int responseCode) {
+        return responseCodeCounts[responseCode];
+    }
+
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : sortedLatencyNanos.length * 1e9 / elapsedNanos;
+    }
+
+    /***
+     * @param percentile - Between 0 and 100, e.g. 99.9.
+     * @return The latency in microseconds that this share of the answers beat, or 0 if there were none.
+     */
+    public double getLatencyMicros(double percentile) {
+        if (sortedLatencyNanos.length == 0) return 0;
+        int rank = (int) Math.ceil(percentile / 100 * sortedLatencyNanos.length) - 1;
+        return sortedLatencyNanos[Math.max(0, Math.min(rank, sortedLatencyNanos.length - 1))] / 1e3;
+    }
+
+    public void print(PrintStream out) {
+        long answered = getAnsweredQueries();
+        out.printf("Queries sent:        %d (%d skipped at the outstanding limit)%n", sentQueries, skippedQueries);
+        out.printf("Queries answered:    %d (%.2f%%)%n", answered, percentOf(answered, sentQueries));
+        out.printf("Queries timed out:   %d (%.2f%%)%n", timedOutQueries, percentOf(timedOutQueries, sentQueries));
+        if (unexpectedResponses > 0) out.printf("Unexpected replies:  %d%n", unexpectedResponses);
+        out.printf("Run time:            %.3f s%n", elapsedNanos / 1e9);
+        out.printf("Throughput:          %.1f answers/s%n", getThroughput());
+        out.printf("Latency (us):        p50 %.0f, p99 %.0f, p99.9 %.0f, max %.0f%n",
+                getLatencyMicros(50), getLatencyMicros(99), getLatencyMicros(99.9), getLatencyMicros(100));
+        out.println("Response codes:");
+        for (int responseCode = 0; responseCode < responseCodeCounts.length; responseCode++) {
+            long count = responseCodeCounts[responseCode];
+            if (count == 0) continue;
+            String name = responseCode < RCODE_NAMES.length ? RCODE_NAMES[responseCode] : "RCODE" + responseCode;
+            out.printf("    %-16s %d (%.2f%%)%n", name, count, percentOf(count, answered));
+        }
+        out.printf("    %-16s %d (%.2f%%)%n", "blocked NXDOMAIN", blockedResponses,
+                percentOf(blockedResponses, answered));
+    }
+
+    private static double percentOf(long count, long total) {
+        return total == 0 ? 0 : count * 100.0 / total;
+    }
+}
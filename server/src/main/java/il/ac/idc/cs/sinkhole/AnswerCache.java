@@ -0,0 +1,92 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Keeps final, positive answers keyed by their question, so hot names skip the iterative walk entirely.
+ * An answer lives for the smallest TTL in its answer section. When served, it is copied with the client's
+ * transaction ID and question patched in and every TTL reduced by the time it spent in the cache.
+ * Answers also count how often they are served, so popular ones can be refreshed ahead of expiry (Prefetcher).
+ */
+public class AnswerCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+    private static final int RCODE_NO_ERROR = 0;
+
+    private final ClockCache<QuestionKey, CachedResponse> cache;
+
+    public AnswerCache(int capacity) {
+        cache = new ClockCache<>(capacity);
+    }
+
+    /***
+     * @param question - The client's question.
+     * @param request - The client's query, whose transaction ID and question (letter case included, for clients
+     *                that check it, e.g. 0x20) are placed in the returned copy.
+     * @return A ready to send response, or null on a miss.
+     */
+    public byte[] get(QuestionKey question, DNSPacketHandler request) {
+        long now = System.nanoTime();
+        CachedResponse cachedAnswer = cache.get(question, now);
+        if (cachedAnswer == null) return null;
+        cachedAnswer.recordHit();
+        byte[] response = cachedAnswer.toResponse(request, now);
+        return (response != null) ? response : cachedAnswer.toResponse(request.getTransactionId(), now);
+    }
+
+    /***
+     * Tells whether a popular answer is about to expire, so it should be refreshed before anyone has to wait for it.
+     * @param refreshPercent - How close to expiry it must be, as a percentage of its lifetime left.
+     * @param minHits - How many times it must have been served since it was stored.
+     */
+    public boolean isRefreshDue(QuestionKey question, int refreshPercent, int minHits) {
+        long now = System.nanoTime();
+        CachedResponse cachedAnswer = cache.peek(question, now);
+        return cachedAnswer != null && cachedAnswer.isRefreshDue(now, refreshPercent, minHits);
+    }
+
+    /***
+     * Stores a final response if it is a cacheable positive answer; anything else is ignored.
+     */
+    public void put(QuestionKey question, DNSPacketHandler response) {
+        if (response.getResponseCode() != RCODE_NO_ERROR || response.getAnswerCount() == 0
+                || response.isTruncated()) {
+            return;
+        }
+        long ttlSeconds = Math.min(response.getMinAnswerTtl(), MAX_TTL_SECONDS);
+        if (ttlSeconds <= 0) return;
+        long now = System.nanoTime();
+        long expiresAtNanos = now + TimeUnit.SECONDS.toNanos(ttlSeconds);
+        CachedResponse cachedAnswer = new CachedResponse(response.getData().clone(), response.getTtlIndices(), now,
+                expiresAtNanos);
+        cache.put(question, cachedAnswer, expiresAtNanos);
+    }
+
+    void forEachEntry(ClockCache.EntryVisitor<QuestionKey, CachedResponse> visitor) {
+        cache.forEachLive(System.nanoTime(), visitor);
+    }
+
+    /***
+     * Puts back an answer read from a snapshot (CacheSnapshot).
+     */
+    void restore(QuestionKey question, CachedResponse cachedAnswer) {
+        cache.put(question, cachedAnswer, cachedAnswer.getExpiresAtNanos());
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+}
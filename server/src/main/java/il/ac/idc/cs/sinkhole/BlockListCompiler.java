@@ -0,0 +1,133 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ * Compiles text blocklists (any format BlockListForDNS reads) into the binary format of CompiledBlockList.
+ * Usage: java il.ac.idc.cs.sinkhole.BlockListCompiler blocklist.txt blocklist.bin
+ * The output is written next to its destination and moved into place, so a server mapping the old file never
+ * sees a half-written one.
+ */
+public class BlockListCompiler {
+
+    private long[] entries = new long[1024];
+    private int entryCount;
+    private int skippedRules;
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: BlockListCompiler <blocklist text file> <compiled output file>");
+            System.exit(1);
+        }
+        try {
+            BlockListCompiler compiler = new BlockListCompiler();
+            compiler.addFile(Paths.get(args[0]));
+            int written = compiler.write(Paths.get(args[1]));
+            System.out.printf("Block List Compiler wrote %d entries to %s (%d rules skipped).\r\n",
+                    written, args[1], compiler.getSkippedRules());
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Block List Compiler. exception = %s\r\n", e);
+            System.exit(1);
+        }
+    }
+
+    public void addFile(Path textBlockList) throws IOException {
+        List<String> rules = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(textBlockList)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                rules.clear();
+                BlockListForDNS.parseLine(line, rules);
+                for (String rule : rules) {
+                    add(rule);
+                }
+            }
+        }
+    }
+
+    /***
+     * Adds one rule, in LabelRuleMatcher's syntax.
+     * @return Whether the rule was valid.
+     */
+    public boolean add(String rule) {
+        long entry = CompiledBlockList.ruleEntry(rule);
+        if (entry < 0) {
+            skippedRules++;
+            return false;
+        }
+        if (entryCount == entries.length) entries = Arrays.copyOf(entries, entryCount * 2);
+        entries[entryCount++] = entry;
+        return true;
+    }
+
+    public int getSkippedRules() {
+        return skippedRules;
+    }
+
+    /***
+     * Sorts the rules, merges the flags of rules for the same name, and writes the compiled file.
+     * @return The number of entries written.
+     */
+    public int write(Path compiledBlockList) throws IOException {
+        int merged = sortAndMerge();
+        int bucketCount = 1 << CompiledBlockList.BUCKET_BITS;
+        int[] bucketStarts = new int[bucketCount + 1];
+        for (int i = 0; i < merged; i++) {
+            bucketStarts[CompiledBlockList.bucket(entries[i], CompiledBlockList.BUCKET_BITS) + 1]++;
+        }
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            bucketStarts[bucket + 1] += bucketStarts[bucket];
+        }
+        Path temporary = compiledBlockList.resolveSibling(compiledBlockList.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(CompiledBlockList.MAGIC);
+                out.writeInt(CompiledBlockList.VERSION);
+                out.writeInt(merged);
+                out.writeInt(CompiledBlockList.BUCKET_BITS);
+                for (int bucketStart : bucketStarts) {
+                    out.writeInt(bucketStart);
+                }
+                int padding = CompiledBlockList.entriesOffset(CompiledBlockList.BUCKET_BITS)
+                        - CompiledBlockList.HEADER_SIZE - bucketStarts.length * Integer.BYTES;
+                for (int i = 0; i < padding; i++) {
+                    out.writeByte(0);
+                }
+                for (int i = 0; i < merged; i++) {
+                    out.writeLong(entries[i]);
+                }
+            }
+            Files.move(temporary, compiledBlockList,
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return merged;
+    }
+
+    /***
+     * Keys are non-negative, so signed order is the order of their bucket bits.
+     */
+    private int sortAndMerge() {
+        Arrays.sort(entries, 0, entryCount);
+        int merged = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (merged > 0 && (entries[merged - 1] & ~CompiledBlockList.FLAGS_MASK)
+                    == (entries[i] & ~CompiledBlockList.FLAGS_MASK)) {
+                entries[merged - 1] |= entries[i];
+            } else {
+                entries[merged++] = entries[i];
+            }
+        }
+        entryCount = merged;
+        return merged;
+    }
+}
@@ -0,0 +1,142 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * A full blocklist with a small set of changes laid over it, so a feed's frequent deltas are applied without
+ * rebuilding (or copying) the full list.
+ * Delta lines are blocklist lines (any format BlockListForDNS reads): a leading '-' removes the line's rules,
+ * and a leading '+' (or none) adds them. Later lines win over earlier ones.
+ * Changes are keyed by the same label hashes as CompiledBlockList, and a name's effective rules are the full
+ * list's rules minus the removed ones plus the added ones. Immutable once built, and lookups allocate nothing.
+ */
+public class BlockListDelta implements DomainMatcher {
+
+    public static final char ADD_PREFIX = '+';
+    public static final char REMOVE_PREFIX = '-';
+    private static final int REMOVED_SHIFT = 4;
+    private static final long EMPTY_SLOT = -1L;
+
+    private final LabelRuleMatcher base;
+    private final long[] keys;
+    private final int[] changes;
+    private final int changeCount;
+    private final ThreadLocal<int[]> labelOffsetsScratch =
+            ThreadLocal.withInitial(() -> new int[DNSMessageView.MAX_LABELS]);
+
+    private BlockListDelta(LabelRuleMatcher base, Map<Long, Integer> changesByKey) {
+        this.base = base;
+        int capacity = Integer.highestOneBit(Math.max(1, changesByKey.size()) * 2) * 2;
+        keys = new long[capacity];
+        changes = new int[capacity];
+        Arrays.fill(keys, EMPTY_SLOT);
+        for (Map.Entry<Long, Integer> change : changesByKey.entrySet()) {
+            int mask = capacity - 1;
+            int slot = spread(change.getKey()) & mask;
+            while (keys[slot] != EMPTY_SLOT) slot = (slot + 1) & mask;
+            keys[slot] = change.getKey();
+            changes[slot] = change.getValue();
+        }
+        changeCount = changesByKey.size();
+    }
+
+    /***
+     * @param base - The full list the changes apply to.
+     * @param deltaLines - The delta file's lines.
+     */
+    public static BlockListDelta parse(LabelRuleMatcher base, List<String> deltaLines) {
+        Map<Long, Integer> changesByKey = new LinkedHashMap<>();
+        List<String> rules = new ArrayList<>();
+        for (String deltaLine : deltaLines) {
+            String line = deltaLine.trim();
+            boolean remove = !line.isEmpty() && line.charAt(0) == REMOVE_PREFIX;
+            if (remove || (!line.isEmpty() && line.charAt(0) == ADD_PREFIX)) line = line.substring(1);
+            rules.clear();
+            BlockListForDNS.parseLine(line, rules);
+            for (String rule : rules) {
+                long entry = CompiledBlockList.ruleEntry(rule);
+                if (entry < 0) continue;
+                long key = entry & ~CompiledBlockList.FLAGS_MASK;
+                int flag = (int) (entry & CompiledBlockList.FLAGS_MASK);
+                int change = changesByKey.getOrDefault(key, 0);
+                change = remove ? (change & ~flag) | (flag << REMOVED_SHIFT)
+                        : (change | flag) & ~(flag << REMOVED_SHIFT);
+                changesByKey.put(key, change);
+            }
+        }
+        return new BlockListDelta(base, changesByKey);
+    }
+
+    public LabelRuleMatcher getBase() {
+        return base;
+    }
+
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    @Override
+    public boolean isBlocked(CharSequence domain) {
+        if (changeCount == 0) return base.isBlocked(domain);
+        int labelEnd = LabelRuleMatcher.nameEnd(domain);
+        if (labelEnd < 0) return false;
+        long baseState = base.rootState();
+        long hash = CompiledBlockList.HASH_SEED;
+        boolean blocked = false;
+        while (true) {
+            int labelStart = labelEnd;
+            while (labelStart > 0 && domain.charAt(labelStart - 1) != '.') labelStart--;
+            if (labelStart == labelEnd) return blocked;
+            if (baseState != LabelRuleMatcher.NO_STATE) {
+                baseState = base.childState(baseState, domain, labelStart, labelEnd);
+            }
+            hash = CompiledBlockList.hashLabel(hash, domain, labelStart, labelEnd);
+            int rules = rules(baseState, hash);
+            if (labelStart == 0) return LabelRuleMatcher.exactVerdict(rules, blocked);
+            blocked = LabelRuleMatcher.subtreeVerdict(rules, blocked);
+            labelEnd = labelStart - 1;
+        }
+    }
+
+    @Override
+    public boolean isBlocked(DNSMessageView message, int nameOffset) {
+        if (changeCount == 0) return base.isBlocked(message, nameOffset);
+        int[] labelOffsets = labelOffsetsScratch.get();
+        int labels = message.labelOffsets(nameOffset, labelOffsets);
+        long baseState = base.rootState();
+        long hash = CompiledBlockList.HASH_SEED;
+        boolean blocked = false;
+        for (int i = labels - 1; i >= 0; i--) {
+            if (baseState != LabelRuleMatcher.NO_STATE) {
+                baseState = base.childState(baseState, message, labelOffsets[i]);
+            }
+            hash = CompiledBlockList.hashLabel(hash, message, labelOffsets[i]);
+            int rules = rules(baseState, hash);
+            if (i == 0) return LabelRuleMatcher.exactVerdict(rules, blocked);
+            blocked = LabelRuleMatcher.subtreeVerdict(rules, blocked);
+        }
+        return false;
+    }
+
+    private int rules(long baseState, long hash) {
+        int rules = (baseState == LabelRuleMatcher.NO_STATE) ? 0 : base.rules(baseState);
+        int change = find(CompiledBlockList.key(hash));
+        return (rules & ~(change >>> REMOVED_SHIFT)) | (change & LabelRuleMatcher.RULES_MASK);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = spread(key) & mask; keys[slot] != EMPTY_SLOT; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return changes[slot];
+        }
+        return 0;
+    }
+
+    private static int spread(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+}
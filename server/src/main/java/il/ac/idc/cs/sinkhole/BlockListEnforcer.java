@@ -0,0 +1,64 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class allows us to supply the Server object with a HashSet which can help it make
+ * decisions regarding blocked DNS records.
+ * The entries are compiled into a DomainTrie (or come precompiled, see CompiledBlockList), so besides exact names
+ * the list may hold whole subtrees ("*.example.com") and allow-list exceptions ("@@good.example.com").
+ * The list in use is an immutable snapshot behind an atomic reference: a new one (see BlockListReloader) is built
+ * off the hot path and swapped in, and lookups never take a lock.
+ */
+public class BlockListEnforcer {
+
+    private final AtomicReference<DomainMatcher> blockListEnforcer;
+
+    public BlockListEnforcer(HashSet<String> enforceList){
+        DomainTrie blockList = new DomainTrie();
+        for (String entry : enforceList) {
+            if (!blockList.add(entry)) {
+                System.err.printf("Block list entry \"%s\" is not a valid domain name and was skipped.\r\n", entry);
+            }
+        }
+        this.blockListEnforcer = new AtomicReference<>(blockList);
+    }
+
+    /***
+     * @param blockList - A list already loaded by BlockListForDNS, e.g. a memory-mapped compiled one.
+     */
+    public BlockListEnforcer(DomainMatcher blockList){
+        this.blockListEnforcer = new AtomicReference<>(blockList);
+    }
+
+    public DomainMatcher getBlockList()
+    {
+        return blockListEnforcer.get();
+    }
+
+    /***
+     * Swaps in a new snapshot. Lookups already running finish against the old one.
+     * @return The snapshot that was replaced.
+     */
+    public DomainMatcher setBlockList(DomainMatcher blockList)
+    {
+        return blockListEnforcer.getAndSet(blockList);
+    }
+
+    public boolean isAllowed(String domain)
+    {
+        return !blockListEnforcer.get().isBlocked(domain);
+    }
+
+    /***
+     * Same as isAllowed(String), for a name that sits in a received message. Nothing is allocated.
+     * @param message - The message holding the name.
+     * @param nameOffset - Where the name starts in the message.
+     */
+    public boolean isAllowed(DNSMessageView message, int nameOffset)
+    {
+        return !blockListEnforcer.get().isBlocked(message, nameOffset);
+    }
+
+}
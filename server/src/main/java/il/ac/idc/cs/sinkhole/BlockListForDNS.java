@@ -0,0 +1,149 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/***
+ * Reads blocklists. Text lists may mix three formats, line by line:
+ * plain        example.com, *.example.com or @@example.com (see LabelRuleMatcher).
+ * hosts file   0.0.0.0 example.com other.example.com
+ * adblock      ||example.com^ blocks the name and everything below it; @@||example.com^ allows them.
+ * Comments (#, !) and blank lines are skipped, as are adblock rules we cannot express as domain rules.
+ * A list compiled by BlockListCompiler is memory-mapped instead of parsed.
+ */
+public class BlockListForDNS {
+
+    private static final Set<String> HOSTS_FILE_LOCAL_NAMES = Set.of(
+            "localhost", "localhost.localdomain", "local", "broadcasthost", "ip6-localhost", "ip6-loopback",
+            "ip6-localnet", "ip6-mcastprefix", "ip6-allnodes", "ip6-allrouters", "ip6-allhosts", "0.0.0.0");
+
+    public BlockListForDNS() {
+    }
+
+    public HashSet<String> Load(String filePath) {
+        // Establish reader.
+        System.out.println("Recursive DNS Client is loading DNS blocklist.");
+        BufferedReader reader = getBlockListFileReader(filePath);
+        return (reader == null) ? new HashSet<>() : getHashSet(reader);
+    }
+
+    /***
+     * Loads a blocklist for the enforcer: compiled lists are mapped off-heap, text lists are parsed into a trie.
+     * @return The matcher, which is empty if the file could not be read.
+     */
+    public LabelRuleMatcher LoadMatcher(String filePath) {
+        Path path = Paths.get(filePath);
+        if (CompiledBlockList.isCompiled(path)) {
+            System.out.println("Recursive DNS Client is mapping compiled DNS blocklist.");
+            try {
+                return CompiledBlockList.open(path);
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in BlockListForDNS " +
+                        "while mapping compiled blocklist. exception = %s \r\n", e);
+                return new DomainTrie();
+            }
+        }
+        System.out.println("Recursive DNS Client is loading DNS blocklist.");
+        DomainTrie blockList = new DomainTrie();
+        BufferedReader reader = getBlockListFileReader(filePath);
+        if (reader == null) return blockList;
+        List<String> rules = new ArrayList<>();
+        String line;
+        try (reader) {
+            while ((line = reader.readLine()) != null) {
+                rules.clear();
+                parseLine(line, rules);
+                for (String rule : rules) {
+                    blockList.add(rule);
+                }
+            }
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in BlockListForDNS " +
+                    "while reading file. exception = %s", e);
+        }
+        return blockList;
+    }
+
+    private BufferedReader getBlockListFileReader(String filePath) {
+        BufferedReader reader = null;
+        try {
+            File file = new File(filePath);
+            reader = new BufferedReader(new FileReader(file));
+        } catch (FileNotFoundException e) {
+            System.err.printf("Exception occurred in BlockListForDNS " +
+                    "while establishing reader. exception = %s \r\n", e);
+        }
+        return reader;
+    }
+
+    private HashSet<String> getHashSet(BufferedReader reader) {
+        HashSet<String> blockList = new HashSet<>();
+        List<String> rules = new ArrayList<>();
+        String line;
+        try (reader) {
+            while ((line = reader.readLine()) != null) {
+                rules.clear();
+                parseLine(line, rules);
+                blockList.addAll(rules);
+            }
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in BlockListForDNS " +
+                    "while reading file. exception = %s", e);
+        }
+        return blockList;
+    }
+
+    /***
+     * Translates one line of a text blocklist, in any of the supported formats, into LabelRuleMatcher rules.
+     * @param line - The line as read.
+     * @param rules - Receives the line's rules; nothing is added for comments, blank or unsupported lines.
+     */
+    static void parseLine(String line, List<String> rules) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith("!") || trimmed.startsWith("[")) {
+            return;
+        }
+        if (trimmed.startsWith("||") || trimmed.startsWith(LabelRuleMatcher.ALLOW_PREFIX + "||")) {
+            parseAdblockRule(trimmed, rules);
+            return;
+        }
+        int comment = trimmed.indexOf('#');
+        if (comment >= 0) trimmed = trimmed.substring(0, comment).trim();
+        if (trimmed.isEmpty()) return;
+        String[] fields = trimmed.split("\\s+");
+        if (fields.length == 1) {
+            rules.add(fields[0].toLowerCase());
+            return;
+        }
+        if (!RootHints.isAddressLiteral(fields[0])) return;
+        for (int i = 1; i < fields.length; i++) {
+            String name = fields[i].toLowerCase();
+            if (!HOSTS_FILE_LOCAL_NAMES.contains(name)) rules.add(name);
+        }
+    }
+
+    /***
+     * ||example.com^ covers the name itself and all names below it, so it becomes an exact and a subtree rule.
+     * Only the "important" option is understood; rules with paths, wildcards or other options are skipped.
+     */
+    private static void parseAdblockRule(String rule, List<String> rules) {
+        boolean allow = rule.startsWith(LabelRuleMatcher.ALLOW_PREFIX);
+        String body = rule.substring(allow ? LabelRuleMatcher.ALLOW_PREFIX.length() + 2 : 2);
+        int options = body.indexOf('$');
+        if (options >= 0) {
+            if (!body.substring(options + 1).equals("important")) return;
+            body = body.substring(0, options);
+        }
+        if (body.endsWith("^")) body = body.substring(0, body.length() - 1);
+        if (body.isEmpty() || body.indexOf('/') >= 0 || body.indexOf('*') >= 0 || body.indexOf('^') >= 0) return;
+        String name = body.toLowerCase();
+        String prefix = allow ? LabelRuleMatcher.ALLOW_PREFIX : "";
+        rules.add(prefix + name);
+        rules.add(prefix + LabelRuleMatcher.SUBTREE_PREFIX + name);
+    }
+}
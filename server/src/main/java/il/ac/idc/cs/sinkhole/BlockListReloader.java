@@ -0,0 +1,131 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+
+/***
+ * Keeps the enforcer's blocklist current without restarting the server.
+ * A change to the blocklist file rebuilds the full list; a change to its delta file (the same path plus
+ * ".delta", holding the changes published since the full list) only re-lays the delta over the list already
+ * loaded. Either way the new snapshot is built on the watcher's thread and swapped into the enforcer, so
+ * lookups never wait. reload() and reloadDelta() may also be called directly, e.g. by an admin command.
+ */
+public class BlockListReloader implements Closeable {
+
+    public static final String DELTA_FILE_SUFFIX = ".delta";
+    // Editors and feed downloaders write in several steps; wait for them to settle before reading.
+    private static final long SETTLE_MILLIS = 250;
+
+    private final BlockListEnforcer blockListEnforcer;
+    private final Path blockListPath;
+    private final Path deltaPath;
+    private final BlockListForDNS blockListLoader = new BlockListForDNS();
+    private LabelRuleMatcher fullBlockList = new DomainTrie();
+    private WatchService watchService;
+    private Thread watcherThread;
+
+    public BlockListReloader(BlockListEnforcer blockListEnforcer, Path blockListPath) {
+        this.blockListEnforcer = blockListEnforcer;
+        this.blockListPath = blockListPath.toAbsolutePath();
+        this.deltaPath = this.blockListPath.resolveSibling(this.blockListPath.getFileName() + DELTA_FILE_SUFFIX);
+    }
+
+    /***
+     * Loads the full blocklist again, lays the current delta over it and swaps the result in.
+     */
+    public synchronized void reload() {
+        if (!Files.isReadable(blockListPath)) {
+            // Mid-replacement, most likely; keep serving what we have.
+            System.err.printf("Block List Reloader cannot read %s, keeping the current blocklist.\r\n", blockListPath);
+            return;
+        }
+        fullBlockList = blockListLoader.LoadMatcher(blockListPath.toString());
+        swap();
+    }
+
+    /***
+     * Lays the current delta over the full blocklist already loaded and swaps the result in.
+     */
+    public synchronized void reloadDelta() {
+        swap();
+    }
+
+    private void swap() {
+        DomainMatcher blockList = fullBlockList;
+        if (Files.exists(deltaPath)) {
+            try {
+                List<String> deltaLines = Files.readAllLines(deltaPath);
+                BlockListDelta delta = BlockListDelta.parse(fullBlockList, deltaLines);
+                System.out.printf("Block List Reloader applied %d delta changes.\r\n", delta.getChangeCount());
+                blockList = delta;
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in Block List Reloader, " +
+                        "while reading the delta file. exception = %s\r\n", e);
+            }
+        }
+        blockListEnforcer.setBlockList(blockList);
+    }
+
+    /***
+     * Starts watching the blocklist's directory on a daemon thread.
+     */
+    public synchronized void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        blockListPath.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        watcherThread = new Thread(this::watch, "block-list-reloader");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Thread.sleep(SETTLE_MILLIS);
+                boolean fullChanged = false;
+                boolean deltaChanged = false;
+                // Drain everything that piled up while settling, so one burst of writes means one reload.
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        Object changed = event.context();
+                        if (changed == null) {
+                            // Events overflowed; we cannot tell what changed.
+                            fullChanged = true;
+                        } else if (changed.equals(blockListPath.getFileName())) {
+                            fullChanged = true;
+                        } else if (changed.equals(deltaPath.getFileName())) {
+                            deltaChanged = true;
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll();
+                }
+                try {
+                    if (fullChanged) {
+                        System.out.println("Block List Reloader is reloading the blocklist.");
+                        reload();
+                    } else if (deltaChanged) {
+                        System.out.println("Block List Reloader is reloading the blocklist delta.");
+                        reloadDelta();
+                    }
+                } catch (RuntimeException e) {
+                    // Keep serving the previous snapshot, and keep watching.
+                    System.err.printf("Exception occurred in Block List Reloader, " +
+                            "while reloading %s. exception = %s\r\n", blockListPath, e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) watchService.close();
+        if (watcherThread != null) watcherThread.interrupt();
+    }
+}
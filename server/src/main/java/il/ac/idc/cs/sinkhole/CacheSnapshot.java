@@ -0,0 +1,381 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/***
+ * Keeps the resolver's caches (answers, negative answers, delegations and name server addresses) in a file, so a
+ * restarted server starts warm instead of walking from the root for every name its clients use.
+ * The caches are written every few minutes, and once more when the JVM shuts down. Each write goes to a temporary
+ * file that is then moved into place, so a crash mid-write leaves the previous snapshot intact.
+ * Expiry times are stored as wall-clock instants, so whatever expired while the server was down is dropped on
+ * load, and the rest is served with TTLs aged by the time it really spent cached.
+ * File layout (big-endian): magic, version, written at (epoch millis), entry count, CRC32C of everything after the
+ * header, then the entries, each a kind byte followed by its expiry (epoch millis) and its key and value.
+ * A snapshot with another version or a bad checksum is ignored as a whole.
+ * A forwarding server has no delegation or name server address caches; it passes null for them, and such entries
+ * are then neither written nor restored.
+ */
+public class CacheSnapshot implements Closeable {
+
+    public static final int MAGIC = 0x534B4353; // "SKCS"
+    public static final int VERSION = 1;
+    public static final long DEFAULT_INTERVAL_SECONDS = 300;
+    static final int HEADER_SIZE = 24;
+    private static final int KIND_ANSWER = 0;
+    private static final int KIND_NO_DATA = 1;
+    private static final int KIND_NAME_ERROR = 2;
+    private static final int KIND_DELEGATION = 3;
+    private static final int KIND_NAME_SERVER_ADDRESSES = 4;
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path path;
+    private final AnswerCache answerCache;
+    private final NegativeCache negativeCache;
+    private final DelegationCache delegationCache;
+    private final NameServerAddressCache nameServerAddressCache;
+    private volatile long loadedEntries;
+    private volatile long expiredEntries;
+    private volatile long writtenEntries;
+    private Thread snapshotThread;
+
+    public CacheSnapshot(Path path, AnswerCache answerCache, NegativeCache negativeCache,
+                         DelegationCache delegationCache, NameServerAddressCache nameServerAddressCache) {
+        this.path = path.toAbsolutePath();
+        this.answerCache = answerCache;
+        this.negativeCache = negativeCache;
+        this.delegationCache = delegationCache;
+        this.nameServerAddressCache = nameServerAddressCache;
+    }
+
+    public long getLoadedEntryCount() {
+        return loadedEntries;
+    }
+
+    /***
+     * @return How many entries of the loaded snapshot had expired by the time it was loaded.
+     */
+    public long getExpiredEntryCount() {
+        return expiredEntries;
+    }
+
+    /***
+     * @return How many entries the last snapshot held.
+     */
+    public long getWrittenEntryCount() {
+        return writtenEntries;
+    }
+
+    /***
+     * Maps the snapshot read-only and puts its live entries back into the caches. A missing file is not an error;
+     * it only means there is nothing to start from.
+     * @return How many entries were restored.
+     * @throws IOException - If the file is unreadable, of another version, or fails its checksum, in which case
+     * nothing is restored; or if an entry cannot be read even so.
+     */
+    public synchronized int load() throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a cache snapshot");
+        }
+        if (mapped.getInt(4) != VERSION) throw new IOException("Unsupported cache snapshot version " + mapped.getInt(4));
+        int entryCount = mapped.getInt(16);
+        CRC32C checksum = new CRC32C();
+        checksum.update(mapped.slice(HEADER_SIZE, mapped.capacity() - HEADER_SIZE));
+        if ((int) checksum.getValue() != mapped.getInt(20)) throw new IOException("Corrupt cache snapshot checksum");
+
+        ByteBuffer entries = mapped.slice(HEADER_SIZE, mapped.capacity() - HEADER_SIZE);
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        int loaded = 0;
+        int expired = 0;
+        try {
+            for (int i = 0; i < entryCount; i++) {
+                if (readEntry(entries, nowNanos, nowMillis)) {
+                    loaded++;
+                } else {
+                    expired++;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt cache snapshot entry", e);
+        }
+        loadedEntries = loaded;
+        expiredEntries = expired;
+        System.out.printf("Cache Snapshot restored %d entries from %s, written %d s ago (%d had expired).\r\n",
+                loaded, path, TimeUnit.MILLISECONDS.toSeconds(nowMillis - mapped.getLong(8)), expired);
+        return loaded;
+    }
+
+    /***
+     * @return Whether the entry was restored, rather than dropped as expired or as having no cache to go to.
+     */
+    private boolean readEntry(ByteBuffer entries, long nowNanos, long nowMillis) throws IOException {
+        int kind = entries.get();
+        long expiresAtMillis = entries.getLong();
+        boolean isLive = expiresAtMillis > nowMillis;
+        long expiresAtNanos = nowNanos + (expiresAtMillis - nowMillis) * NANOS_PER_MILLI;
+        switch (kind) {
+            case KIND_ANSWER:
+            case KIND_NO_DATA: {
+                long storedAtMillis = entries.getLong();
+                QuestionKey question = new QuestionKey(readName(entries),
+                        entries.getShort() & 0xffff, entries.getShort() & 0xffff);
+                CachedResponse cachedResponse = readResponse(entries,
+                        nowNanos + (storedAtMillis - nowMillis) * NANOS_PER_MILLI, expiresAtNanos);
+                if (!isLive) return false;
+                if (kind == KIND_ANSWER) {
+                    answerCache.restore(question, cachedResponse);
+                } else {
+                    negativeCache.restoreNoData(question, cachedResponse);
+                }
+                return true;
+            }
+            case KIND_NAME_ERROR: {
+                long storedAtMillis = entries.getLong();
+                String name = readName(entries);
+                CachedResponse cachedResponse = readResponse(entries,
+                        nowNanos + (storedAtMillis - nowMillis) * NANOS_PER_MILLI, expiresAtNanos);
+                if (isLive) negativeCache.restoreNameError(name, cachedResponse);
+                return isLive;
+            }
+            case KIND_DELEGATION: {
+                String zone = readName(entries);
+                int nameServerCount = entries.getShort() & 0xffff;
+                List<String> nameServers = new ArrayList<>(nameServerCount);
+                for (int i = 0; i < nameServerCount; i++) {
+                    nameServers.add(readName(entries));
+                }
+                if (!isLive || delegationCache == null) return false;
+                delegationCache.restore(zone, nameServers, expiresAtNanos);
+                return true;
+            }
+            case KIND_NAME_SERVER_ADDRESSES: {
+                String nameServer = readName(entries);
+                int addressCount = entries.get() & 0xff;
+                List<InetAddress> addresses = new ArrayList<>(addressCount);
+                for (int i = 0; i < addressCount; i++) {
+                    byte[] address = new byte[entries.get() & 0xff];
+                    entries.get(address);
+                    addresses.add(InetAddress.getByAddress(address));
+                }
+                if (!isLive || nameServerAddressCache == null) return false;
+                nameServerAddressCache.restore(nameServer, addresses, expiresAtNanos);
+                return true;
+            }
+            default:
+                throw new IOException("Unknown cache snapshot entry kind " + kind);
+        }
+    }
+
+    private static String readName(ByteBuffer entries) {
+        byte[] name = new byte[entries.getShort() & 0xffff];
+        entries.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static CachedResponse readResponse(ByteBuffer entries, long storedAtNanos, long expiresAtNanos) {
+        byte[] data = new byte[entries.getShort() & 0xffff];
+        entries.get(data);
+        int[] ttlIndices = new int[entries.getShort() & 0xffff];
+        for (int i = 0; i < ttlIndices.length; i++) {
+            ttlIndices[i] = entries.getShort() & 0xffff;
+            if (ttlIndices[i] + 4 > data.length) throw new IllegalArgumentException("TTL index out of the response");
+        }
+        if (data.length < DNSMessageView.LENGTH_OF_HEADER) throw new IllegalArgumentException("Response too short");
+        return new CachedResponse(data, ttlIndices, storedAtNanos, expiresAtNanos);
+    }
+
+    /***
+     * Writes every live entry of the caches to the snapshot file, replacing the previous snapshot.
+     * @return How many entries were written.
+     */
+    public synchronized int write() throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        int[] entryCount = new int[1];
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.allocate(HEADER_SIZE));
+                CRC32C checksum = new CRC32C();
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new CheckedOutputStream(Channels.newOutputStream(channel), checksum)));
+                try {
+                    writeEntries(out, entryCount, nowNanos, nowMillis);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                out.flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(nowMillis).putInt(entryCount[0])
+                        .putInt((int) checksum.getValue()).flip();
+                channel.write(header, 0);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        writtenEntries = entryCount[0];
+        return entryCount[0];
+    }
+
+    /***
+     * The caches are walked with visitors, which cannot throw IOException, so it travels wrapped.
+     */
+    private void writeEntries(DataOutputStream out, int[] entryCount, long nowNanos, long nowMillis) {
+        answerCache.forEachEntry((question, cachedResponse, expiresAtNanos) -> {
+            writeResponseEntry(out, KIND_ANSWER, question.getName(), question, cachedResponse, nowNanos, nowMillis);
+            entryCount[0]++;
+        });
+        negativeCache.forEachNoData((question, cachedResponse, expiresAtNanos) -> {
+            writeResponseEntry(out, KIND_NO_DATA, question.getName(), question, cachedResponse, nowNanos, nowMillis);
+            entryCount[0]++;
+        });
+        negativeCache.forEachNameError((name, cachedResponse, expiresAtNanos) -> {
+            writeResponseEntry(out, KIND_NAME_ERROR, name, null, cachedResponse, nowNanos, nowMillis);
+            entryCount[0]++;
+        });
+        if (delegationCache == null || nameServerAddressCache == null) return;
+        delegationCache.forEachEntry((zone, delegation, expiresAtNanos) -> {
+            try {
+                out.writeByte(KIND_DELEGATION);
+                out.writeLong(toEpochMillis(expiresAtNanos, nowNanos, nowMillis));
+                writeName(out, zone);
+                out.writeShort(delegation.getNameServers().size());
+                for (String nameServer : delegation.getNameServers()) {
+                    writeName(out, nameServer);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            entryCount[0]++;
+        });
+        nameServerAddressCache.forEachEntry((nameServer, addresses, expiresAtNanos) -> {
+            try {
+                out.writeByte(KIND_NAME_SERVER_ADDRESSES);
+                out.writeLong(toEpochMillis(expiresAtNanos, nowNanos, nowMillis));
+                writeName(out, nameServer);
+                int addressCount = Math.min(addresses.size(), 0xff);
+                out.writeByte(addressCount);
+                for (int i = 0; i < addressCount; i++) {
+                    byte[] address = addresses.get(i).getAddress();
+                    out.writeByte(address.length);
+                    out.write(address);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            entryCount[0]++;
+        });
+    }
+
+    /***
+     * @param question - The question, or null for an NXDOMAIN, which is keyed by its name only.
+     */
+    private static void writeResponseEntry(DataOutputStream out, int kind, String name, QuestionKey question,
+                                           CachedResponse cachedResponse, long nowNanos, long nowMillis) {
+        try {
+            out.writeByte(kind);
+            out.writeLong(toEpochMillis(cachedResponse.getExpiresAtNanos(), nowNanos, nowMillis));
+            out.writeLong(toEpochMillis(cachedResponse.getStoredAtNanos(), nowNanos, nowMillis));
+            writeName(out, name);
+            if (question != null) {
+                out.writeShort(question.getType());
+                out.writeShort(question.getDnsClass());
+            }
+            byte[] data = cachedResponse.getData();
+            out.writeShort(data.length);
+            out.write(data);
+            int[] ttlIndices = cachedResponse.getTtlIndices();
+            out.writeShort(ttlIndices.length);
+            for (int ttlIndex : ttlIndices) {
+                out.writeShort(ttlIndex);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long toEpochMillis(long nanos, long nowNanos, long nowMillis) {
+        return nowMillis + (nanos - nowNanos) / NANOS_PER_MILLI;
+    }
+
+    /***
+     * Writes a snapshot every interval on a daemon thread, and a last one when the JVM shuts down.
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        long intervalMillis = unit.toMillis(interval);
+        snapshotThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(intervalMillis);
+                    writeAndReport();
+                }
+            } catch (InterruptedException e) {
+                // Closed.
+            }
+        }, "cache-snapshot");
+        snapshotThread.setDaemon(true);
+        snapshotThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "cache-snapshot-at-exit"));
+    }
+
+    private void writeAndReport() {
+        try {
+            long start = System.nanoTime();
+            int written = write();
+            if (QueryLog.TRACE) System.out.printf("Cache Snapshot wrote %d entries in %d ms.\r\n",
+                    written, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Exception occurred in Cache Snapshot, while writing %s. exception = %s\r\n", path, e);
+        }
+    }
+
+    /***
+     * Stops the periodic snapshots, and writes a last one.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = snapshotThread;
+            snapshotThread = null;
+        }
+        if (thread == null) return;
+        thread.interrupt();
+        writeAndReport();
+    }
+}
@@ -0,0 +1,103 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * A response held by one of the caches, together with where its TTLs live so that copies can be aged.
+ */
+final class CachedResponse {
+
+    private final byte[] data;
+    private final int[] ttlIndices;
+    private final long[] originalTtls;
+    private final long storedAtNanos;
+    private final long expiresAtNanos;
+    // only a popularity hint, so increments lost to races do not matter
+    private int hitCount;
+
+    CachedResponse(byte[] data, int[] ttlIndices, long storedAtNanos, long expiresAtNanos) {
+        this.data = data;
+        this.ttlIndices = ttlIndices;
+        this.storedAtNanos = storedAtNanos;
+        this.expiresAtNanos = expiresAtNanos;
+        originalTtls = new long[ttlIndices.length];
+        for (int i = 0; i < ttlIndices.length; i++) {
+            originalTtls[i] = readTtl(data, ttlIndices[i]);
+        }
+    }
+
+    /***
+     * @return A copy carrying the given transaction ID, with every TTL reduced by the time spent in the cache.
+     */
+    byte[] toResponse(int transactionId, long nowNanos) {
+        byte[] response = data.clone();
+        response[0] = (byte) (transactionId >>> 8);
+        response[1] = (byte) transactionId;
+        long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(nowNanos - storedAtNanos);
+        for (int i = 0; i < ttlIndices.length; i++) {
+            writeTtl(response, ttlIndices[i], Math.max(0, originalTtls[i] - elapsedSeconds));
+        }
+        return response;
+    }
+
+    /***
+     * Like toResponse(transactionId, nowNanos), but carrying the request's own question as well, for entries that
+     * answer more than the one question they were stored under (e.g. an NXDOMAIN covers every type of its name).
+     * @return The response, or null if the request's question cannot take the stored one's place.
+     */
+    byte[] toResponse(DNSPacketHandler request, long nowNanos) {
+        byte[] response = toResponse(request.getTransactionId(), nowNanos);
+        byte[] query = request.getData();
+        int questionEnd = new DNSMessageView().wrap(ByteBuffer.wrap(query)).questionEnd();
+        // names compressed in the rest of the response point into the question, so it must keep its length
+        if (questionEnd <= 0 || questionEnd != new DNSMessageView().wrap(ByteBuffer.wrap(response)).questionEnd()) {
+            return null;
+        }
+        System.arraycopy(query, DNSMessageView.LENGTH_OF_HEADER, response, DNSMessageView.LENGTH_OF_HEADER,
+                questionEnd - DNSMessageView.LENGTH_OF_HEADER);
+        return response;
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    int[] getTtlIndices() {
+        return ttlIndices;
+    }
+
+    long getStoredAtNanos() {
+        return storedAtNanos;
+    }
+
+    long getExpiresAtNanos() {
+        return expiresAtNanos;
+    }
+
+    void recordHit() {
+        hitCount++;
+    }
+
+    /***
+     * @return Whether it has been served at least minHits times, and has at most refreshPercent of its life left.
+     */
+    boolean isRefreshDue(long nowNanos, int refreshPercent, int minHits) {
+        if (hitCount < minHits) return false;
+        long lifetimeNanos = expiresAtNanos - storedAtNanos;
+        long remainingNanos = expiresAtNanos - nowNanos;
+        return remainingNanos > 0 && remainingNanos <= lifetimeNanos / 100 * refreshPercent;
+    }
+
+    private static long readTtl(byte[] data, int index) {
+        return ((long) (data[index] & 0xff) << 24) | ((data[index + 1] & 0xff) << 16)
+                | ((data[index + 2] & 0xff) << 8) | (data[index + 3] & 0xff);
+    }
+
+    private static void writeTtl(byte[] data, int index, long ttl) {
+        data[index] = (byte) (ttl >>> 24);
+        data[index + 1] = (byte) (ttl >>> 16);
+        data[index + 2] = (byte) (ttl >>> 8);
+        data[index + 3] = (byte) ttl;
+    }
+}
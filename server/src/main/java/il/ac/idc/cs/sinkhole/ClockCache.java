@@ -0,0 +1,164 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * A bounded, concurrent map with expiring entries and CLOCK (second chance) eviction.
+ * Lookups are lock-free and only set a reference bit; inserts take a short lock to move the clock hand.
+ * Expired entries are never returned, and they are the first to go once the hand sweeps over them.
+ * @param <K> The key type.
+ * @param <V> The cached value type.
+ */
+final class ClockCache<K, V> {
+
+    private final ConcurrentHashMap<K, Node<K, V>> entries;
+    private final Object[] ring;
+    private final Object clockLock = new Object();
+    private int filledSlots;
+    private int clockHand;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ClockCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        entries = new ConcurrentHashMap<>(capacity * 4 / 3 + 1);
+        ring = new Object[capacity];
+    }
+
+    /***
+     * @return The live value for the key, or null if it is missing or expired.
+     */
+    V get(K key, long nowNanos) {
+        Node<K, V> node = entries.get(key);
+        if (node == null || node.expiresAtNanos - nowNanos <= 0) {
+            misses.increment();
+            return null;
+        }
+        if (!node.referenced) node.referenced = true;
+        hits.increment();
+        return node.value;
+    }
+
+    /***
+     * Same as get, but leaves the hit/miss counters alone, for callers that keep their own.
+     */
+    V find(K key, long nowNanos) {
+        Node<K, V> node = entries.get(key);
+        if (node == null || node.expiresAtNanos - nowNanos <= 0) return null;
+        if (!node.referenced) node.referenced = true;
+        return node.value;
+    }
+
+    /***
+     * Same as get, but leaves the hit/miss counters and reference bits alone.
+     */
+    V peek(K key, long nowNanos) {
+        Node<K, V> node = entries.get(key);
+        return (node == null || node.expiresAtNanos - nowNanos <= 0) ? null : node.value;
+    }
+
+    void put(K key, V value, long expiresAtNanos) {
+        synchronized (clockLock) {
+            Node<K, V> existing = entries.get(key);
+            int slot;
+            if (existing != null) {
+                slot = existing.slot;
+            } else if (filledSlots < ring.length) {
+                slot = filledSlots++;
+            } else {
+                slot = evictOne(System.nanoTime());
+            }
+            Node<K, V> node = new Node<>(key, value, expiresAtNanos, slot);
+            ring[slot] = node;
+            entries.put(key, node);
+        }
+    }
+
+    void remove(K key) {
+        synchronized (clockLock) {
+            Node<K, V> node = entries.remove(key);
+            if (node == null) return;
+            // Keep the ring dense by moving the last filled slot into the hole.
+            int last = --filledSlots;
+            @SuppressWarnings("unchecked")
+            Node<K, V> moved = (Node<K, V>) ring[last];
+            ring[last] = null;
+            if (moved != node) {
+                moved.slot = node.slot;
+                ring[node.slot] = moved;
+            }
+            if (clockHand >= filledSlots) clockHand = 0;
+        }
+    }
+
+    /***
+     * Advances the hand until it finds an expired or unreferenced entry, clearing reference bits on the way.
+     * Must be called with the clock lock held.
+     * @return The freed slot.
+     */
+    private int evictOne(long nowNanos) {
+        while (true) {
+            @SuppressWarnings("unchecked")
+            Node<K, V> candidate = (Node<K, V>) ring[clockHand];
+            int slot = clockHand;
+            clockHand = (clockHand + 1) % ring.length;
+            if (candidate.referenced && candidate.expiresAtNanos - nowNanos > 0) {
+                candidate.referenced = false;
+                continue;
+            }
+            entries.remove(candidate.key, candidate);
+            evictions.increment();
+            return slot;
+        }
+    }
+
+    /***
+     * Visits every live entry, e.g. to snapshot the cache. Entries put or removed meanwhile may or may not be seen.
+     */
+    void forEachLive(long nowNanos, EntryVisitor<K, V> visitor) {
+        for (Node<K, V> node : entries.values()) {
+            if (node.expiresAtNanos - nowNanos > 0) visitor.visit(node.key, node.value, node.expiresAtNanos);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int capacity() {
+        return ring.length;
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    interface EntryVisitor<K, V> {
+        void visit(K key, V value, long expiresAtNanos);
+    }
+
+    private static final class Node<K, V> {
+        private final K key;
+        private final V value;
+        private final long expiresAtNanos;
+        private int slot;
+        private volatile boolean referenced;
+
+        private Node(K key, V value, long expiresAtNanos, int slot) {
+            this.key = key;
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+            this.slot = slot;
+        }
+    }
+}
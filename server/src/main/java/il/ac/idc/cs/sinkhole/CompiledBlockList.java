@@ -0,0 +1,198 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/***
+ * A blocklist compiled by BlockListCompiler, memory-mapped and queried off-heap.
+ * Startup costs one mmap instead of parsing the text, and several server instances on one machine share the same
+ * pages through the page cache.
+ * Every rule is stored as one long: a hash of the rule's name (its labels hashed right to left, so a name's hash
+ * extends its parent's) with the rule's flags in the low bits. The longs are sorted, and a bucket index over their
+ * top bits narrows each lookup to a short binary search.
+ * Rules and their precedence are those of LabelRuleMatcher. Names are matched by 59-bit hash, so a false match is
+ * possible in principle but vanishingly rare.
+ * File layout (big-endian): magic, version, entry count, bucket bits, then (1 << bucket bits) + 1 bucket starts,
+ * padding to 8 bytes, and the sorted entries.
+ */
+public class CompiledBlockList extends LabelRuleMatcher {
+
+    public static final int MAGIC = 0x534B424C; // "SKBL"
+    public static final int VERSION = 1;
+    public static final int BUCKET_BITS = 16;
+    static final int HEADER_SIZE = 16;
+
+    static final long FLAGS_MASK = RULES_MASK;
+    private static final long HASH_MASK = 0x7fffffffffffffffL & ~FLAGS_MASK;
+    static final long HASH_SEED = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ByteBuffer mapped;
+    private final int entryCount;
+    private final int bucketBits;
+    private final int bucketsOffset;
+    private final int entriesOffset;
+
+    private CompiledBlockList(ByteBuffer mapped) throws IOException {
+        this.mapped = mapped;
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a compiled block list");
+        }
+        if (mapped.getInt(4) != VERSION) {
+            throw new IOException("Unsupported compiled block list version " + mapped.getInt(4));
+        }
+        entryCount = mapped.getInt(8);
+        bucketBits = mapped.getInt(12);
+        if (entryCount < 0 || bucketBits < 1 || bucketBits > 24) {
+            throw new IOException("Corrupt compiled block list header");
+        }
+        bucketsOffset = HEADER_SIZE;
+        entriesOffset = entriesOffset(bucketBits);
+        if ((long) entriesOffset + (long) entryCount * Long.BYTES != mapped.capacity()) {
+            throw new IOException("Compiled block list size does not match its header");
+        }
+        int previousStart = 0;
+        for (int bucket = 0; bucket <= 1 << bucketBits; bucket++) {
+            int start = mapped.getInt(bucketsOffset + bucket * Integer.BYTES);
+            if (start < previousStart || start > entryCount) {
+                throw new IOException("Corrupt compiled block list bucket index");
+            }
+            previousStart = start;
+        }
+        if (previousStart != entryCount) throw new IOException("Corrupt compiled block list bucket index");
+    }
+
+    /***
+     * Maps a compiled block list read-only. The mapping stays valid after the channel is closed.
+     */
+    public static CompiledBlockList open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CompiledBlockList(mapped);
+        }
+    }
+
+    /***
+     * @return Whether the file starts with the compiled block list magic, as opposed to being a text list.
+     */
+    public static boolean isCompiled(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // Keep reading until the magic is complete or the file ends.
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    long rootState() {
+        return HASH_SEED;
+    }
+
+    @Override
+    long childState(long state, CharSequence name, int start, int end) {
+        return hashLabel(state, name, start, end);
+    }
+
+    @Override
+    long childState(long state, DNSMessageView message, int labelOffset) {
+        return hashLabel(state, message, labelOffset);
+    }
+
+    @Override
+    int rules(long state) {
+        return find(state);
+    }
+
+    /***
+     * @param rule - A rule in LabelRuleMatcher's syntax.
+     * @return The rule as an entry of the compiled file (its name's key and its flag), or -1 if it is invalid.
+     */
+    static long ruleEntry(String rule) {
+        String trimmed = rule.trim();
+        String name = ruleName(trimmed);
+        int end = nameEnd(name);
+        if (end < 0 || !hasValidLabels(name, end)) return -1;
+        long hash = HASH_SEED;
+        int labelEnd = end;
+        while (labelEnd > 0) {
+            int labelStart = name.lastIndexOf('.', labelEnd - 1) + 1;
+            hash = hashLabel(hash, name, labelStart, labelEnd);
+            labelEnd = labelStart - 1;
+        }
+        return key(hash) | ruleFlag(trimmed);
+    }
+
+    /***
+     * @return The flags stored for the name's hash, or 0 if it has no rule.
+     */
+    private int find(long hash) {
+        long key = key(hash);
+        int bucket = bucket(key, bucketBits);
+        int low = mapped.getInt(bucketsOffset + bucket * Integer.BYTES);
+        int high = mapped.getInt(bucketsOffset + (bucket + 1) * Integer.BYTES) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long entry = mapped.getLong(entriesOffset + middle * Long.BYTES);
+            long entryKey = entry & ~FLAGS_MASK;
+            if (entryKey < key) {
+                low = middle + 1;
+            } else if (entryKey > key) {
+                high = middle - 1;
+            } else {
+                return (int) (entry & FLAGS_MASK);
+            }
+        }
+        return 0;
+    }
+
+    static int entriesOffset(int bucketBits) {
+        int bucketsEnd = HEADER_SIZE + ((1 << bucketBits) + 1) * Integer.BYTES;
+        return (bucketsEnd + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    /***
+     * @return The finished, non-negative hash with its flag bits cleared.
+     */
+    static long key(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash & HASH_MASK;
+    }
+
+    static int bucket(long key, int bucketBits) {
+        return (int) (key >>> (63 - bucketBits));
+    }
+
+    /***
+     * Extends the hash of a name's parent with one more label, lowercased.
+     */
+    static long hashLabel(long hash, CharSequence name, int start, int end) {
+        hash = (hash ^ (end - start)) * FNV_PRIME;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (DNSMessageView.toLowerAscii(name.charAt(i)) & 0xffff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static long hashLabel(long hash, DNSMessageView message, int labelOffset) {
+        int length = message.readUnsignedByte(labelOffset);
+        hash = (hash ^ length) * FNV_PRIME;
+        for (int i = 1; i <= length; i++) {
+            hash = (hash ^ DNSMessageView.toLowerAscii(message.readUnsignedByte(labelOffset + i))) * FNV_PRIME;
+        }
+        return hash;
+    }
+}
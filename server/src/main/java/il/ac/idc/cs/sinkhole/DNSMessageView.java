@@ -0,0 +1,462 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.nio.ByteBuffer;
+
+/***
+ * A flyweight over a DNS message that sits in a ByteBuffer. Nothing is copied or decoded up front: header
+ * fields, names and records are read (and flags written) in place, so one view and its cursors can be reused
+ * for every message that passes through the same buffer.
+ * Offsets are relative to the start of the message. Malformed input never throws from the name and record
+ * walkers; they report -1 (or false) instead, and compression pointers are only followed backwards, a bounded
+ * number of times, so a crafted pointer loop cannot trap us.
+ */
+public final class DNSMessageView {
+
+    public static final int LENGTH_OF_HEADER = 12;
+    public static final int MAX_NAME_LENGTH = 255;
+    public static final int MAX_LABELS = 128;
+    public static final int SECTION_QUESTION = 0;
+    public static final int SECTION_ANSWER = 1;
+    public static final int SECTION_AUTHORITY = 2;
+    public static final int SECTION_ADDITIONAL = 3;
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+    public static final int RCODE_REFUSED = 5;
+    private static final int INDEX_OF_FLAGS_BYTE = 2;
+    private static final int INDEX_OF_RCODE_BYTE = 3;
+    private static final int INDEX_OF_QD_CNT = 4;
+    private static final int POINTER_MASK = 0xc0;
+    private static final int MAX_POINTER_JUMPS = 32;
+    private static final int SIZE_OF_QUESTION_FIXED = 4;
+    private static final int SIZE_OF_RR_FIXED = 10;
+
+    private ByteBuffer buffer;
+    private int base;
+    private int length;
+    private final int[] sectionStarts = new int[4];
+    private final RecordCursor[] cursors = new RecordCursor[4];
+
+    public DNSMessageView() {
+        for (int section = 0; section < cursors.length; section++) {
+            cursors[section] = new RecordCursor(this, section);
+        }
+    }
+
+    /***
+     * Points the view at the message between the buffer's position and its limit.
+     */
+    public DNSMessageView wrap(ByteBuffer messageBuffer) {
+        return wrap(messageBuffer, messageBuffer.position(), messageBuffer.remaining());
+    }
+
+    public DNSMessageView wrap(ByteBuffer messageBuffer, int messageStart, int messageLength) {
+        buffer = messageBuffer;
+        base = messageStart;
+        length = messageLength;
+        sectionStarts[SECTION_QUESTION] = (messageLength >= LENGTH_OF_HEADER) ? LENGTH_OF_HEADER : -1;
+        for (int section = SECTION_ANSWER; section < sectionStarts.length; section++) {
+            sectionStarts[section] = 0;
+        }
+        return this;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean hasHeader() {
+        return length >= LENGTH_OF_HEADER;
+    }
+
+    // ----- Raw access -----
+
+    public int readUnsignedByte(int offset) {
+        return buffer.get(base + offset) & 0xff;
+    }
+
+    public int readUnsignedShort(int offset) {
+        return buffer.getShort(base + offset) & 0xffff;
+    }
+
+    public long readUnsignedInt(int offset) {
+        return buffer.getInt(base + offset) & 0xffffffffL;
+    }
+
+    public void writeShort(int offset, int value) {
+        buffer.putShort(base + offset, (short) value);
+    }
+
+    public void writeInt(int offset, long value) {
+        buffer.putInt(base + offset, (int) value);
+    }
+
+    // ----- Header -----
+
+    public int getTransactionId() {
+        return readUnsignedShort(0);
+    }
+
+    public void setTransactionId(int transactionId) {
+        writeShort(0, transactionId);
+    }
+
+    public boolean isResponse() {
+        return (readUnsignedByte(INDEX_OF_FLAGS_BYTE) & 0x80) != 0;
+    }
+
+    public int getOpcode() {
+        return (readUnsignedByte(INDEX_OF_FLAGS_BYTE) >>> 3) & 0x0f;
+    }
+
+    public boolean isTruncated() {
+        return (readUnsignedByte(INDEX_OF_FLAGS_BYTE) & 0x02) != 0;
+    }
+
+    public int getResponseCode() {
+        return readUnsignedByte(INDEX_OF_RCODE_BYTE) & 0x0f;
+    }
+
+    public void setResponseBit(boolean isResponse) {
+        setFlag(INDEX_OF_FLAGS_BYTE, 0x80, isResponse);
+    }
+
+    public void setAuthAnswerBit(boolean isAuth) {
+        setFlag(INDEX_OF_FLAGS_BYTE, 0x04, isAuth);
+    }
+
+    public void setTruncatedBit(boolean isTruncated) {
+        setFlag(INDEX_OF_FLAGS_BYTE, 0x02, isTruncated);
+    }
+
+    public void setRecursionDesiredBit(boolean isRecursionDesired) {
+        setFlag(INDEX_OF_FLAGS_BYTE, 0x01, isRecursionDesired);
+    }
+
+    public void setRecursionAvailableBit(boolean hasRecursion) {
+        setFlag(INDEX_OF_RCODE_BYTE, 0x80, hasRecursion);
+    }
+
+    public void setResponseCode(int responseCode) {
+        int rcodeByte = readUnsignedByte(INDEX_OF_RCODE_BYTE);
+        buffer.put(base + INDEX_OF_RCODE_BYTE, (byte) ((rcodeByte & 0xf0) | (responseCode & 0x0f)));
+    }
+
+    private void setFlag(int index, int mask, boolean isSet) {
+        int flags = readUnsignedByte(index);
+        buffer.put(base + index, (byte) (isSet ? (flags | mask) : (flags & ~mask)));
+    }
+
+    public int getSectionCount(int section) {
+        return readUnsignedShort(INDEX_OF_QD_CNT + 2 * section);
+    }
+
+    public void setSectionCount(int section, int count) {
+        writeShort(INDEX_OF_QD_CNT + 2 * section, count);
+    }
+
+    // ----- Names -----
+
+    /***
+     * @return The offset right after the name as it is stored here (a pointer counts as two bytes),
+     * or -1 if the name runs past the message or uses a reserved label type.
+     */
+    public int skipName(int offset) {
+        while (offset < length) {
+            int labelLength = readUnsignedByte(offset);
+            if (labelLength == 0) return offset + 1;
+            if ((labelLength & POINTER_MASK) == POINTER_MASK) return (offset + 2 <= length) ? offset + 2 : -1;
+            if ((labelLength & POINTER_MASK) != 0) return -1;
+            offset += labelLength + 1;
+        }
+        return -1;
+    }
+
+    /***
+     * Follows compression pointers until the next label. The jump count travels with the offset in one long,
+     * so walking two names at once needs no scratch objects.
+     * @param offset - Where the next label or pointer is stored.
+     * @param jumps - The pointers followed so far in this name.
+     * @return The offset of the next label's length byte (zero at the end of the name) in the low 32 bits and
+     * the updated jump count in the high 32 bits, or -1 if the pointer chain is malformed.
+     */
+    private long resolveLabel(int offset, int jumps) {
+        while (true) {
+            if (offset >= length) return -1;
+            int labelLength = readUnsignedByte(offset);
+            if ((labelLength & POINTER_MASK) == 0) {
+                return (offset + 1 + labelLength <= length) ? ((long) jumps << 32) | offset : -1;
+            }
+            if ((labelLength & POINTER_MASK) != POINTER_MASK || offset + 2 > length) return -1;
+            int target = readUnsignedShort(offset) & 0x3fff;
+            // Only backward pointers, and not too many of them.
+            if (target >= offset || ++jumps > MAX_POINTER_JUMPS) return -1;
+            offset = target;
+        }
+    }
+
+    /***
+     * Collects where each label of a name starts, following compression pointers.
+     * @param labelOffsets - Receives the offset of every label's length byte, leftmost label first.
+     * @return The number of labels (zero for the root), or -1 if the name is malformed or too long.
+     */
+    public int labelOffsets(int offset, int[] labelOffsets) {
+        int jumps = 0;
+        int count = 0;
+        int wireLength = 1;
+        while (true) {
+            long resolved = resolveLabel(offset, jumps);
+            if (resolved < 0) return -1;
+            offset = (int) resolved;
+            jumps = (int) (resolved >>> 32);
+            int labelLength = readUnsignedByte(offset);
+            if (labelLength == 0) return count;
+            wireLength += labelLength + 1;
+            if (count == labelOffsets.length || wireLength > MAX_NAME_LENGTH) return -1;
+            labelOffsets[count++] = offset;
+            offset += labelLength + 1;
+        }
+    }
+
+    /***
+     * Compares a name in this message with a name in another (or the same) message, ignoring ASCII case.
+     */
+    public boolean nameEquals(int offset, DNSMessageView other, int otherOffset) {
+        int jumps = 0;
+        int otherJumps = 0;
+        int wireLength = 0;
+        while (wireLength <= MAX_NAME_LENGTH) {
+            long resolved = resolveLabel(offset, jumps);
+            long otherResolved = other.resolveLabel(otherOffset, otherJumps);
+            if (resolved < 0 || otherResolved < 0) return false;
+            offset = (int) resolved;
+            jumps = (int) (resolved >>> 32);
+            otherOffset = (int) otherResolved;
+            otherJumps = (int) (otherResolved >>> 32);
+            int labelLength = readUnsignedByte(offset);
+            if (labelLength != other.readUnsignedByte(otherOffset)) return false;
+            if (labelLength == 0) return true;
+            for (int i = 1; i <= labelLength; i++) {
+                if (toLowerAscii(readUnsignedByte(offset + i)) != toLowerAscii(other.readUnsignedByte(otherOffset + i))) {
+                    return false;
+                }
+            }
+            wireLength += labelLength + 1;
+            offset += labelLength + 1;
+            otherOffset += labelLength + 1;
+        }
+        return false;
+    }
+
+    /***
+     * Compares a name in this message with a dotted name (no trailing dot, "" for the root), ignoring ASCII case.
+     */
+    public boolean nameEquals(int offset, CharSequence name) {
+        int jumps = 0;
+        int position = 0;
+        while (true) {
+            long resolved = resolveLabel(offset, jumps);
+            if (resolved < 0) return false;
+            offset = (int) resolved;
+            jumps = (int) (resolved >>> 32);
+            int labelLength = readUnsignedByte(offset);
+            if (labelLength == 0) return position >= name.length();
+            if (position > 0) {
+                if (position >= name.length() || name.charAt(position) != '.') return false;
+                position++;
+            }
+            if (position + labelLength > name.length()) return false;
+            for (int i = 1; i <= labelLength; i++) {
+                if (toLowerAscii(readUnsignedByte(offset + i)) != toLowerAscii(name.charAt(position++))) return false;
+            }
+            offset += labelLength + 1;
+        }
+    }
+
+    /***
+     * Decodes a name into dotted form. This allocates, so it is meant for the resolver, not the hot path.
+     * @return The builder, or null if the name is malformed.
+     */
+    public StringBuilder appendName(int offset, StringBuilder out) {
+        int jumps = 0;
+        int labels = 0;
+        while (true) {
+            long resolved = resolveLabel(offset, jumps);
+            if (resolved < 0 || labels > MAX_LABELS) return null;
+            offset = (int) resolved;
+            jumps = (int) (resolved >>> 32);
+            int labelLength = readUnsignedByte(offset);
+            if (labelLength == 0) return out;
+            if (labels++ > 0) out.append('.');
+            for (int i = 1; i <= labelLength; i++) {
+                out.append((char) readUnsignedByte(offset + i));
+            }
+            offset += labelLength + 1;
+        }
+    }
+
+    public String readName(int offset) {
+        StringBuilder name = appendName(offset, new StringBuilder());
+        return (name == null) ? null : name.toString();
+    }
+
+    static int toLowerAscii(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    // ----- Sections -----
+
+    /***
+     * @return The offset of the first record of a section, or -1 if an earlier section is malformed.
+     * Computed once per wrapped message.
+     */
+    public int sectionStart(int section) {
+        if (sectionStarts[section] != 0) return sectionStarts[section];
+        int previousStart = sectionStart(section - 1);
+        if (previousStart < 0) return sectionStarts[section] = -1;
+        int offset = previousStart;
+        int count = getSectionCount(section - 1);
+        for (int i = 0; i < count && offset >= 0; i++) {
+            offset = skipName(offset);
+            if (offset < 0) break;
+            offset += (section - 1 == SECTION_QUESTION) ? SIZE_OF_QUESTION_FIXED : SIZE_OF_RR_FIXED + rdLengthAt(offset);
+            if (offset > length) offset = -1;
+        }
+        return sectionStarts[section] = offset;
+    }
+
+    private int rdLengthAt(int fixedPartOffset) {
+        return (fixedPartOffset + SIZE_OF_RR_FIXED <= length) ? readUnsignedShort(fixedPartOffset + 8) : length;
+    }
+
+    /***
+     * @return The offset right after the question section, which is where a response may be cut, or -1.
+     */
+    public int questionEnd() {
+        return sectionStart(SECTION_ANSWER);
+    }
+
+    /***
+     * @return The end of the last record, i.e. the size of the message as its counts describe it, or -1.
+     */
+    public int messageEnd() {
+        RecordCursor cursor = records(SECTION_ADDITIONAL);
+        while (cursor.next()) {
+            // walk to the end
+        }
+        return cursor.isMalformed() ? -1 : cursor.endOffset();
+    }
+
+    /***
+     * @return This view's cursor for the section, rewound to the section's first record.
+     */
+    public RecordCursor records(int section) {
+        return cursors[section].rewind();
+    }
+
+    /***
+     * A reusable iterator over the records of one section. Call next() before reading each record.
+     */
+    public static final class RecordCursor {
+        private final DNSMessageView view;
+        private final int section;
+        private int remaining;
+        private int nextOffset;
+        private boolean malformed;
+        private int nameOffset;
+        private int type;
+        private int dnsClass;
+        private int ttlOffset;
+        private int rdLength;
+        private int rdataOffset;
+
+        private RecordCursor(DNSMessageView view, int section) {
+            this.view = view;
+            this.section = section;
+        }
+
+        private RecordCursor rewind() {
+            nextOffset = view.sectionStart(section);
+            malformed = nextOffset < 0;
+            remaining = malformed ? 0 : view.getSectionCount(section);
+            return this;
+        }
+
+        public boolean next() {
+            if (remaining == 0) return false;
+            int offset = view.skipName(nextOffset);
+            boolean isQuestion = section == SECTION_QUESTION;
+            int fixedSize = isQuestion ? SIZE_OF_QUESTION_FIXED : SIZE_OF_RR_FIXED;
+            if (offset < 0 || offset + fixedSize > view.length) {
+                malformed = true;
+                remaining = 0;
+                return false;
+            }
+            nameOffset = nextOffset;
+            type = view.readUnsignedShort(offset);
+            dnsClass = view.readUnsignedShort(offset + 2);
+            if (isQuestion) {
+                ttlOffset = -1;
+                rdLength = 0;
+                rdataOffset = offset + fixedSize;
+            } else {
+                ttlOffset = offset + 4;
+                rdLength = view.readUnsignedShort(offset + 8);
+                rdataOffset = offset + fixedSize;
+                if (rdataOffset + rdLength > view.length) {
+                    malformed = true;
+                    remaining = 0;
+                    return false;
+                }
+            }
+            nextOffset = rdataOffset + rdLength;
+            remaining--;
+            return true;
+        }
+
+        public boolean isMalformed() {
+            return malformed;
+        }
+
+        public int nameOffset() {
+            return nameOffset;
+        }
+
+        public int type() {
+            return type;
+        }
+
+        public int dnsClass() {
+            return dnsClass;
+        }
+
+        public int ttlOffset() {
+            return ttlOffset;
+        }
+
+        public long ttl() {
+            return view.readUnsignedInt(ttlOffset);
+        }
+
+        public int rdLength() {
+            return rdLength;
+        }
+
+        public int rdataOffset() {
+            return rdataOffset;
+        }
+
+        /***
+         * @return The offset right after the current record (or the section start before the first next()).
+         */
+        public int endOffset() {
+            return nextOffset;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/***
+ * The resolver's decoded picture of a DNS message: its question, the referral or SOA in its authority section,
+ * and the addresses found in its answer and additional sections.
+ * All the reading is done through a DNSMessageView, so lengths and counts are unsigned and malformed input is
+ * rejected with an IllegalArgumentException rather than an out-of-bounds read. The hot path of the server works
+ * on the view directly and does not need this class.
+ */
+public class DNSPacketHandler {
+
+    private static final int BYTE_COUNT = 8;
+    public static final int LENGTH_OF_HEADER = DNSMessageView.LENGTH_OF_HEADER;
+    public static final short SIZE_OF_CRR_TYPE = 2;
+    public static final short SIZE_OF_CRRC_CLASS = 2;
+    public static final short SIZE_OF_CRR_TTL = 4;
+    public static final short SIZE_OF_CRD_LENGTH = 2;
+    public static final short INDEX_OF_CQR_FLAG_BYTE = 2;
+    public static final short INDEX_OF_CR_CODE_BYTE = 3;
+    public static final short INDEX_OF_ANS_CNT_BYTE = 6;
+    public static final short INDEX_OF_CNs_CNT_BYTE = 8;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_NS = 2;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_AAAA = 28;
+    public static final int CLASS_IN = 1;
+    private static final int SIZE_OF_SOA_MINIMUM = 4;
+    private final int ANSWER_CNT;
+    private final int AUTH_CNT;
+    private final int RESPONSE_CODE;
+    private final int QUERY_TYPE;
+    private final int QUERY_CLASS;
+    private final String primaryAuthServerName;
+    private final String queriedName;
+    private final List<Integer> ttlIndices = new ArrayList<>();
+    private final List<String> authorityNames = new ArrayList<>();
+    private String referralZone;
+    private long referralTtl = Long.MAX_VALUE;
+    private String soaZone;
+    private long negativeTtl = -1;
+    private long minAnswerTtl = Long.MAX_VALUE;
+    private final List<InetAddress> answerAddresses = new ArrayList<>();
+    private final Map<String, List<InetAddress>> glueAddresses = new HashMap<>();
+    private long glueTtl = Long.MAX_VALUE;
+    private final byte[] rawDNSData;
+    private final DNSMessageView messageView = new DNSMessageView();
+
+    /***
+     * Here we begin processing a captured packet to extract its DNS contents
+     * @param packetFromUDP
+     */
+    public DNSPacketHandler(DatagramPacket packetFromUDP) {
+        DNSMessageView receivedView = new DNSMessageView().wrap(
+                ByteBuffer.wrap(packetFromUDP.getData()), packetFromUDP.getOffset(), packetFromUDP.getLength());
+        DNSMessageView.RecordCursor question = receivedView.records(DNSMessageView.SECTION_QUESTION);
+        if (!receivedView.hasHeader() || !question.next()) {
+            throw new IllegalArgumentException("Malformed DNS message: no question");
+        }
+        queriedName = receivedView.readName(question.nameOffset());
+        QUERY_TYPE = question.type();
+        QUERY_CLASS = question.dnsClass();
+        ANSWER_CNT = receivedView.getSectionCount(DNSMessageView.SECTION_ANSWER);
+        AUTH_CNT = receivedView.getSectionCount(DNSMessageView.SECTION_AUTHORITY);
+        RESPONSE_CODE = receivedView.getResponseCode();
+        readAnswerSection(receivedView);
+        primaryAuthServerName = readAuthoritySection(receivedView);
+        int endOfAuthority = receivedView.sectionStart(DNSMessageView.SECTION_ADDITIONAL);
+        // read the glue before the additional RRs are gone.
+        if (!authorityNames.isEmpty()) readGlueRecords(receivedView);
+        // remove additional RRs.
+        rawDNSData = Arrays.copyOfRange(packetFromUDP.getData(),
+                packetFromUDP.getOffset(), packetFromUDP.getOffset() + endOfAuthority);
+        messageView.wrap(ByteBuffer.wrap(rawDNSData));
+        messageView.setSectionCount(DNSMessageView.SECTION_ADDITIONAL, 0);
+    }
+
+    public byte[] getData() {
+        return rawDNSData;
+    }
+
+    public String getQDomainName() {
+        return queriedName;
+    }
+
+    public int getQType() {
+        return QUERY_TYPE;
+    }
+
+    public int getQClass() {
+        return QUERY_CLASS;
+    }
+
+    public int getTransactionId() {
+        return messageView.getTransactionId();
+    }
+
+    public int getResponseCode() {
+        return RESPONSE_CODE;
+    }
+
+    public int getAnswerCount() {
+        return ANSWER_CNT;
+    }
+
+    public boolean isTruncated() {
+        return messageView.isTruncated();
+    }
+
+    /***
+     * @return The smallest TTL among the answer records, or -1 if there are none.
+     */
+    public long getMinAnswerTtl() {
+        return (ANSWER_CNT == 0) ? -1 : minAnswerTtl;
+    }
+
+    /***
+     * The TTLs of the answer and authority records that remain in getData(), so a cached copy can age them.
+     * @return The index of every such TTL field.
+     */
+    public int[] getTtlIndices() {
+        int[] indices = new int[ttlIndices.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = ttlIndices.get(i);
+        }
+        return indices;
+    }
+
+    public void setResponseBit(boolean hasResponse) {
+        messageView.setResponseBit(hasResponse);
+    }
+
+    public void setRecursionBit(boolean hasRecursion) {
+        messageView.setRecursionAvailableBit(hasRecursion);
+    }
+
+    public void setAuthAnswerBit(boolean isAuth) {
+        messageView.setAuthAnswerBit(isAuth);
+    }
+
+    public void setRCodeToNXDomain() {
+        messageView.setResponseCode(DNSMessageView.RCODE_NAME_ERROR);
+    }
+
+    public void setRCodeToServFail() {
+        messageView.setResponseCode(DNSMessageView.RCODE_SERVER_FAILURE);
+    }
+
+    public boolean isFinalAnswer() {
+        boolean isQuery = !messageView.isResponse();
+        return (ANSWER_CNT > 0 || RESPONSE_CODE != 0 || primaryAuthServerName == null) & !isQuery;
+    }
+
+    public String getAuthority() {
+        return primaryAuthServerName;
+    }
+
+    /***
+     * @return The name servers of the referral in the authority section, empty if there is none.
+     */
+    public List<String> getAuthorityNames() {
+        return authorityNames;
+    }
+
+    /***
+     * @return The zone the authority section delegates to, or null if it holds no NS records.
+     */
+    public String getReferralZone() {
+        return referralZone;
+    }
+
+    /***
+     * @return The smallest TTL among the referral's NS records, or -1 if there is no referral.
+     */
+    public long getReferralTtl() {
+        return (referralZone == null) ? -1 : referralTtl;
+    }
+
+    /***
+     * @return The zone of the SOA in the authority section, or null if there is none.
+     */
+    public String getSoaZone() {
+        return soaZone;
+    }
+
+    /***
+     * @return The lesser of the authority SOA's TTL and its MINIMUM field, or -1 if there is no SOA.
+     */
+    public long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    public boolean isNameError() {
+        return RESPONSE_CODE == DNSMessageView.RCODE_NAME_ERROR;
+    }
+
+    /***
+     * @return Whether this is a NODATA answer: the name exists, but has no records of the queried type.
+     */
+    public boolean isNoData() {
+        return RESPONSE_CODE == 0 && ANSWER_CNT == 0 && referralZone == null && soaZone != null;
+    }
+
+    /***
+     * @return The A/AAAA addresses found in the answer section.
+     */
+    public List<InetAddress> getAnswerAddresses() {
+        return answerAddresses;
+    }
+
+    /***
+     * @return The glue addresses of the referral's name servers, keyed by lower-case name server name.
+     */
+    public Map<String, List<InetAddress>> getGlueAddresses() {
+        return glueAddresses;
+    }
+
+    /***
+     * @return The smallest TTL among the kept glue records, or -1 if there are none.
+     */
+    public long getGlueTtl() {
+        return glueAddresses.isEmpty() ? -1 : glueTtl;
+    }
+
+    /***
+     * Builds a fresh, non-recursive query, for questions the resolver asks on its own behalf.
+     * @param name - The name to ask about.
+     * @param type - The record type to ask for.
+     * @return The packet of the query.
+     */
+    public static DatagramPacket buildQuery(String name, int type) {
+        int wireNameLength = name.isEmpty() ? 1 : name.length() + 2;
+        byte[] query = new byte[LENGTH_OF_HEADER + wireNameLength + SIZE_OF_CRR_TYPE + SIZE_OF_CRRC_CLASS];
+        int transactionId = ThreadLocalRandom.current().nextInt(0x10000);
+        query[0] = (byte) (transactionId >>> BYTE_COUNT);
+        query[1] = (byte) transactionId;
+        // one question
+        query[5] = 1;
+        int index = LENGTH_OF_HEADER;
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                query[index++] = (byte) label.length();
+                for (int i = 0; i < label.length(); i++) {
+                    query[index++] = (byte) label.charAt(i);
+                }
+            }
+        }
+        query[index++] = 0;
+        query[index++] = (byte) (type >>> BYTE_COUNT);
+        query[index++] = (byte) type;
+        query[index++] = 0;
+        query[index++] = CLASS_IN;
+        return new DatagramPacket(query, index);
+    }
+
+    private void readAnswerSection(DNSMessageView receivedView) {
+        DNSMessageView.RecordCursor answer = receivedView.records(DNSMessageView.SECTION_ANSWER);
+        while (answer.next()) {
+            ttlIndices.add(answer.ttlOffset());
+            minAnswerTtl = Math.min(minAnswerTtl, answer.ttl());
+            InetAddress address = extractAddress(receivedView, answer);
+            if (address != null) answerAddresses.add(address);
+        }
+        if (answer.isMalformed()) throw new IllegalArgumentException("Malformed DNS message: answer section");
+    }
+
+    /***
+     * Walks the authority section, keeping every NS record of a referral along with the zone it delegates,
+     * and the SOA of a negative answer along with the TTL a negative cache may keep it (RFC 2308).
+     * @return The first name server of the referral, or null if there is none.
+     */
+    private String readAuthoritySection(DNSMessageView receivedView) {
+        DNSMessageView.RecordCursor authority = receivedView.records(DNSMessageView.SECTION_AUTHORITY);
+        while (authority.next()) {
+            ttlIndices.add(authority.ttlOffset());
+            if (authority.type() == TYPE_NS) {
+                String nameServer = receivedView.readName(authority.rdataOffset());
+                if (nameServer == null) continue;
+                referralZone = receivedView.readName(authority.nameOffset());
+                referralTtl = Math.min(referralTtl, authority.ttl());
+                authorityNames.add(nameServer);
+            } else if (authority.type() == TYPE_SOA && authority.rdLength() >= SIZE_OF_SOA_MINIMUM) {
+                // The SOA MINIMUM field closes the RDATA, after the two names and four other counters.
+                soaZone = receivedView.readName(authority.nameOffset());
+                long soaMinimum = receivedView.readUnsignedInt(
+                        authority.rdataOffset() + authority.rdLength() - SIZE_OF_SOA_MINIMUM);
+                negativeTtl = Math.min(authority.ttl(), soaMinimum);
+            }
+        }
+        if (authority.isMalformed()) throw new IllegalArgumentException("Malformed DNS message: authority section");
+        return authorityNames.isEmpty() ? null : authorityNames.get(0);
+    }
+
+    /***
+     * Keeps the A/AAAA records of the additional section that belong to the referral's name servers.
+     * Addresses for any other name are not ours to trust, so they are dropped.
+     */
+    private void readGlueRecords(DNSMessageView receivedView) {
+        DNSMessageView.RecordCursor additional = receivedView.records(DNSMessageView.SECTION_ADDITIONAL);
+        while (additional.next()) {
+            if (additional.dnsClass() != CLASS_IN) continue;
+            InetAddress address = extractAddress(receivedView, additional);
+            if (address == null) continue;
+            String nameServer = findReferralNameServer(receivedView, additional.nameOffset());
+            if (nameServer == null) continue;
+            glueAddresses.computeIfAbsent(nameServer, name -> new ArrayList<>()).add(address);
+            glueTtl = Math.min(glueTtl, additional.ttl());
+        }
+    }
+
+    private String findReferralNameServer(DNSMessageView receivedView, int nameOffset) {
+        for (String authorityName : authorityNames) {
+            if (receivedView.nameEquals(nameOffset, authorityName)) return authorityName.toLowerCase(Locale.ROOT);
+        }
+        return null;
+    }
+
+    private static InetAddress extractAddress(DNSMessageView receivedView, DNSMessageView.RecordCursor record) {
+        int rdLength = record.rdLength();
+        boolean isAddress = (record.type() == TYPE_A && rdLength == 4) || (record.type() == TYPE_AAAA && rdLength == 16);
+        if (!isAddress) return null;
+        byte[] address = new byte[rdLength];
+        for (int i = 0; i < rdLength; i++) {
+            address[i] = (byte) receivedView.readUnsignedByte(record.rdataOffset() + i);
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Remembers the zone cuts we learn from referrals: which name servers serve a zone, and for how long.
+ * A new resolution asks the deepest cached zone above its name instead of starting at the root.
+ */
+public class DelegationCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(2);
+
+    private final ClockCache<String, Delegation> cache;
+
+    public DelegationCache(int capacity) {
+        cache = new ClockCache<>(capacity);
+    }
+
+    /***
+     * Records a referral. It is only kept if the delegated zone encloses the name we asked about, and lies strictly
+     * below the zone of the server that sent it, so a server can neither plant delegations for zones outside its
+     * answer nor take over its own parent zone, or a sibling's.
+     * @param queriedName - The name we were resolving when the referral arrived.
+     * @param parentZone - The zone of the server that sent the referral; "" for a root server.
+     * @param referral - The parsed referral.
+     * @return Whether the referral was accepted.
+     */
+    public boolean put(String queriedName, String parentZone, DNSPacketHandler referral) {
+        String zone = referral.getReferralZone();
+        if (zone == null || referral.getAuthorityNames().isEmpty()) return false;
+        zone = zone.toLowerCase(Locale.ROOT);
+        if (!isDelegationBelow(queriedName, parentZone, zone)) return false;
+        long ttlSeconds = Math.min(referral.getReferralTtl(), MAX_TTL_SECONDS);
+        if (ttlSeconds <= 0) return false;
+        Delegation delegation = new Delegation(zone, List.copyOf(referral.getAuthorityNames()));
+        cache.put(zone, delegation, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        return true;
+    }
+
+    /***
+     * @return Whether a server of parentZone may delegate zone, on the way down to name.
+     */
+    static boolean isDelegationBelow(String name, String parentZone, String zone) {
+        name = name.toLowerCase(Locale.ROOT);
+        parentZone = parentZone.toLowerCase(Locale.ROOT);
+        zone = zone.toLowerCase(Locale.ROOT);
+        return !zone.isEmpty() && !zone.equals(parentZone) && isInZone(zone, parentZone) && isSameOrSubdomain(name, zone);
+    }
+
+    /***
+     * Looks up the name itself, then each parent zone in turn, stopping before the root.
+     * @return The deepest live delegation enclosing the name, or null if we only know the root.
+     */
+    public Delegation findClosest(String name) {
+        String zone = name.toLowerCase(Locale.ROOT);
+        long now = System.nanoTime();
+        while (!zone.isEmpty()) {
+            Delegation delegation = cache.peek(zone, now);
+            if (delegation != null) {
+                cache.get(zone, now);
+                return delegation;
+            }
+            int nextLabel = zone.indexOf('.');
+            zone = (nextLabel < 0) ? "" : zone.substring(nextLabel + 1);
+        }
+        return null;
+    }
+
+    /***
+     * Like isSameOrSubdomain, but with "" standing for the root, which holds every name.
+     */
+    static boolean isInZone(String name, String zone) {
+        return zone.isEmpty() || isSameOrSubdomain(name, zone);
+    }
+
+    static boolean isSameOrSubdomain(String name, String zone) {
+        return name.equals(zone) || (name.endsWith(zone) && name.charAt(name.length() - zone.length() - 1) == '.');
+    }
+
+    void forEachEntry(ClockCache.EntryVisitor<String, Delegation> visitor) {
+        cache.forEachLive(System.nanoTime(), visitor);
+    }
+
+    /***
+     * Puts back a delegation read from a snapshot (CacheSnapshot).
+     */
+    void restore(String zone, List<String> nameServers, long expiresAtNanos) {
+        cache.put(zone, new Delegation(zone, List.copyOf(nameServers)), expiresAtNanos);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    public static final class Delegation {
+        private final String zone;
+        private final List<String> nameServers;
+
+        private Delegation(String zone, List<String> nameServers) {
+            this.zone = zone;
+            this.nameServers = nameServers;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<String> getNameServers() {
+            return nameServers;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package il.ac.idc.cs.sinkhole;
+
+/***
+ * Decides whether a domain name is blocked. Implemented by the in-heap DomainTrie and by the memory-mapped
+ * CompiledBlockList, which follow the same rule semantics.
+ */
+public interface DomainMatcher {
+
+    /***
+     * @param domain - A dotted name, e.g. "ads.example.com".
+     */
+    boolean isBlocked(CharSequence domain);
+
+    /***
+     * Same as isBlocked(CharSequence), for a name that sits in a received message. Must not allocate.
+     * @param message - The message holding the name.
+     * @param nameOffset - Where the name starts in the message. Malformed names are never blocked.
+     */
+    boolean isBlocked(DNSMessageView message, int nameOffset);
+}
@@ -0,0 +1,251 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.Arrays;
+
+/***
+ * A blocklist kept as a trie of reversed domain labels ("com" -> "example" -> "ads"), so a whole subtree is
+ * matched as cheaply as a single name. Rules are those of LabelRuleMatcher.
+ * Every distinct label is interned once and given an ID; trie edges are (parent node, label ID) pairs in an
+ * open-addressing table, and all of it lives in primitive arrays rather than String objects.
+ * Building is not thread-safe, looking up is, once building is done.
+ */
+public class DomainTrie extends LabelRuleMatcher {
+
+    private static final int ROOT_NODE = 0;
+    private static final int NOT_FOUND = -1;
+    private static final long EMPTY_EDGE = -1L;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    // Interned labels: their bytes back to back in labelBytes, indexed by label ID.
+    private byte[] labelBytes = new byte[INITIAL_CAPACITY * 8];
+    private int labelBytesUsed;
+    private int[] labelStarts = new int[INITIAL_CAPACITY];
+    private byte[] labelLengths = new byte[INITIAL_CAPACITY];
+    private int labelCount;
+    // Open-addressing index over the labels, holding label ID + 1 (0 is an empty slot).
+    private int[] labelSlots = new int[INITIAL_CAPACITY * 2];
+
+    // Edges keyed by (parent node << 32 | label ID), valued by the child node.
+    private long[] edgeKeys = newEdgeKeys(INITIAL_CAPACITY * 2);
+    private int[] edgeChildren = new int[INITIAL_CAPACITY * 2];
+    private int edgeCount;
+
+    private byte[] nodeRules = new byte[INITIAL_CAPACITY];
+    private int nodeCount = 1;
+    private int ruleCount;
+
+    /***
+     * Adds one rule, in the syntax above. Letter case, surrounding whitespace and a trailing dot are ignored.
+     * @return Whether the rule was valid.
+     */
+    public boolean add(String rule) {
+        String trimmed = rule.trim();
+        String name = ruleName(trimmed);
+        int end = nameEnd(name);
+        if (end < 0 || !hasValidLabels(name, end)) return false;
+        int node = ROOT_NODE;
+        int labelEnd = end;
+        while (labelEnd > 0) {
+            int labelStart = name.lastIndexOf('.', labelEnd - 1) + 1;
+            node = getOrAddChild(node, internLabel(name, labelStart, labelEnd));
+            labelEnd = labelStart - 1;
+        }
+        byte flag = (byte) ruleFlag(trimmed);
+        if ((nodeRules[node] & flag) == 0) ruleCount++;
+        nodeRules[node] |= flag;
+        return true;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLabelCount() {
+        return labelCount;
+    }
+
+    @Override
+    long rootState() {
+        return ROOT_NODE;
+    }
+
+    @Override
+    long childState(long state, CharSequence name, int start, int end) {
+        int label = findLabel(name, start, end);
+        return (label == NOT_FOUND) ? NO_STATE : child((int) state, label);
+    }
+
+    @Override
+    long childState(long state, DNSMessageView message, int labelOffset) {
+        int label = findLabel(message, labelOffset);
+        return (label == NOT_FOUND) ? NO_STATE : child((int) state, label);
+    }
+
+    private long child(int node, int label) {
+        int child = findChild(node, label);
+        return (child == NOT_FOUND) ? NO_STATE : child;
+    }
+
+    @Override
+    int rules(long state) {
+        return nodeRules[(int) state];
+    }
+
+    private int findLabel(CharSequence name, int start, int end) {
+        int length = end - start;
+        if (length <= 0 || length > MAX_LABEL_LENGTH) return NOT_FOUND;
+        int hash = FNV_OFFSET;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c > 0xff) return NOT_FOUND;
+            hash = (hash ^ DNSMessageView.toLowerAscii(c)) * FNV_PRIME;
+        }
+        int mask = labelSlots.length - 1;
+        for (int slot = spread(hash) & mask; labelSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int label = labelSlots[slot] - 1;
+            if (labelLengths[label] == length && labelEquals(label, name, start)) return label;
+        }
+        return NOT_FOUND;
+    }
+
+    private int findLabel(DNSMessageView message, int labelOffset) {
+        int length = message.readUnsignedByte(labelOffset);
+        int hash = FNV_OFFSET;
+        for (int i = 1; i <= length; i++) {
+            hash = (hash ^ DNSMessageView.toLowerAscii(message.readUnsignedByte(labelOffset + i))) * FNV_PRIME;
+        }
+        int mask = labelSlots.length - 1;
+        for (int slot = spread(hash) & mask; labelSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int label = labelSlots[slot] - 1;
+            if (labelLengths[label] == length && labelEquals(label, message, labelOffset + 1)) return label;
+        }
+        return NOT_FOUND;
+    }
+
+    private boolean labelEquals(int label, CharSequence name, int start) {
+        int labelStart = labelStarts[label];
+        for (int i = 0; i < labelLengths[label]; i++) {
+            if (labelBytes[labelStart + i] != (byte) DNSMessageView.toLowerAscii(name.charAt(start + i))) return false;
+        }
+        return true;
+    }
+
+    private boolean labelEquals(int label, DNSMessageView message, int start) {
+        int labelStart = labelStarts[label];
+        for (int i = 0; i < labelLengths[label]; i++) {
+            if (labelBytes[labelStart + i] != (byte) DNSMessageView.toLowerAscii(message.readUnsignedByte(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int internLabel(CharSequence name, int start, int end) {
+        int existing = findLabel(name, start, end);
+        if (existing != NOT_FOUND) return existing;
+        int length = end - start;
+        if (labelCount == labelStarts.length) {
+            labelStarts = Arrays.copyOf(labelStarts, labelCount * 2);
+            labelLengths = Arrays.copyOf(labelLengths, labelCount * 2);
+        }
+        if (labelBytesUsed + length > labelBytes.length) {
+            labelBytes = Arrays.copyOf(labelBytes, Math.max(labelBytes.length * 2, labelBytesUsed + length));
+        }
+        int hash = FNV_OFFSET;
+        for (int i = 0; i < length; i++) {
+            int c = DNSMessageView.toLowerAscii(name.charAt(start + i));
+            labelBytes[labelBytesUsed + i] = (byte) c;
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        int label = labelCount++;
+        labelStarts[label] = labelBytesUsed;
+        labelLengths[label] = (byte) length;
+        labelBytesUsed += length;
+        if (labelCount * 2 > labelSlots.length) {
+            rehashLabels();
+        } else {
+            placeLabel(label, hash);
+        }
+        return label;
+    }
+
+    private void rehashLabels() {
+        labelSlots = new int[labelSlots.length * 2];
+        for (int label = 0; label < labelCount; label++) {
+            int hash = FNV_OFFSET;
+            for (int i = 0; i < labelLengths[label]; i++) {
+                hash = (hash ^ (labelBytes[labelStarts[label] + i] & 0xff)) * FNV_PRIME;
+            }
+            placeLabel(label, hash);
+        }
+    }
+
+    private void placeLabel(int label, int hash) {
+        int mask = labelSlots.length - 1;
+        int slot = spread(hash) & mask;
+        while (labelSlots[slot] != 0) slot = (slot + 1) & mask;
+        labelSlots[slot] = label + 1;
+    }
+
+    private int findChild(int node, int label) {
+        long key = edgeKey(node, label);
+        int mask = edgeKeys.length - 1;
+        for (int slot = spread(key) & mask; edgeKeys[slot] != EMPTY_EDGE; slot = (slot + 1) & mask) {
+            if (edgeKeys[slot] == key) return edgeChildren[slot];
+        }
+        return NOT_FOUND;
+    }
+
+    private int getOrAddChild(int node, int label) {
+        int existing = findChild(node, label);
+        if (existing != NOT_FOUND) return existing;
+        if (nodeCount == nodeRules.length) nodeRules = Arrays.copyOf(nodeRules, nodeCount * 2);
+        int child = nodeCount++;
+        if (++edgeCount * 2 > edgeKeys.length) rehashEdges();
+        placeEdge(edgeKey(node, label), child);
+        return child;
+    }
+
+    private void rehashEdges() {
+        long[] oldKeys = edgeKeys;
+        int[] oldChildren = edgeChildren;
+        edgeKeys = newEdgeKeys(oldKeys.length * 2);
+        edgeChildren = new int[oldKeys.length * 2];
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY_EDGE) placeEdge(oldKeys[slot], oldChildren[slot]);
+        }
+    }
+
+    private void placeEdge(long key, int child) {
+        int mask = edgeKeys.length - 1;
+        int slot = spread(key) & mask;
+        while (edgeKeys[slot] != EMPTY_EDGE) slot = (slot + 1) & mask;
+        edgeKeys[slot] = key;
+        edgeChildren[slot] = child;
+    }
+
+    private static long[] newEdgeKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY_EDGE);
+        return keys;
+    }
+
+    private static long edgeKey(int node, int label) {
+        return ((long) node << 32) | label;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int spread(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,76 @@
+package il.ac.idc.cs.sinkhole;
+
+/***
+ * EDNS0 (RFC 6891) as far as message size goes: the OPT pseudo-record in the additional section carries, in its
+ * class field, the largest UDP payload its sender can receive. Without one, a UDP message is limited to 512 bytes.
+ * We put an OPT on our upstream queries, so servers need not truncate their replies, and echo one to clients that
+ * sent one. No options (cookies, client subnet, ...) are sent or kept, and the DO bit is never set.
+ */
+public final class Edns0 {
+
+    public static final int TYPE_OPT = 41;
+    public static final int MIN_PAYLOAD_SIZE = 512;
+    /*** The size the DNS flag day (2020) settled on, to stay clear of IP fragmentation. */
+    public static final int DEFAULT_PAYLOAD_SIZE = 1232;
+    public static final int MAX_PAYLOAD_SIZE = 65535;
+    public static final int SIZE_OF_OPT_RECORD = 11;
+
+    private Edns0() {
+    }
+
+    /***
+     * @return The UDP payload size the OPT record of the message advertises (never below 512), or 0 if it has none.
+     */
+    public static int getRequestorPayloadSize(DNSMessageView message) {
+        DNSMessageView.RecordCursor additional = message.records(DNSMessageView.SECTION_ADDITIONAL);
+        while (additional.next()) {
+            if (additional.type() == TYPE_OPT) return Math.max(MIN_PAYLOAD_SIZE, additional.dnsClass());
+        }
+        return 0;
+    }
+
+    /***
+     * @param requestorPayloadSize - What the request's OPT advertised, or 0 if it had none.
+     * @param payloadSize - The most we are willing to send in one datagram, or 0 if EDNS0 is off.
+     * @return How large a UDP response to the request may be.
+     */
+    public static int getMaxUdpResponseSize(int requestorPayloadSize, int payloadSize) {
+        if (requestorPayloadSize == 0 || payloadSize == 0) return MIN_PAYLOAD_SIZE;
+        return Math.max(MIN_PAYLOAD_SIZE, Math.min(requestorPayloadSize, payloadSize));
+    }
+
+    /***
+     * Appends an OPT record to the end of a message, and counts it in the additional section.
+     * The caller makes sure there is room for SIZE_OF_OPT_RECORD more bytes after the message.
+     * @param payloadSize - The UDP payload size to advertise.
+     * @return The new length of the message.
+     */
+    public static int appendOptRecord(byte[] data, int offset, int length, int payloadSize) {
+        int index = offset + length;
+        // the root name, then TYPE, CLASS (the payload size), TTL (extended RCODE, version and flags, all 0), RDLENGTH
+        data[index++] = 0;
+        data[index++] = (byte) (TYPE_OPT >>> 8);
+        data[index++] = (byte) TYPE_OPT;
+        data[index++] = (byte) (payloadSize >>> 8);
+        data[index++] = (byte) payloadSize;
+        for (int i = 0; i < 6; i++) {
+            data[index++] = 0;
+        }
+        int additionalCountIndex = offset + 10;
+        int additionalCount = ((data[additionalCountIndex] & 0xff) << 8) | (data[additionalCountIndex + 1] & 0xff);
+        additionalCount++;
+        data[additionalCountIndex] = (byte) (additionalCount >>> 8);
+        data[additionalCountIndex + 1] = (byte) additionalCount;
+        return index - offset;
+    }
+
+    /***
+     * @return A copy of the query with an OPT record appended.
+     */
+    public static byte[] withOptRecord(byte[] query, int length, int payloadSize) {
+        byte[] queryWithOpt = new byte[length + SIZE_OF_OPT_RECORD];
+        System.arraycopy(query, 0, queryWithOpt, 0, length);
+        appendOptRecord(queryWithOpt, 0, length, payloadSize);
+        return queryWithOpt;
+    }
+}
@@ -0,0 +1,336 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Forwards the queries that pass the blocklist to a set of recursive resolvers, instead of walking down from the
+ * roots, so filtered traffic costs one upstream hop.
+ * Queries go out through the shared non-blocking UpstreamQueryEngine: a few long-lived sockets, on which queries to
+ * every resolver are multiplexed by transaction ID. Truncated replies are asked again over pooled TCP connections.
+ * Each query goes to the healthy resolver with the fewest queries outstanding, the one with the lower smoothed RTT
+ * breaking ties. A resolver that times out or refuses is failed over from, to the next one:
+ * 1.   A few failures in a row mark a resolver down, and it gets no queries until it answers again.
+ * 2.   Every resolver is probed (". NS") each health check interval, so a resolver that recovers is noticed.
+ * 3.   If every resolver is down, they are all tried anyway, rather than failing every query.
+ */
+public class ForwardingResolver implements Resolver, Closeable {
+
+    public static final int DEFAULT_PORT = 53;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS = 1000;
+    public static final int MAX_ATTEMPTS = 3;
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final double SRTT_WEIGHT_OF_SAMPLE = 0.3;
+    private static final int TYPE_NS = 2;
+
+    private final Upstream[] upstreams;
+    private final UpstreamQueryEngine upstreamQueryEngine;
+    private final TcpUpstreamPool tcpUpstreamPool = new TcpUpstreamPool();
+    private final ServerMetrics metrics;
+    private final long healthCheckIntervalMillis;
+    private final ThreadLocal<int[]> upstreamHops = ThreadLocal.withInitial(() -> new int[1]);
+    private final LongAdder failovers = new LongAdder();
+    private final Thread healthCheckThread;
+    private volatile int ednsPayloadSize = Edns0.DEFAULT_PAYLOAD_SIZE;
+
+    public ForwardingResolver(List<InetSocketAddress> forwarders, ServerMetrics metrics) {
+        this(forwarders, metrics, DEFAULT_TIMEOUT_MILLIS, DEFAULT_HEALTH_CHECK_INTERVAL_MILLIS);
+    }
+
+    /***
+     * Opens the upstream sockets and starts the health checks.
+     * @param forwarders - The recursive resolvers to forward to; must not be empty.
+     * @param metrics - Where upstream hops and timeouts are recorded, and each resolver's metrics registered.
+     * @param timeoutMillis - How long one resolver may take to answer before the query is failed over.
+     * @param healthCheckIntervalMillis - How often every resolver is probed.
+     */
+    public ForwardingResolver(List<InetSocketAddress> forwarders, ServerMetrics metrics, long timeoutMillis,
+                              long healthCheckIntervalMillis) {
+        if (forwarders.isEmpty()) throw new IllegalArgumentException("There must be at least one forwarder");
+        this.metrics = metrics;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        upstreams = new Upstream[forwarders.size()];
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream upstream = new Upstream(forwarders.get(i), i);
+            upstreams[i] = upstream;
+            metrics.registerCounter("forwarder_" + i + "_queries", upstream.queries::sum);
+            metrics.registerCounter("forwarder_" + i + "_failures", upstream.failures::sum);
+            metrics.registerGauge("forwarder_" + i + "_up", () -> upstream.isHealthy ? 1 : 0);
+        }
+        metrics.registerCounter("forwarder_failovers", failovers::sum);
+        // in forwarding mode there is no recursive client, so these count our pool
+        metrics.registerCounter("upstream_tcp_queries", tcpUpstreamPool::getQueryCount);
+        metrics.registerCounter("upstream_tcp_connections_opened", tcpUpstreamPool::getOpenedConnectionCount);
+        try {
+            // The resolvers fail over among themselves, so the engine does not retry.
+            upstreamQueryEngine = new UpstreamQueryEngine(UpstreamQueryEngine.DEFAULT_CHANNEL_COUNT, timeoutMillis, 0);
+        } catch (IOException e) {
+            System.err.printf("Exception occurred while trying to open UDP channels to the forwarders. " +
+                    "exception = %s\r\n", e);
+            throw new UncheckedIOException(e);
+        }
+        healthCheckThread = new Thread(this::checkHealth, "forwarder-health-check");
+        healthCheckThread.setDaemon(true);
+        healthCheckThread.start();
+        System.out.printf("Forwarding Resolver is forwarding to %s.\r\n", forwarders);
+    }
+
+    /***
+     * Parses a comma separated list of resolvers, each an address with an optional port:
+     *     192.0.2.1, 192.0.2.2:5353, [2001:db8::1]:53, 2001:db8::2
+     */
+    public static List<InetSocketAddress> parseForwarders(String forwarders) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String forwarder : forwarders.split(",")) {
+            String trimmed = forwarder.trim();
+            if (trimmed.isEmpty()) continue;
+            String host = trimmed;
+            int port = DEFAULT_PORT;
+            if (trimmed.startsWith("[")) {
+                int closing = trimmed.indexOf(']');
+                if (closing < 0) throw new IllegalArgumentException("Malformed forwarder " + trimmed);
+                host = trimmed.substring(1, closing);
+                if (closing + 1 < trimmed.length()) {
+                    if (trimmed.charAt(closing + 1) != ':') throw new IllegalArgumentException("Malformed forwarder " + trimmed);
+                    port = Integer.parseInt(trimmed.substring(closing + 2));
+                }
+            } else if (trimmed.indexOf(':') >= 0 && trimmed.indexOf(':') == trimmed.lastIndexOf(':')) {
+                host = trimmed.substring(0, trimmed.indexOf(':'));
+                port = Integer.parseInt(trimmed.substring(trimmed.indexOf(':') + 1));
+            }
+            try {
+                addresses.add(new InetSocketAddress(InetAddress.getByName(host), port));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Unknown forwarder " + trimmed, e);
+            }
+        }
+        return addresses;
+    }
+
+    /***
+     * @param ednsPayloadSize - The UDP payload size forwarded queries advertise, or 0 to send them without EDNS0.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    public int getHealthyUpstreamCount() {
+        int healthy = 0;
+        for (Upstream upstream : upstreams) {
+            if (upstream.isHealthy) healthy++;
+        }
+        return healthy;
+    }
+
+    public long getFailoverCount() {
+        return failovers.sum();
+    }
+
+    /***
+     * Forwards the query, with its additional records stripped and our own EDNS0 OPT record in their place, and
+     * recursion desired. Each attempt goes to a resolver not tried yet for this query.
+     */
+    @Override
+    public DNSPacketHandler getResponsePacket(DatagramPacket packetToQuery) {
+        upstreamHops.get()[0] = 0;
+        byte[] query = new DNSPacketHandler(packetToQuery).getData();
+        new DNSMessageView().wrap(ByteBuffer.wrap(query)).setRecursionDesiredBit(true);
+        if (ednsPayloadSize > 0) query = Edns0.withOptRecord(query, query.length, ednsPayloadSize);
+        boolean[] isTried = new boolean[upstreams.length];
+        int attempts = Math.min(MAX_ATTEMPTS, upstreams.length);
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            Upstream upstream = select(isTried);
+            isTried[upstream.index] = true;
+            if (attempt > 0) failovers.increment();
+            DNSPacketHandler response = forward(query, upstream);
+            if (response != null) {
+                response.setRecursionBit(true);
+                response.setAuthAnswerBit(false);
+                return response;
+            }
+        }
+        return RecursiveDNSClient.getServerFailurePacket(packetToQuery);
+    }
+
+    @Override
+    public int getUpstreamHops() {
+        return upstreamHops.get()[0];
+    }
+
+    /***
+     * The healthy resolver with the fewest outstanding queries, then the lowest SRTT, among those not tried yet.
+     * If none of those is healthy, the untried one with the fewest outstanding queries.
+     */
+    private Upstream select(boolean[] isTried) {
+        Upstream best = null;
+        for (Upstream upstream : upstreams) {
+            if (isTried[upstream.index]) continue;
+            if (best == null || isBetter(upstream, best)) best = upstream;
+        }
+        return best;
+    }
+
+    private static boolean isBetter(Upstream candidate, Upstream best) {
+        if (candidate.isHealthy != best.isHealthy) return candidate.isHealthy;
+        int candidateOutstanding = candidate.outstanding.get();
+        int bestOutstanding = best.outstanding.get();
+        if (candidateOutstanding != bestOutstanding) return candidateOutstanding < bestOutstanding;
+        return candidate.srttMicros < best.srttMicros;
+    }
+
+    /***
+     * @return The resolver's response, or null if it did not answer, refused, or sent something unreadable.
+     */
+    private DNSPacketHandler forward(byte[] query, Upstream upstream) {
+        if (QueryLog.TRACE) System.out.printf("Forwarding Resolver is forwarding a query to %s.\r\n", upstream.address);
+        upstream.queries.increment();
+        upstream.outstanding.incrementAndGet();
+        metrics.countUpstreamQuery();
+        upstreamHops.get()[0]++;
+        long sentAtNanos = System.nanoTime();
+        byte[] reply;
+        try {
+            reply = upstreamQueryEngine.query(query, query.length, upstream.address).join();
+        } catch (CompletionException e) {
+            metrics.countUpstreamTimeout();
+            upstream.recordFailure();
+            System.err.printf("Exception occurred while Forwarding Resolver was waiting for %s. exception = %s\r\n",
+                    upstream.address, e.getCause());
+            return null;
+        } finally {
+            upstream.outstanding.decrementAndGet();
+        }
+        metrics.recordStage(ServerMetrics.STAGE_UPSTREAM_HOP, sentAtNanos);
+        DNSMessageView replyView = new DNSMessageView().wrap(ByteBuffer.wrap(reply));
+        // a resolver that refuses us is no healthier than one that does not answer, however fast it refuses
+        if (isRefused(replyView)) {
+            upstream.recordFailure();
+            return null;
+        }
+        upstream.recordRtt(System.nanoTime() - sentAtNanos);
+        if (replyView.hasHeader() && replyView.isTruncated()) {
+            reply = forwardOverTcp(query, upstream);
+            if (reply == null) return null;
+            replyView.wrap(ByteBuffer.wrap(reply));
+            if (isRefused(replyView)) {
+                upstream.recordFailure();
+                return null;
+            }
+        }
+        try {
+            return new DNSPacketHandler(new DatagramPacket(reply, reply.length));
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Exception occurred in Forwarding Resolver, " +
+                    "while parsing a response from %s. exception = %s\r\n", upstream.address, e);
+            return null;
+        }
+    }
+
+    private static boolean isRefused(DNSMessageView replyView) {
+        return replyView.hasHeader() && replyView.getResponseCode() == DNSMessageView.RCODE_REFUSED;
+    }
+
+    private byte[] forwardOverTcp(byte[] query, Upstream upstream) {
+        metrics.countUpstreamQuery();
+        upstreamHops.get()[0]++;
+        long sentAtNanos = System.nanoTime();
+        try {
+            byte[] reply = tcpUpstreamPool.query(query, query.length, upstream.address);
+            metrics.recordStage(ServerMetrics.STAGE_UPSTREAM_HOP, sentAtNanos);
+            return reply;
+        } catch (IOException e) {
+            metrics.countUpstreamTimeout();
+            System.err.printf("Exception occurred while Forwarding Resolver was asking %s over TCP. " +
+                    "exception = %s\r\n", upstream.address, e);
+            return null;
+        }
+    }
+
+    /***
+     * Probes every resolver once per interval. A probe is an ordinary query for the root's name servers, which
+     * any recursive resolver answers from its cache; any reply but REFUSED counts as healthy.
+     */
+    private void checkHealth() {
+        byte[] probe = DNSPacketHandler.buildQuery("", TYPE_NS).getData();
+        new DNSMessageView().wrap(ByteBuffer.wrap(probe)).setRecursionDesiredBit(true);
+        try {
+            while (true) {
+                Thread.sleep(healthCheckIntervalMillis);
+                for (Upstream upstream : upstreams) {
+                    long sentAtNanos = System.nanoTime();
+                    CompletableFuture<byte[]> reply = upstreamQueryEngine.query(probe, probe.length, upstream.address);
+                    reply.whenComplete((data, failure) -> {
+                        if (failure != null || data.length < DNSMessageView.LENGTH_OF_HEADER
+                                || (data[3] & 0x0f) == DNSMessageView.RCODE_REFUSED) {
+                            upstream.recordFailure();
+                        } else {
+                            upstream.recordRtt(System.nanoTime() - sentAtNanos);
+                        }
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        healthCheckThread.interrupt();
+        upstreamQueryEngine.close();
+        tcpUpstreamPool.close();
+    }
+
+    /***
+     * A resolver, and what we know of its health and speed.
+     */
+    private static final class Upstream {
+        private final InetSocketAddress address;
+        private final int index;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final LongAdder queries = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private volatile boolean isHealthy = true;
+        // racy updates only blur the average a little
+        private volatile double srttMicros;
+
+        private Upstream(InetSocketAddress address, int index) {
+            this.address = address;
+            this.index = index;
+        }
+
+        private void recordRtt(long rttNanos) {
+            double rttMicros = TimeUnit.NANOSECONDS.toMicros(rttNanos);
+            srttMicros = (srttMicros == 0) ? rttMicros : srttMicros + SRTT_WEIGHT_OF_SAMPLE * (rttMicros - srttMicros);
+            consecutiveFailures.set(0);
+            if (!isHealthy) {
+                isHealthy = true;
+                System.out.printf("Forwarding Resolver is sending queries to %s again.\r\n", address);
+            }
+        }
+
+        private void recordFailure() {
+            failures.increment();
+            if (consecutiveFailures.incrementAndGet() >= MAX_CONSECUTIVE_FAILURES && isHealthy) {
+                isHealthy = false;
+                System.err.printf("Forwarding Resolver marked %s down, after %d failures in a row.\r\n",
+                        address, MAX_CONSECUTIVE_FAILURES);
+            }
+        }
+    }
+}
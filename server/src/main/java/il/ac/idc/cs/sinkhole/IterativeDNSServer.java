@@ -0,0 +1,639 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class IterativeDNSServer {
+
+    /***
+     * Where a response goes: back out of the UDP socket, or onto the TCP connection its query came in on.
+     */
+    public interface ResponseSink {
+        void send(DatagramPacket responsePacket) throws IOException;
+
+        /***
+         * @param requestorPayloadSize - What the query's OPT record advertised, or 0 if it had none.
+         * @return How large a response this way may be, before it has to be truncated.
+         */
+        int getMaxResponseSize(int requestorPayloadSize);
+    }
+
+    private final List<InetAddress> rootServerAddresses;
+    private final int upstreamPort;
+    private List<InetSocketAddress> forwarders;
+    private int maxHedgesPerResolution = RecursiveDNSClient.DEFAULT_MAX_HEDGES_PER_RESOLUTION;
+    private RecursiveDNSClient recursiveDNSClient;
+    private Resolver resolver;
+    private final int serverSendToPort;
+    public static final int DNS_UDP_PACKET_SIZE = 1024;
+
+    public BlockListEnforcer blockListEnforcer;
+    private final AnswerCache answerCache;
+    private final NegativeCache negativeCache;
+    private final ExecutorService queryExecutor;
+    private final int maxInFlightQueries;
+    private int receiveShardCount = 1;
+    private final SingleFlight<QuestionKey, byte[]> upstreamResolutions = new SingleFlight<>();
+    private final ServerMetrics metrics = new ServerMetrics();
+    private QueryLog queryLog = QueryLog.disabled();
+    private Prefetcher prefetcher;
+    private Path cacheSnapshotPath;
+    private long cacheSnapshotIntervalSeconds;
+    private int ednsPayloadSize = Edns0.DEFAULT_PAYLOAD_SIZE;
+    private TcpDNSListener tcpListener;
+    private final LongAdder truncatedResponses = new LongAdder();
+
+    public IterativeDNSServer(int listenPort, BlockListEnforcer blockListEnforcer, int maxInFlightQueries,
+                              List<InetAddress> rootServerAddresses) {
+        this(listenPort, blockListEnforcer, maxInFlightQueries, rootServerAddresses,
+                RecursiveDNSClient.DNS_CLIENT_SENT_TO_PORT);
+    }
+
+    public IterativeDNSServer(int listenPort, BlockListEnforcer blockListEnforcer, int maxInFlightQueries,
+                              List<InetAddress> rootServerAddresses, int upstreamPort) {
+        serverSendToPort = listenPort;
+        this.blockListEnforcer = blockListEnforcer;
+        this.rootServerAddresses = rootServerAddresses;
+        this.upstreamPort = upstreamPort;
+        answerCache = new AnswerCache(AnswerCache.DEFAULT_CAPACITY);
+        negativeCache = new NegativeCache(NegativeCache.DEFAULT_CAPACITY);
+        registerCounters();
+        queryExecutor = newQueryExecutor();
+        this.maxInFlightQueries = maxInFlightQueries;
+    }
+
+    /***
+     * Each query is resolved on its own virtual thread when the runtime offers them (Java 21+).
+     * Older runtimes fall back to a cached pool; the in-flight semaphore bounds it either way.
+     * @return The executor that resolves received queries.
+     */
+    private static ExecutorService newQueryExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public AnswerCache getAnswerCache() {
+        return answerCache;
+    }
+
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public SingleFlight<QuestionKey, byte[]> getUpstreamResolutions() {
+        return upstreamResolutions;
+    }
+
+    public long getBlockedQueryCount() {
+        return metrics.getBlockedQueries();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /***
+     * Sets where answered queries are logged, before the server starts. Nothing is logged by default.
+     */
+    public void setQueryLog(QueryLog queryLog) {
+        this.queryLog = queryLog;
+        metrics.registerCounter("query_log_written_records", queryLog::getWrittenRecordCount);
+        metrics.registerCounter("query_log_dropped_records", queryLog::getDroppedRecordCount);
+    }
+
+    /***
+     * Turns on refreshing popular answers ahead of expiry, before the server starts. It is off by default.
+     */
+    public void setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+        metrics.registerCounter("prefetches_scheduled", prefetcher::getScheduledPrefetchCount);
+        metrics.registerCounter("prefetches_over_budget", prefetcher::getOverBudgetPrefetchCount);
+        metrics.registerCounter("prefetches_rejected", prefetcher::getRejectedPrefetchCount);
+    }
+
+    /***
+     * Keeps the caches in a snapshot file, before the server starts. Start() restores them from it before it opens
+     * any listener, and from then on it is rewritten every interval, and once more when the JVM shuts down.
+     * Nothing is kept by default.
+     */
+    public void setCacheSnapshot(Path path, long intervalSeconds) {
+        cacheSnapshotPath = path;
+        cacheSnapshotIntervalSeconds = intervalSeconds;
+    }
+
+    /***
+     * Sets the UDP payload size we advertise in EDNS0, to upstream servers and to clients, before the server
+     * starts. It is also the most we send a client in one datagram. 0 turns EDNS0 off.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        if (ednsPayloadSize != 0
+                && (ednsPayloadSize < Edns0.MIN_PAYLOAD_SIZE || ednsPayloadSize > Edns0.MAX_PAYLOAD_SIZE)) {
+            throw new IllegalArgumentException("The EDNS0 payload size must be 0, or between 512 and 65535");
+        }
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /***
+     * Forwards the queries that miss the caches to these recursive resolvers, instead of resolving them iteratively
+     * from the roots, before the server starts. The blocklist and the caches work as they do in iterative mode.
+     */
+    public void setForwarders(List<InetSocketAddress> forwarders) {
+        if (forwarders.isEmpty()) throw new IllegalArgumentException("There must be at least one forwarder");
+        this.forwarders = forwarders;
+    }
+
+    /***
+     * Sets how many hedged upstream queries one resolution may send, before the server starts. 0 turns hedging off.
+     */
+    public void setMaxHedgesPerResolution(int maxHedgesPerResolution) {
+        if (maxHedgesPerResolution < 0) throw new IllegalArgumentException("The hedge cap must not be negative");
+        this.maxHedgesPerResolution = maxHedgesPerResolution;
+    }
+
+    /***
+     * Sets how many UDP sockets share the listen port, each with its own receive loop, before the server starts.
+     * More than one needs SO_REUSEPORT (Linux 3.9+, recent BSDs), with which the kernel spreads clients over them.
+     */
+    public void setReceiveShardCount(int receiveShardCount) {
+        if (receiveShardCount < 1) throw new IllegalArgumentException("There must be at least one receive shard");
+        this.receiveShardCount = receiveShardCount;
+    }
+
+    private void registerCounters() {
+        metrics.registerCounter("answer_cache_hits", answerCache::getHitCount);
+        metrics.registerCounter("answer_cache_misses", answerCache::getMissCount);
+        metrics.registerCounter("answer_cache_evictions", answerCache::getEvictionCount);
+        metrics.registerCounter("negative_cache_hits", negativeCache::getHitCount);
+        metrics.registerCounter("negative_cache_misses", negativeCache::getMissCount);
+        metrics.registerCounter("upstream_resolutions", upstreamResolutions::getLeaderCount);
+        metrics.registerCounter("coalesced_resolutions", upstreamResolutions::getCoalescedCount);
+        metrics.registerCounter("truncated_responses", truncatedResponses::sum);
+    }
+
+    /***
+     * The DNS server is busy-waiting, in each receive shard's loop:
+     * 1.   Listening to port 53, harvesting raw packets into a pooled buffer.
+     * 2.   Reading the query in place, and dropping anything that is not a well-formed query.
+     * 3.   Checking if it can be accessed via the enforcer, and answering blocked names in place.
+     * 4.   Handing the rest to their own thread, which prepares and sends a Packet response.
+     * Steps 1-3 allocate nothing. There is one buffer per in-flight permit, so once the limit is reached we stop
+     * reading, leaving the backlog to the socket's receive buffer.
+     * The first shard's loop runs on the calling thread, and the others on threads of their own. The blocklist,
+     * caches and resolver are shared by all of them.
+     * TCP is listened to on the same port, by a listener of its own, whose queries take the same steps.
+     * If the caches are kept in a snapshot, they are restored before either listener opens, so the first queries
+     * after a restart already find them warm.
+     * The resolver is built here, once the mode is known, so a forwarding server never opens the sockets and the
+     * selector thread of an iterative client it would not use.
+     */
+    public void Start() {
+        openResolver();
+        restoreCaches();
+        ReceiveShard[] receiveShards = openReceiveShards();
+        if (receiveShards == null) return;
+        startTcpListener();
+        for (int i = 1; i < receiveShards.length; i++) {
+            new Thread(receiveShards[i]::receiveLoop, "udp-receive-shard-" + i).start();
+        }
+        receiveShards[0].receiveLoop();
+    }
+
+    private void openResolver() {
+        if (forwarders != null) {
+            ForwardingResolver forwardingResolver = new ForwardingResolver(forwarders, metrics);
+            forwardingResolver.setEdnsPayloadSize(ednsPayloadSize);
+            metrics.registerGauge("forwarders_up", forwardingResolver::getHealthyUpstreamCount);
+            resolver = forwardingResolver;
+        } else {
+            recursiveDNSClient = new RecursiveDNSClient(rootServerAddresses, upstreamPort, metrics);
+            recursiveDNSClient.setEdnsPayloadSize(ednsPayloadSize);
+            recursiveDNSClient.setMaxHedgesPerResolution(maxHedgesPerResolution);
+            resolver = recursiveDNSClient;
+        }
+    }
+
+    /***
+     * A forwarding server has no delegations to keep, so its snapshot holds the answer caches only.
+     */
+    private void restoreCaches() {
+        if (cacheSnapshotPath == null) return;
+        CacheSnapshot cacheSnapshot = recursiveDNSClient == null
+                ? new CacheSnapshot(cacheSnapshotPath, answerCache, negativeCache, null, null)
+                : new CacheSnapshot(cacheSnapshotPath, answerCache, negativeCache,
+                        recursiveDNSClient.getDelegationCache(), recursiveDNSClient.getNameServerAddressCache());
+        metrics.registerGauge("cache_snapshot_loaded_entries", cacheSnapshot::getLoadedEntryCount);
+        metrics.registerGauge("cache_snapshot_expired_entries", cacheSnapshot::getExpiredEntryCount);
+        metrics.registerGauge("cache_snapshot_written_entries", cacheSnapshot::getWrittenEntryCount);
+        try {
+            cacheSnapshot.load();
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Iterative DNS Server, while restoring the caches. " +
+                    "Starting with empty caches. exception = %s\r\n", e);
+        }
+        cacheSnapshot.start(cacheSnapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /***
+     * Answers a query read off a TCP connection, on the executor thread it was handed to. It takes the same steps
+     * as a UDP query, in a buffer of its own.
+     */
+    private void handleStreamQuery(byte[] query, InetSocketAddress client, long receivedAtNanos,
+                                   ResponseSink responseSink) {
+        QueryBuffer queryBuffer = new QueryBuffer(query, responseSink);
+        queryBuffer.packet.setSocketAddress(client);
+        queryBuffer.receivedAtNanos = receivedAtNanos;
+        if (!isWellFormedQuery(queryBuffer) || isDomainWhiteList(queryBuffer)) return;
+        handleQuery(queryBuffer);
+    }
+
+    private void handleQuery(QueryBuffer queryBuffer) {
+        long parseStart = System.nanoTime();
+        DNSPacketHandler requestDNSPacketHandler = new DNSPacketHandler(queryBuffer.packet);
+        QuestionKey question = QuestionKey.of(requestDNSPacketHandler);
+        metrics.recordStage(ServerMetrics.STAGE_PARSE, parseStart);
+        if (isAnsweredFromCache(queryBuffer, requestDNSPacketHandler, question)) return;
+        preparingAndSending(queryBuffer, requestDNSPacketHandler, question);
+    }
+
+    private boolean isAnsweredFromCache(QueryBuffer queryBuffer, DNSPacketHandler requestDNSPacketHandler,
+                                        QuestionKey question) {
+        long lookupStart = System.nanoTime();
+        byte[] cachedResponse = answerCache.get(question, requestDNSPacketHandler);
+        boolean isPositiveAnswer = cachedResponse != null;
+        if (cachedResponse == null) cachedResponse = negativeCache.get(question, requestDNSPacketHandler);
+        metrics.recordStage(ServerMetrics.STAGE_CACHE_LOOKUP, lookupStart);
+        if (cachedResponse == null) return false;
+        if (isPositiveAnswer) prefetchIfDue(question);
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server is sending a cached answer to a client.");
+        sendResponsePacket(queryBuffer, new DatagramPacket(
+                cachedResponse,
+                cachedResponse.length,
+                queryBuffer.packet.getAddress(),
+                queryBuffer.packet.getPort()), QueryLog.VERDICT_CACHED, 0);
+        return true;
+    }
+
+    /***
+     * Identical questions that miss the caches together are resolved once: the first one walks the hierarchy, and
+     * the rest wait for its answer, each getting a copy with its own transaction ID and question.
+     */
+    private void preparingAndSending(QueryBuffer queryBuffer, DNSPacketHandler requestDNSPacketHandler,
+                                     QuestionKey question) {
+        DatagramPacket requestedPacket = queryBuffer.packet;
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server is preparing response.");
+        // stays -1 if another request's resolution was joined
+        int[] upstreamHops = {-1};
+        byte[] sharedResponse = upstreamResolutions.execute(question, () -> {
+            byte[] resolvedResponse = resolveAndCache(requestedPacket, question);
+            upstreamHops[0] = resolver.getUpstreamHops();
+            return resolvedResponse;
+        });
+        byte[] response = getResponseForRequest(sharedResponse, requestDNSPacketHandler);
+        DatagramPacket responseUdpPacket = new DatagramPacket(
+                response,
+                response.length,
+                requestedPacket.getAddress(),
+                requestedPacket.getPort());
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server is sending a final answer to a client.");
+        if (upstreamHops[0] < 0) {
+            sendResponsePacket(queryBuffer, responseUdpPacket, QueryLog.VERDICT_COALESCED, 0);
+        } else {
+            sendResponsePacket(queryBuffer, responseUdpPacket, QueryLog.VERDICT_RESOLVED, upstreamHops[0]);
+        }
+    }
+
+    /***
+     * A popular answer near its expiry is resolved again in the background, with a query of our own, since the
+     * client's buffer goes back to the pool. A client missing the cache meanwhile joins the refresh.
+     */
+    private void prefetchIfDue(QuestionKey question) {
+        if (prefetcher == null || question.getDnsClass() != DNSPacketHandler.CLASS_IN
+                || !answerCache.isRefreshDue(question, prefetcher.getRefreshPercent(), prefetcher.getMinHits())) {
+            return;
+        }
+        prefetcher.prefetch(question, () -> {
+            DatagramPacket refreshQuery = DNSPacketHandler.buildQuery(question.getName(), question.getType());
+            upstreamResolutions.execute(question, () -> resolveAndCache(refreshQuery, question));
+        });
+    }
+
+    private byte[] resolveAndCache(DatagramPacket requestedPacket, QuestionKey question) {
+        long resolutionStart = System.nanoTime();
+        DNSPacketHandler responseDNSPacketHandler = resolver.getResponsePacket(requestedPacket);
+        metrics.recordStage(ServerMetrics.STAGE_RESOLUTION, resolutionStart);
+        answerCache.put(question, responseDNSPacketHandler);
+        negativeCache.put(question, responseDNSPacketHandler);
+        return responseDNSPacketHandler.getData();
+    }
+
+    /***
+     * The shared response carries whichever request resolved it, so we stamp this request's transaction ID on a
+     * copy, and its question too, since the letter case of the name may differ.
+     */
+    private static byte[] getResponseForRequest(byte[] sharedResponse, DNSPacketHandler requestDNSPacketHandler) {
+        byte[] response = sharedResponse.clone();
+        DNSMessageView responseView = new DNSMessageView().wrap(ByteBuffer.wrap(response));
+        byte[] request = requestDNSPacketHandler.getData();
+        DNSMessageView requestView = new DNSMessageView().wrap(ByteBuffer.wrap(request));
+        responseView.setTransactionId(requestDNSPacketHandler.getTransactionId());
+        int questionEnd = requestView.questionEnd();
+        if (questionEnd > 0 && questionEnd == responseView.questionEnd()) {
+            System.arraycopy(request, DNSMessageView.LENGTH_OF_HEADER, response, DNSMessageView.LENGTH_OF_HEADER,
+                    questionEnd - DNSMessageView.LENGTH_OF_HEADER);
+        }
+        return response;
+    }
+
+    /***
+     * @return Whether a well-formed query (one question, QR bit clear) was received into the buffer.
+     */
+    private boolean listeningAndReceiving(DatagramSocket serverSocket, QueryBuffer queryBuffer) {
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server is listening for UDP Packets.");
+        if (!getSentPacket(serverSocket, queryBuffer.packet)) return false;
+        queryBuffer.receivedAtNanos = System.nanoTime();
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server has received a UDP Packet from Client.");
+        return isWellFormedQuery(queryBuffer);
+    }
+
+    /***
+     * Also notes the payload size the query's OPT record advertises, if it has one.
+     * @return Whether the buffer holds a well-formed query (one question, QR bit clear).
+     */
+    private boolean isWellFormedQuery(QueryBuffer queryBuffer) {
+        DNSMessageView queryView = queryBuffer.view.wrap(queryBuffer.buffer, 0, queryBuffer.packet.getLength());
+        boolean isWellFormedQuery = queryView.hasHeader() && !queryView.isResponse()
+                && queryView.getSectionCount(DNSMessageView.SECTION_QUESTION) == 1
+                && queryView.questionEnd() > 0;
+        metrics.recordStage(ServerMetrics.STAGE_RECEIVE, queryBuffer.receivedAtNanos);
+        if (!isWellFormedQuery) return false;
+        queryBuffer.requestorPayloadSize = Edns0.getRequestorPayloadSize(queryView);
+        metrics.countQuery();
+        return true;
+    }
+
+    private boolean isDomainWhiteList(QueryBuffer queryBuffer) {
+        // whitelist the dns domain.
+        long blockListStart = System.nanoTime();
+        boolean isAllowed = blockListEnforcer.isAllowed(queryBuffer.view, DNSMessageView.LENGTH_OF_HEADER);
+        metrics.recordStage(ServerMetrics.STAGE_BLOCKLIST, blockListStart);
+        if (!isAllowed) {
+            metrics.countBlockedQuery();
+            modifyAndSendPacket(queryBuffer);
+            return true;
+        }
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server has received a blocklist Domain name.");
+        return false;
+    }
+
+    /***
+     * @param queryBuffer - The query being answered, whose receipt opened its query stage, which this closes.
+     * @param verdict - How the answer was reached, one of QueryLog's VERDICT_ constants.
+     * @param upstreamHops - How many upstream queries it took.
+     */
+    private void sendResponsePacket(QueryBuffer queryBuffer, DatagramPacket responsePacket, int verdict,
+                                    int upstreamHops) {
+        long receivedAtNanos = queryBuffer.receivedAtNanos;
+        long sendStart = System.nanoTime();
+        fitResponse(queryBuffer, responsePacket);
+        try {
+            queryBuffer.responseSink.send(responsePacket);
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Iterative DNS Server, " +
+                    "while trying to send response Packet to Client. Client probably asleep. exception = %s", e);
+            return;
+        }
+        long sentAtNanos = System.nanoTime();
+        metrics.recordStage(ServerMetrics.STAGE_SEND, sendStart);
+        metrics.recordStage(ServerMetrics.STAGE_QUERY, receivedAtNanos);
+        metrics.countResponse(responsePacket.getData()[responsePacket.getOffset() + 3]);
+        queryLog.log(responsePacket, verdict, sentAtNanos - receivedAtNanos, upstreamHops);
+    }
+
+    /***
+     * A response larger than its client can take is cut down to its question, with TC set, so the client asks again
+     * over TCP. A client that sent an OPT record gets ours back, advertising our own payload size.
+     */
+    private void fitResponse(QueryBuffer queryBuffer, DatagramPacket responsePacket) {
+        boolean isEdnsResponse = ednsPayloadSize > 0 && queryBuffer.requestorPayloadSize > 0;
+        int sizeOfOpt = isEdnsResponse ? Edns0.SIZE_OF_OPT_RECORD : 0;
+        int maxResponseSize = queryBuffer.responseSink.getMaxResponseSize(
+                isEdnsResponse ? queryBuffer.requestorPayloadSize : 0);
+        byte[] data = responsePacket.getData();
+        int offset = responsePacket.getOffset();
+        int length = responsePacket.getLength();
+        if (length + sizeOfOpt > maxResponseSize) {
+            DNSMessageView responseView = new DNSMessageView().wrap(ByteBuffer.wrap(data), offset, length);
+            int questionEnd = responseView.questionEnd();
+            if (questionEnd > 0) {
+                responseView.setTruncatedBit(true);
+                responseView.setSectionCount(DNSMessageView.SECTION_ANSWER, 0);
+                responseView.setSectionCount(DNSMessageView.SECTION_AUTHORITY, 0);
+                responseView.setSectionCount(DNSMessageView.SECTION_ADDITIONAL, 0);
+                length = questionEnd;
+                truncatedResponses.increment();
+            }
+        }
+        if (isEdnsResponse) {
+            if (offset + length + sizeOfOpt > data.length) {
+                data = Arrays.copyOfRange(data, offset, offset + length + sizeOfOpt);
+                offset = 0;
+            }
+            length = Edns0.appendOptRecord(data, offset, length, ednsPayloadSize);
+        }
+        responsePacket.setData(data, offset, length);
+    }
+
+    /***
+     * Rather then building an entirely new packet, we make the necessary adjustments and send the packet.
+     * The query becomes its own response: flags are flipped in place, everything after the question is cut,
+     * and the packet goes back to the address it came from.
+     * @param queryBuffer - The buffer holding the query that is to be modified.
+     */
+    private void modifyAndSendPacket(QueryBuffer queryBuffer) {
+        DNSMessageView packetToModify = queryBuffer.view;
+        int questionEnd = packetToModify.questionEnd();
+        packetToModify.setResponseCode(DNSMessageView.RCODE_NAME_ERROR);
+        packetToModify.setResponseBit(true);
+        packetToModify.setRecursionAvailableBit(true);
+        packetToModify.setSectionCount(DNSMessageView.SECTION_ANSWER, 0);
+        packetToModify.setSectionCount(DNSMessageView.SECTION_AUTHORITY, 0);
+        packetToModify.setSectionCount(DNSMessageView.SECTION_ADDITIONAL, 0);
+        queryBuffer.packet.setLength(questionEnd);
+        if (QueryLog.TRACE) System.out.println("Iterative DNS Server is responding with malformed Domain.");
+        sendResponsePacket(queryBuffer, queryBuffer.packet, QueryLog.VERDICT_BLOCKED, 0);
+    }
+
+    /***
+     * @return Whether a packet was received.
+     */
+    private boolean getSentPacket(DatagramSocket serverSocket, DatagramPacket receivePacket) {
+        receivePacket.setLength(receivePacket.getData().length);
+        try {
+            serverSocket.receive(receivePacket);
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Iterative DNS Server, while trying to receive Packet. " +
+                    "Call Google, and switch Server connection to your mobile network. exception = %s", e);
+            return false;
+        }
+        return true;
+    }
+
+    /***
+     * Binds one socket per receive shard, all with SO_REUSEPORT if there is more than one. The in-flight limit is
+     * split between them.
+     * @return The shards, or null if the port could not be bound.
+     */
+    private ReceiveShard[] openReceiveShards() {
+        int shardCount = receiveShardCount;
+        if (shardCount > 1 && !isReusePortSupported()) {
+            System.err.printf("Iterative DNS Server cannot share a port between sockets here (no SO_REUSEPORT), " +
+                    "so it listens on one socket instead of %d.\r\n", shardCount);
+            shardCount = 1;
+        }
+        ReceiveShard[] receiveShards = new ReceiveShard[shardCount];
+        int maxInFlightPerShard = (maxInFlightQueries + shardCount - 1) / shardCount;
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                DatagramSocket serverSocket = new DatagramSocket(null);
+                if (shardCount > 1) serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                serverSocket.bind(new InetSocketAddress(serverSendToPort));
+                receiveShards[i] = new ReceiveShard(serverSocket, maxInFlightPerShard);
+                if (shardCount > 1) {
+                    metrics.registerCounter("receive_shard_" + i + "_queries", receiveShards[i].receivedQueries::sum);
+                }
+            }
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Iterative DNS Server, while initializing Server Socket. " +
+                    "If you are running an old version of Ubuntu, it will probably take you 25 hours to recognize" +
+                    "it. Please be advised. exception = %s", e);
+            for (ReceiveShard receiveShard : receiveShards) {
+                if (receiveShard != null) receiveShard.serverSocket.close();
+            }
+            return null;
+        }
+        System.out.printf("Iterative DNS Server started listening on port %s, with %d receive loop(s).\r\n",
+                serverSendToPort, shardCount);
+        return receiveShards;
+    }
+
+    private static boolean isReusePortSupported() {
+        try (DatagramSocket probe = new DatagramSocket(null)) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    private void startTcpListener() {
+        try {
+            tcpListener = new TcpDNSListener(serverSendToPort, queryExecutor, this::handleStreamQuery);
+        } catch (IOException e) {
+            System.err.printf("Exception occurred in Iterative DNS Server, while listening on TCP. " +
+                    "Truncated answers will not be retried by clients. exception = %s\r\n", e);
+            return;
+        }
+        metrics.registerCounter("tcp_connections_accepted", tcpListener::getAcceptedConnectionCount);
+        metrics.registerCounter("tcp_connections_refused", tcpListener::getRefusedConnectionCount);
+        metrics.registerCounter("tcp_queries", tcpListener::getReceivedQueryCount);
+        tcpListener.start();
+    }
+
+    /***
+     * One UDP socket on the listen port, with its own receive loop and its own pool of buffers, so the loops never
+     * contend with each other. Answers go back out of the socket their query came in on.
+     */
+    private final class ReceiveShard implements ResponseSink {
+        private final DatagramSocket serverSocket;
+        private final Semaphore inFlightQueries;
+        private final ArrayBlockingQueue<QueryBuffer> freeQueryBuffers;
+        private final LongAdder receivedQueries = new LongAdder();
+
+        private ReceiveShard(DatagramSocket serverSocket, int maxInFlightQueries) {
+            this.serverSocket = serverSocket;
+            inFlightQueries = new Semaphore(maxInFlightQueries);
+            freeQueryBuffers = new ArrayBlockingQueue<>(maxInFlightQueries);
+            for (int i = 0; i < maxInFlightQueries; i++) {
+                freeQueryBuffers.add(new QueryBuffer(new byte[DNS_UDP_PACKET_SIZE], this));
+            }
+        }
+
+        @SuppressWarnings("InfiniteLoopStatement")
+        private void receiveLoop() {
+            while (true) {
+                inFlightQueries.acquireUninterruptibly();
+                QueryBuffer queryBuffer = freeQueryBuffers.poll();
+                if (!listeningAndReceiving(serverSocket, queryBuffer)) {
+                    releaseQueryBuffer(queryBuffer);
+                    continue;
+                }
+                receivedQueries.increment();
+                if (isDomainWhiteList(queryBuffer)) {
+                    releaseQueryBuffer(queryBuffer);
+                    continue;
+                }
+                queryExecutor.execute(() -> {
+                    try {
+                        handleQuery(queryBuffer);
+                    } catch (RuntimeException e) {
+                        System.err.printf("Exception occurred in Iterative DNS Server, " +
+                                "while handling a query from %s. exception = %s\r\n",
+                                queryBuffer.packet.getAddress(), e);
+                    } finally {
+                        releaseQueryBuffer(queryBuffer);
+                    }
+                });
+            }
+        }
+
+        private void releaseQueryBuffer(QueryBuffer queryBuffer) {
+            freeQueryBuffers.add(queryBuffer);
+            inFlightQueries.release();
+        }
+
+        @Override
+        public void send(DatagramPacket responsePacket) throws IOException {
+            serverSocket.send(responsePacket);
+        }
+
+        @Override
+        public int getMaxResponseSize(int requestorPayloadSize) {
+            return Edns0.getMaxUdpResponseSize(requestorPayloadSize, ednsPayloadSize);
+        }
+    }
+
+    /***
+     * A query, with the packet and view that wrap it, and the way back to its client. UDP queries are received into
+     * pooled buffers, so receiving one allocates nothing; a TCP query comes in a buffer of its own.
+     */
+    private static final class QueryBuffer {
+        private final byte[] data;
+        private final ByteBuffer buffer;
+        private final DatagramPacket packet;
+        private final DNSMessageView view = new DNSMessageView();
+        private final ResponseSink responseSink;
+        private long receivedAtNanos;
+        private int requestorPayloadSize;
+
+        private QueryBuffer(byte[] data, ResponseSink responseSink) {
+            this.data = data;
+            this.responseSink = responseSink;
+            buffer = ByteBuffer.wrap(data);
+            packet = new DatagramPacket(data, data.length);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,148 @@
+package il.ac.idc.cs.sinkhole;
+
+/***
+ * The rule semantics shared by the blocklist matchers.
+ * Rules, one per line:
+ * example.com          blocks exactly that name.
+ * *.example.com        blocks every name below it (but not example.com itself).
+ * @@example.com        allows exactly that name, overriding a block.
+ * @@*.example.com      allows every name below it.
+ * The most specific matching rule wins, and on a tie an allow beats a block.
+ * A subclass only says how to step from a name to its child (one more label on the left) and which rules sit on
+ * a name; the walk over the queried name's labels, right to left, lives here and allocates nothing.
+ */
+public abstract class LabelRuleMatcher implements DomainMatcher {
+
+    public static final String SUBTREE_PREFIX = "*.";
+    public static final String ALLOW_PREFIX = "@@";
+
+    static final int EXACT_BLOCK = 1;
+    static final int SUBTREE_BLOCK = 2;
+    static final int EXACT_ALLOW = 4;
+    static final int SUBTREE_ALLOW = 8;
+    static final int RULES_MASK = 0xf;
+    static final int MAX_LABEL_LENGTH = 63;
+    /*** The state of a name with no rules on it or below it, where the walk may stop early. */
+    static final long NO_STATE = Long.MIN_VALUE;
+
+    private final ThreadLocal<int[]> labelOffsetsScratch =
+            ThreadLocal.withInitial(() -> new int[DNSMessageView.MAX_LABELS]);
+
+    /***
+     * @return The state of the root name, from which every walk starts.
+     */
+    abstract long rootState();
+
+    /***
+     * @return The state of the child of the given state's name, through the label name[start, end), or NO_STATE.
+     */
+    abstract long childState(long state, CharSequence name, int start, int end);
+
+    /***
+     * @return The state of the child of the given state's name, through the label at labelOffset, or NO_STATE.
+     */
+    abstract long childState(long state, DNSMessageView message, int labelOffset);
+
+    /***
+     * @return The rule flags sitting on the state's name.
+     */
+    abstract int rules(long state);
+
+    @Override
+    public boolean isBlocked(CharSequence domain) {
+        int labelEnd = nameEnd(domain);
+        if (labelEnd < 0) return false;
+        long state = rootState();
+        boolean blocked = false;
+        while (true) {
+            int labelStart = labelEnd;
+            while (labelStart > 0 && domain.charAt(labelStart - 1) != '.') labelStart--;
+            if (labelStart == labelEnd) return blocked;
+            state = childState(state, domain, labelStart, labelEnd);
+            if (state == NO_STATE) return blocked;
+            if (labelStart == 0) return exactVerdict(rules(state), blocked);
+            blocked = subtreeVerdict(rules(state), blocked);
+            labelEnd = labelStart - 1;
+        }
+    }
+
+    @Override
+    public boolean isBlocked(DNSMessageView message, int nameOffset) {
+        int[] labelOffsets = labelOffsetsScratch.get();
+        int labels = message.labelOffsets(nameOffset, labelOffsets);
+        long state = rootState();
+        boolean blocked = false;
+        for (int i = labels - 1; i >= 0; i--) {
+            state = childState(state, message, labelOffsets[i]);
+            if (state == NO_STATE) return blocked;
+            if (i == 0) return exactVerdict(rules(state), blocked);
+            blocked = subtreeVerdict(rules(state), blocked);
+        }
+        return false;
+    }
+
+    /***
+     * @return The verdict for names below a name carrying these rules.
+     */
+    static boolean subtreeVerdict(int rules, boolean inherited) {
+        if ((rules & SUBTREE_ALLOW) != 0) return false;
+        if ((rules & SUBTREE_BLOCK) != 0) return true;
+        return inherited;
+    }
+
+    /***
+     * @return The verdict for the very name carrying these rules.
+     */
+    static boolean exactVerdict(int rules, boolean inherited) {
+        if ((rules & EXACT_ALLOW) != 0) return false;
+        if ((rules & EXACT_BLOCK) != 0) return true;
+        return inherited;
+    }
+
+    /***
+     * @param rule - A trimmed rule.
+     * @return The flag the rule sets.
+     */
+    static int ruleFlag(String rule) {
+        boolean allow = rule.startsWith(ALLOW_PREFIX);
+        boolean subtree = rule.startsWith(SUBTREE_PREFIX, allow ? ALLOW_PREFIX.length() : 0);
+        return allow ? (subtree ? SUBTREE_ALLOW : EXACT_ALLOW) : (subtree ? SUBTREE_BLOCK : EXACT_BLOCK);
+    }
+
+    /***
+     * @param rule - A trimmed rule.
+     * @return The name the rule sits on, without its prefixes.
+     */
+    static String ruleName(String rule) {
+        String name = rule;
+        if (name.startsWith(ALLOW_PREFIX)) name = name.substring(ALLOW_PREFIX.length());
+        if (name.startsWith(SUBTREE_PREFIX)) name = name.substring(SUBTREE_PREFIX.length());
+        return name;
+    }
+
+    /***
+     * @return The end of the name without a single trailing dot, or -1 if nothing is left.
+     */
+    static int nameEnd(CharSequence name) {
+        int end = name.length();
+        if (end > 0 && name.charAt(end - 1) == '.') end--;
+        return (end > 0 && end <= DNSMessageView.MAX_NAME_LENGTH) ? end : -1;
+    }
+
+    /***
+     * @return Whether every label of name[0, end) is non-empty, short enough, and made of 8-bit characters.
+     */
+    static boolean hasValidLabels(CharSequence name, int end) {
+        int labelLength = 0;
+        for (int i = 0; i < end; i++) {
+            char c = name.charAt(i);
+            if (c == '.') {
+                if (labelLength == 0) return false;
+                labelLength = 0;
+            } else if (c > 0xff || ++labelLength > MAX_LABEL_LENGTH) {
+                return false;
+            }
+        }
+        return labelLength > 0;
+    }
+}
@@ -0,0 +1,89 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * A concurrent histogram with log-linear buckets, in the style of HdrHistogram: values below 64 get a bucket each,
+ * and every power of two above that is split into 32 buckets, so any recorded value is known to within about 3%.
+ * Recording is a handful of lock-free increments with no allocation, cheap enough to leave on under full load.
+ * Counts only ever grow, the way Prometheus expects them to.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BITS = 6;
+    private static final int LINEAR_BUCKETS = 1 << LINEAR_BITS;
+    private static final int SUB_BUCKET_BITS = LINEAR_BITS - 1;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /***
+     * @param value - The value to record, e.g. nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /***
+     * @return The largest value that falls in the bucket.
+     */
+    static long bucketUpperBound(int index) {
+        if (index < LINEAR_BUCKETS) return index;
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (((long) subBucket + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /***
+     * The buckets are read one by one while others may still record, so the answer is approximate under load.
+     * @param percentile - Between 0 and 100, e.g. 99.9.
+     * @return The upper bound of the bucket holding that percentile (never above the maximum), or 0 if empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return Math.min(bucketUpperBound(i), getMax());
+        }
+        return getMax();
+    }
+}
@@ -0,0 +1,73 @@
+package il.ac.idc.cs.sinkhole;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/***
+ * Serves the server's metrics to Prometheus at http://127.0.0.1:[port]/metrics, on a single thread of its own.
+ * It only listens on loopback; anything further away should scrape through a proxy, or use JMX.
+ */
+public class MetricsHttpServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 9153;
+    public static final String METRICS_PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer httpServer;
+    private final ExecutorService scrapeExecutor;
+    private final ServerMetrics metrics;
+
+    public MetricsHttpServer(ServerMetrics metrics, int port) throws IOException {
+        this.metrics = metrics;
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext(METRICS_PATH, this::handleScrape);
+        scrapeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(scrapeExecutor);
+    }
+
+    public void start() {
+        httpServer.start();
+        System.out.printf("Metrics are served at http://%s:%d%s.\r\n",
+                httpServer.getAddress().getHostString(), httpServer.getAddress().getPort(), METRICS_PATH);
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(8192);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        scrapeExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,70 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Maps name server names to their addresses, as learned from glue or from our own lookups, for as long as
+ * their TTL allows. This is what lets the resolver move from hop to hop without asking the system resolver.
+ */
+public class NameServerAddressCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(2);
+
+    private final ClockCache<String, List<InetAddress>> cache;
+
+    public NameServerAddressCache(int capacity) {
+        cache = new ClockCache<>(capacity);
+    }
+
+    public void put(String nameServer, List<InetAddress> addresses, long ttlSeconds) {
+        ttlSeconds = Math.min(ttlSeconds, MAX_TTL_SECONDS);
+        if (addresses.isEmpty() || ttlSeconds <= 0) return;
+        cache.put(nameServer.toLowerCase(Locale.ROOT), List.copyOf(addresses),
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+    }
+
+    /***
+     * Caches the glue of a referral, one entry per name server. Only glue for names within the zone of the server
+     * that sent it is kept; that server has no say over the addresses of names elsewhere.
+     * @param parentZone - The zone of the server that sent the referral; "" for a root server.
+     */
+    public void putGlue(DNSPacketHandler referral, String parentZone) {
+        long ttlSeconds = referral.getGlueTtl();
+        for (Map.Entry<String, List<InetAddress>> glue : referral.getGlueAddresses().entrySet()) {
+            if (!DelegationCache.isInZone(glue.getKey().toLowerCase(Locale.ROOT), parentZone)) continue;
+            put(glue.getKey(), glue.getValue(), ttlSeconds);
+        }
+    }
+
+    public List<InetAddress> get(String nameServer) {
+        return cache.get(nameServer.toLowerCase(Locale.ROOT), System.nanoTime());
+    }
+
+    void forEachEntry(ClockCache.EntryVisitor<String, List<InetAddress>> visitor) {
+        cache.forEachLive(System.nanoTime(), visitor);
+    }
+
+    /***
+     * Puts back addresses read from a snapshot (CacheSnapshot).
+     */
+    void restore(String nameServer, List<InetAddress> addresses, long expiresAtNanos) {
+        cache.put(nameServer, List.copyOf(addresses), expiresAtNanos);
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+}
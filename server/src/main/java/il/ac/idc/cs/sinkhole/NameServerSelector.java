@@ -0,0 +1,176 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/***
+ * Chooses which server address to ask, the way BIND and Unbound do: every server we talk to (roots and
+ * authorities alike) keeps an exponentially smoothed round-trip time (SRTT), the fastest candidate wins,
+ * and now and then a random one is explored so slow or penalised servers get a chance to recover.
+ * A timeout doubles a server's SRTT.
+ * The smoothed mean deviation kept alongside it (as in TCP's RTO) tells how long a reply may take before the
+ * server is likely slow rather than just unlucky, which is when a hedged query goes to the next-best server.
+ */
+public class NameServerSelector {
+
+    public static final double EXPLORATION_PROBABILITY = 0.05;
+    public static final long MIN_HEDGE_DELAY_MICROS = TimeUnit.MILLISECONDS.toMicros(10);
+    public static final long MAX_HEDGE_DELAY_MICROS = TimeUnit.MILLISECONDS.toMicros(500);
+    public static final long UNKNOWN_HEDGE_DELAY_MICROS = TimeUnit.MILLISECONDS.toMicros(200);
+    private static final double SRTT_WEIGHT_OF_SAMPLE = 0.3;
+    private static final double RTT_VARIANCE_WEIGHT_OF_SAMPLE = 0.25;
+    private static final long UNKNOWN_SRTT_MAX_MICROS = TimeUnit.MILLISECONDS.toMicros(32);
+    private static final long TIMEOUT_PENALTY_MICROS = TimeUnit.MILLISECONDS.toMicros(400);
+    private static final long MAX_SRTT_MICROS = TimeUnit.SECONDS.toMicros(10);
+    /*** With a normal-ish spread, SRTT plus twice the mean deviation lands around the 90th-95th percentile. */
+    private static final int HEDGE_DEVIATIONS = 2;
+    private static final int MAX_TRACKED_SERVERS = 100000;
+    private static final long STALE_AFTER_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final ConcurrentHashMap<InetAddress, ServerStats> serverStats = new ConcurrentHashMap<>();
+
+    /***
+     * @param candidates - The addresses that can answer the question; must not be empty.
+     * @return The address to ask.
+     */
+    public InetAddress select(List<InetAddress> candidates) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (candidates.size() == 1) return candidates.get(0);
+        if (random.nextDouble() < EXPLORATION_PROBABILITY) {
+            return candidates.get(random.nextInt(candidates.size()));
+        }
+        return selectFastest(candidates, null);
+    }
+
+    /***
+     * Picks a server to hedge to, with no exploration: a hedge is meant to answer fast, not to learn.
+     * @param excluded - The server already asked.
+     * @return The fastest of the other candidates, or null if there are none.
+     */
+    public InetAddress selectOther(List<InetAddress> candidates, InetAddress excluded) {
+        return selectFastest(candidates, excluded);
+    }
+
+    private InetAddress selectFastest(List<InetAddress> candidates, InetAddress excluded) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        InetAddress best = null;
+        double bestSrtt = Double.MAX_VALUE;
+        for (InetAddress candidate : candidates) {
+            if (candidate.equals(excluded)) continue;
+            ServerStats stats = serverStats.get(candidate);
+            // Unknown servers get a small random score, so they are tried early and in no fixed order.
+            double srtt = (stats == null) ? -1 : stats.getSrttMicros();
+            if (srtt < 0) srtt = random.nextLong(1, UNKNOWN_SRTT_MAX_MICROS);
+            if (srtt < bestSrtt) {
+                bestSrtt = srtt;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /***
+     * Not every host has a route for IPv6, so IPv6 addresses are only used when there is no IPv4 choice.
+     * @return The IPv4 candidates, or all of them if there are none.
+     */
+    public static List<InetAddress> preferIpv4(List<InetAddress> candidates) {
+        List<InetAddress> ipv4Candidates = new ArrayList<>();
+        for (InetAddress candidate : candidates) {
+            if (candidate instanceof Inet4Address) ipv4Candidates.add(candidate);
+        }
+        return ipv4Candidates.isEmpty() ? candidates : ipv4Candidates;
+    }
+
+    public void recordRtt(InetAddress server, long rttNanos) {
+        ServerStats stats = getOrCreateStats(server);
+        if (stats != null) stats.addSample(TimeUnit.NANOSECONDS.toMicros(rttNanos));
+    }
+
+    public void recordTimeout(InetAddress server) {
+        ServerStats stats = getOrCreateStats(server);
+        if (stats != null) stats.penalise();
+    }
+
+    /***
+     * @return The server's SRTT in microseconds, or -1 if we have not heard from it.
+     */
+    public long getSrttMicros(InetAddress server) {
+        ServerStats stats = serverStats.get(server);
+        return (stats == null) ? -1 : (long) stats.getSrttMicros();
+    }
+
+    /***
+     * @return How long to wait for the server before hedging, in microseconds: its SRTT plus twice its mean
+     * deviation, within 10 to 500 ms. A server we have not heard from gets 200 ms.
+     */
+    public long getHedgeDelayMicros(InetAddress server) {
+        ServerStats stats = serverStats.get(server);
+        if (stats == null) return UNKNOWN_HEDGE_DELAY_MICROS;
+        long delay = stats.getHedgeDelayMicros();
+        if (delay < 0) return UNKNOWN_HEDGE_DELAY_MICROS;
+        return Math.max(MIN_HEDGE_DELAY_MICROS, Math.min(MAX_HEDGE_DELAY_MICROS, delay));
+    }
+
+    public int getTrackedServerCount() {
+        return serverStats.size();
+    }
+
+    /***
+     * Keeps the table bounded: when it is full, servers not heard from in an hour are forgotten first,
+     * and if none are, the new server simply stays unscored.
+     */
+    private ServerStats getOrCreateStats(InetAddress server) {
+        ServerStats stats = serverStats.get(server);
+        if (stats != null) return stats;
+        if (serverStats.size() >= MAX_TRACKED_SERVERS) {
+            removeStaleServers();
+            if (serverStats.size() >= MAX_TRACKED_SERVERS) return null;
+        }
+        return serverStats.computeIfAbsent(server, address -> new ServerStats());
+    }
+
+    private void removeStaleServers() {
+        long now = System.nanoTime();
+        Iterator<ServerStats> iterator = serverStats.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastUpdatedNanos > STALE_AFTER_NANOS) iterator.remove();
+        }
+    }
+
+    private static final class ServerStats {
+        private double srttMicros = -1;
+        private double rttVarianceMicros;
+        private volatile long lastUpdatedNanos = System.nanoTime();
+
+        private synchronized void addSample(long rttMicros) {
+            if (srttMicros < 0) {
+                srttMicros = rttMicros;
+                rttVarianceMicros = rttMicros / 2.0;
+            } else {
+                rttVarianceMicros += RTT_VARIANCE_WEIGHT_OF_SAMPLE * (Math.abs(srttMicros - rttMicros) - rttVarianceMicros);
+                srttMicros += SRTT_WEIGHT_OF_SAMPLE * (rttMicros - srttMicros);
+            }
+            lastUpdatedNanos = System.nanoTime();
+        }
+
+        private synchronized void penalise() {
+            srttMicros = Math.min(MAX_SRTT_MICROS, Math.max(TIMEOUT_PENALTY_MICROS, srttMicros * 2));
+            lastUpdatedNanos = System.nanoTime();
+        }
+
+        private synchronized double getSrttMicros() {
+            return srttMicros;
+        }
+
+        private synchronized long getHedgeDelayMicros() {
+            if (srttMicros < 0) return -1;
+            return (long) (srttMicros + HEDGE_DEVIATIONS * rttVarianceMicros);
+        }
+    }
+}
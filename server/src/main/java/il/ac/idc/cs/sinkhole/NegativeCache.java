@@ -0,0 +1,138 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Caches NXDOMAIN and NODATA answers for the TTL their authority SOA allows (RFC 2308).
+ * A cached NXDOMAIN also covers every name beneath it, since nothing can exist below a name that does not (RFC 8020).
+ */
+public class NegativeCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long MAX_TTL_SECONDS = TimeUnit.HOURS.toSeconds(3);
+    private static final int INDEX_OF_FLAGS_BYTE = 2;
+    private static final int INDEX_OF_RCODE_BYTE = 3;
+    private static final int RCODE_NAME_ERROR = 3;
+
+    private final ClockCache<String, CachedResponse> nameErrors;
+    private final ClockCache<QuestionKey, CachedResponse> noData;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public NegativeCache(int capacity) {
+        nameErrors = new ClockCache<>(capacity);
+        noData = new ClockCache<>(capacity);
+    }
+
+    /***
+     * @param question - The client's question.
+     * @param request - The client's query, used to answer for names beneath a cached NXDOMAIN.
+     * @return A ready to send negative response, or null on a miss.
+     */
+    public byte[] get(QuestionKey question, DNSPacketHandler request) {
+        long now = System.nanoTime();
+        // An NXDOMAIN is stored under its name alone, so it may hold another type's or class's question.
+        CachedResponse cachedResponse = nameErrors.find(question.getName(), now);
+        if (cachedResponse != null) {
+            hits.increment();
+            byte[] response = cachedResponse.toResponse(request, now);
+            return (response != null) ? response : synthesizeNameError(request);
+        }
+        cachedResponse = noData.find(question, now);
+        if (cachedResponse != null) {
+            hits.increment();
+            byte[] response = cachedResponse.toResponse(request, now);
+            return (response != null) ? response : cachedResponse.toResponse(request.getTransactionId(), now);
+        }
+        if (isBeneathNameError(question.getName(), now)) {
+            hits.increment();
+            return synthesizeNameError(request);
+        }
+        misses.increment();
+        return null;
+    }
+
+    /***
+     * Stores a final response if it is a cacheable NXDOMAIN or NODATA answer; anything else is ignored.
+     * The SOA must come from a zone enclosing the queried name, the root included (e.g. for a nonexistent TLD).
+     */
+    public void put(QuestionKey question, DNSPacketHandler response) {
+        boolean isNameError = response.isNameError() && response.getAnswerCount() == 0;
+        if ((!isNameError && !response.isNoData()) || response.isTruncated()) return;
+        String soaZone = response.getSoaZone();
+        if (soaZone == null || !DelegationCache.isInZone(question.getName(), soaZone.toLowerCase(Locale.ROOT))) {
+            return;
+        }
+        long ttlSeconds = Math.min(response.getNegativeTtl(), MAX_TTL_SECONDS);
+        if (ttlSeconds <= 0) return;
+        long now = System.nanoTime();
+        long expiresAtNanos = now + TimeUnit.SECONDS.toNanos(ttlSeconds);
+        CachedResponse cachedResponse = new CachedResponse(response.getData().clone(), response.getTtlIndices(), now,
+                expiresAtNanos);
+        if (isNameError) {
+            nameErrors.put(question.getName(), cachedResponse, expiresAtNanos);
+        } else {
+            noData.put(question, cachedResponse, expiresAtNanos);
+        }
+    }
+
+    private boolean isBeneathNameError(String name, long now) {
+        int nextLabel = name.indexOf('.');
+        while (nextLabel >= 0) {
+            name = name.substring(nextLabel + 1);
+            if (nameErrors.find(name, now) != null) return true;
+            nextLabel = name.indexOf('.');
+        }
+        return false;
+    }
+
+    /***
+     * The cached NXDOMAIN holds a different question, so we turn the client's own query into the response.
+     */
+    private static byte[] synthesizeNameError(DNSPacketHandler request) {
+        byte[] response = request.getData().clone();
+        response[INDEX_OF_FLAGS_BYTE] = (byte) (response[INDEX_OF_FLAGS_BYTE] | 0x80);
+        response[INDEX_OF_RCODE_BYTE] = (byte) ((response[INDEX_OF_RCODE_BYTE] & 0x70) | 0x80 | RCODE_NAME_ERROR);
+        return response;
+    }
+
+    void forEachNameError(ClockCache.EntryVisitor<String, CachedResponse> visitor) {
+        nameErrors.forEachLive(System.nanoTime(), visitor);
+    }
+
+    void forEachNoData(ClockCache.EntryVisitor<QuestionKey, CachedResponse> visitor) {
+        noData.forEachLive(System.nanoTime(), visitor);
+    }
+
+    /***
+     * Puts back an NXDOMAIN read from a snapshot (CacheSnapshot).
+     */
+    void restoreNameError(String name, CachedResponse cachedResponse) {
+        nameErrors.put(name, cachedResponse, cachedResponse.getExpiresAtNanos());
+    }
+
+    /***
+     * Puts back a NODATA answer read from a snapshot (CacheSnapshot).
+     */
+    void restoreNoData(QuestionKey question, CachedResponse cachedResponse) {
+        noData.put(question, cachedResponse, cachedResponse.getExpiresAtNanos());
+    }
+
+    public int size() {
+        return nameErrors.size() + noData.size();
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return nameErrors.getEvictionCount() + noData.getEvictionCount();
+    }
+}
@@ -0,0 +1,130 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Refreshes popular answers shortly before they expire, so the client that would have hit them just after
+ * expiry does not wait for a full iterative walk. The Iterative DNS Server asks for a refresh when it serves a
+ * cached answer that has been served a few times and is in the last part of its TTL.
+ * Refreshes run on a small bounded pool. Three things keep them from amplifying upstream load:
+ * 1.   A question is refreshed at most once at a time.
+ * 2.   At most a set number of refreshes start each second. The rest are skipped; a later hit may try again.
+ * 3.   When the pool's queue is full, refreshes are dropped rather than queued.
+ */
+public class Prefetcher {
+
+    public static final int DEFAULT_REFRESH_PERCENT = 10;
+    public static final int DEFAULT_MIN_HITS = 2;
+    public static final int DEFAULT_MAX_PREFETCHES_PER_SECOND = 50;
+    public static final int DEFAULT_THREAD_COUNT = 4;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int refreshPercent;
+    private final int minHits;
+    private final int maxPrefetchesPerSecond;
+    private final ThreadPoolExecutor prefetchExecutor;
+    private final Set<QuestionKey> pendingQuestions = ConcurrentHashMap.newKeySet();
+    private final Object budgetLock = new Object();
+    private long budgetSecond;
+    private int budgetUsed;
+    private final LongAdder scheduledPrefetches = new LongAdder();
+    private final LongAdder overBudgetPrefetches = new LongAdder();
+    private final LongAdder rejectedPrefetches = new LongAdder();
+
+    public Prefetcher() {
+        this(DEFAULT_REFRESH_PERCENT, DEFAULT_MIN_HITS, DEFAULT_MAX_PREFETCHES_PER_SECOND, DEFAULT_THREAD_COUNT);
+    }
+
+    /***
+     * @param refreshPercent - How much of an answer's TTL may be left when it is refreshed, e.g. 10.
+     * @param minHits - How many times an answer must have been served to be worth refreshing.
+     * @param maxPrefetchesPerSecond - How many refreshes may start each second.
+     * @param threadCount - How many refreshes may run at once.
+     */
+    public Prefetcher(int refreshPercent, int minHits, int maxPrefetchesPerSecond, int threadCount) {
+        if (refreshPercent <= 0 || refreshPercent >= 100) {
+            throw new IllegalArgumentException("The refresh percentage must be between 1 and 99");
+        }
+        this.refreshPercent = refreshPercent;
+        this.minHits = minHits;
+        this.maxPrefetchesPerSecond = maxPrefetchesPerSecond;
+        prefetchExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "prefetcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public int getRefreshPercent() {
+        return refreshPercent;
+    }
+
+    public int getMinHits() {
+        return minHits;
+    }
+
+    public long getScheduledPrefetchCount() {
+        return scheduledPrefetches.sum();
+    }
+
+    public long getOverBudgetPrefetchCount() {
+        return overBudgetPrefetches.sum();
+    }
+
+    public long getRejectedPrefetchCount() {
+        return rejectedPrefetches.sum();
+    }
+
+    /***
+     * Schedules a refresh of the question, unless one is already pending, this second's budget is spent, or the
+     * queue is full.
+     * @param refresh - Resolves the question again, and stores the fresh answer.
+     * @return Whether the refresh was scheduled.
+     */
+    public boolean prefetch(QuestionKey question, Runnable refresh) {
+        if (pendingQuestions.contains(question) || !tryTakeBudget()) return false;
+        if (!pendingQuestions.add(question)) return false;
+        try {
+            prefetchExecutor.execute(() -> {
+                try {
+                    refresh.run();
+                } catch (RuntimeException e) {
+                    System.err.printf("Exception occurred in Prefetcher, while refreshing %s. exception = %s\r\n",
+                            question, e);
+                } finally {
+                    pendingQuestions.remove(question);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingQuestions.remove(question);
+            rejectedPrefetches.increment();
+            return false;
+        }
+        scheduledPrefetches.increment();
+        return true;
+    }
+
+    private boolean tryTakeBudget() {
+        long second = System.nanoTime() / NANOS_PER_SECOND;
+        synchronized (budgetLock) {
+            if (second != budgetSecond) {
+                budgetSecond = second;
+                budgetUsed = 0;
+            }
+            if (budgetUsed >= maxPrefetchesPerSecond) {
+                overBudgetPrefetches.increment();
+                return false;
+            }
+            budgetUsed++;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/***
+ * A structured log of answered queries, one JSON object per line:
+ *     {"time":"...","client":"127.0.0.1:53124","qname":"ads.example.com","qtype":1,"verdict":"blocked",
+ *      "rcode":"NXDOMAIN","latency_us":12,"upstream_hops":0}
+ * Query threads never wait on it. Each record is copied into a preallocated slot of a lock-free ring buffer, and a
+ * background thread formats the records and writes them to the file in batches. When the ring is full, records are
+ * dropped (and counted) rather than slowing queries down.
+ * What is logged is set by a level (off, errors, blocked, all) and a sample rate: 1 in N of the queries the level
+ * admits, except errors (SERVFAIL and the like), which are always logged unless the log is off.
+ */
+public class QueryLog implements Closeable {
+
+    /*** The old per-step progress lines, for debugging only: -Dsinkhole.trace=true. */
+    public static final boolean TRACE = Boolean.getBoolean("sinkhole.trace");
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_ERRORS = 1;
+    public static final int LEVEL_BLOCKED = 2;
+    public static final int LEVEL_ALL = 3;
+    public static final int VERDICT_BLOCKED = 0;
+    public static final int VERDICT_CACHED = 1;
+    public static final int VERDICT_RESOLVED = 2;
+    public static final int VERDICT_COALESCED = 3;
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final String[] LEVEL_NAMES = {"off", "errors", "blocked", "all"};
+    private static final String[] VERDICT_NAMES = {"blocked", "cached", "resolved", "coalesced"};
+    private static final String[] RCODE_NAMES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+    private static final int MAX_WIRE_NAME_LENGTH = DNSMessageView.MAX_NAME_LENGTH;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int level;
+    private final int sampleRate;
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final LongAdder droppedRecords = new LongAdder();
+    private final LongAdder writtenRecords = new LongAdder();
+    private final Writer writer;
+    private final Thread writerThread;
+    private volatile boolean isRunning = true;
+
+    private QueryLog() {
+        level = LEVEL_OFF;
+        sampleRate = 1;
+        slots = new Slot[0];
+        sequences = new AtomicLongArray(0);
+        mask = 0;
+        writer = null;
+        writerThread = null;
+    }
+
+    /***
+     * Opens (appending to) the log file, and starts the writer thread.
+     * @param level - One of the LEVEL_ constants.
+     * @param sampleRate - Log 1 in this many of the admitted queries.
+     * @param capacity - How many records may wait for the writer; rounded up to a power of two.
+     */
+    public QueryLog(Path path, int level, int sampleRate, int capacity) throws IOException {
+        if (sampleRate < 1) throw new IllegalArgumentException("The sample rate must be at least 1");
+        this.level = level;
+        this.sampleRate = sampleRate;
+        int slotCount = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[slotCount];
+        sequences = new AtomicLongArray(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+        mask = slotCount - 1;
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        writerThread = new Thread(this::writeLoop, "query-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        System.out.printf("Query log is writing %s queries (1 in %d) to %s.\r\n", LEVEL_NAMES[level], sampleRate, path);
+    }
+
+    /***
+     * @return A log that records nothing.
+     */
+    public static QueryLog disabled() {
+        return new QueryLog();
+    }
+
+    /***
+     * @return The LEVEL_ constant by its name (e.g. "blocked"), case-insensitively.
+     */
+    public static int parseLevel(String levelName) {
+        for (int level = 0; level < LEVEL_NAMES.length; level++) {
+            if (LEVEL_NAMES[level].equals(levelName.toLowerCase(Locale.ROOT))) return level;
+        }
+        throw new IllegalArgumentException("Unknown query log level " + levelName);
+    }
+
+    public long getDroppedRecordCount() {
+        return droppedRecords.sum();
+    }
+
+    public long getWrittenRecordCount() {
+        return writtenRecords.sum();
+    }
+
+    /***
+     * Logs the answer to a query, if the level and sampling admit it. The client, question and response code are
+     * all read off the response, which is not kept, so its buffer may be reused as soon as this returns.
+     * @param upstreamHops - How many queries went to root and authority servers for it.
+     */
+    public void log(DatagramPacket responsePacket, int verdict, long latencyNanos, int upstreamHops) {
+        if (level == LEVEL_OFF) return;
+        byte[] response = responsePacket.getData();
+        int start = responsePacket.getOffset();
+        if (responsePacket.getLength() < DNSMessageView.LENGTH_OF_HEADER) return;
+        int responseCode = response[start + 3] & 0xF;
+        boolean isError = responseCode != DNSMessageView.RCODE_NO_ERROR
+                && responseCode != DNSMessageView.RCODE_NAME_ERROR;
+        if (!isError) {
+            if (level < LEVEL_BLOCKED || (level == LEVEL_BLOCKED && verdict != VERDICT_BLOCKED)) return;
+            if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) return;
+        }
+        int nameEnd = wireNameEnd(response, start + DNSMessageView.LENGTH_OF_HEADER,
+                start + responsePacket.getLength());
+        if (nameEnd < 0 || nameEnd + 2 > start + responsePacket.getLength()) return;
+
+        long position = claimSlot();
+        if (position < 0) {
+            droppedRecords.increment();
+            return;
+        }
+        Slot slot = slots[(int) (position & mask)];
+        slot.timeMillis = System.currentTimeMillis();
+        slot.clientAddress = responsePacket.getAddress();
+        slot.clientPort = responsePacket.getPort();
+        slot.nameLength = nameEnd - (start + DNSMessageView.LENGTH_OF_HEADER);
+        System.arraycopy(response, start + DNSMessageView.LENGTH_OF_HEADER, slot.name, 0, slot.nameLength);
+        slot.type = ((response[nameEnd] & 0xFF) << 8) | (response[nameEnd + 1] & 0xFF);
+        slot.verdict = verdict;
+        slot.responseCode = responseCode;
+        slot.latencyNanos = latencyNanos;
+        slot.upstreamHops = upstreamHops;
+        sequences.lazySet((int) (position & mask), position + 1);
+    }
+
+    /***
+     * @return The end of the uncompressed name starting at the offset, or -1 if it is malformed or compressed.
+     */
+    private static int wireNameEnd(byte[] message, int offset, int end) {
+        int index = offset;
+        while (index < end) {
+            int labelLength = message[index] & 0xFF;
+            if (labelLength == 0) return (index + 1 - offset <= MAX_WIRE_NAME_LENGTH) ? index + 1 : -1;
+            if (labelLength > 63) return -1;
+            index += labelLength + 1;
+        }
+        return -1;
+    }
+
+    /***
+     * Producers race for the next slot by a CAS on the tail. A slot is free for position p when its sequence is p,
+     * and is published to the writer by setting its sequence to p + 1.
+     * @return The claimed position, or -1 if the ring is full.
+     */
+    private long claimSlot() {
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) (position & mask));
+            long difference = sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) return position;
+                position = tail.get();
+            } else if (difference < 0) {
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        StringBuilder batch = new StringBuilder(MAX_BATCH_SIZE * 160);
+        while (isRunning) {
+            if (drain(batch) == 0) LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        drain(batch);
+    }
+
+    /***
+     * Formats the published records (up to a batch) and writes them in one go.
+     * @return How many records were written.
+     */
+    private int drain(StringBuilder batch) {
+        int drained = 0;
+        batch.setLength(0);
+        while (drained < MAX_BATCH_SIZE) {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1) break;
+            appendRecord(batch, slots[index]);
+            slots[index].clientAddress = null;
+            sequences.lazySet(index, head + slots.length);
+            head++;
+            drained++;
+        }
+        if (drained == 0) return 0;
+        try {
+            writer.append(batch);
+            writer.flush();
+            writtenRecords.add(drained);
+        } catch (IOException e) {
+            droppedRecords.add(drained);
+            System.err.printf("Exception occurred in Query Log, while writing %d records. exception = %s\r\n",
+                    drained, e);
+        }
+        return drained;
+    }
+
+    private static void appendRecord(StringBuilder out, Slot slot) {
+        out.append("{\"time\":\"").append(Instant.ofEpochMilli(slot.timeMillis)).append('"');
+        out.append(",\"client\":\"");
+        if (slot.clientAddress != null) out.append(slot.clientAddress.getHostAddress());
+        out.append(':').append(slot.clientPort).append('"');
+        out.append(",\"qname\":\"");
+        appendName(out, slot.name, slot.nameLength);
+        out.append("\",\"qtype\":").append(slot.type);
+        out.append(",\"verdict\":\"").append(VERDICT_NAMES[slot.verdict]).append('"');
+        out.append(",\"rcode\":\"").append(slot.responseCode < RCODE_NAMES.length
+                ? RCODE_NAMES[slot.responseCode] : "RCODE" + slot.responseCode).append('"');
+        out.append(",\"latency_us\":").append(TimeUnit.NANOSECONDS.toMicros(slot.latencyNanos));
+        out.append(",\"upstream_hops\":").append(slot.upstreamHops).append("}\n");
+    }
+
+    /***
+     * Writes the wire-format name in dotted form, escaping anything that is not a plain printable character.
+     */
+    private static void appendName(StringBuilder out, byte[] name, int nameLength) {
+        int index = 0;
+        while (index < nameLength && name[index] != 0) {
+            if (index > 0) out.append('.');
+            int labelEnd = index + 1 + (name[index] & 0xFF);
+            for (int i = index + 1; i < labelEnd; i++) {
+                char c = (char) (name[i] & 0xFF);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20 || c > 0x7E) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+            index = labelEnd;
+        }
+    }
+
+    /***
+     * Stops the writer once it has written what was already logged, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writerThread == null) return;
+        isRunning = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+    }
+
+    /***
+     * A preallocated record, so logging a query allocates nothing.
+     */
+    private static final class Slot {
+        private final byte[] name = new byte[MAX_WIRE_NAME_LENGTH];
+        private int nameLength;
+        private long timeMillis;
+        private InetAddress clientAddress;
+        private int clientPort;
+        private int type;
+        private int verdict;
+        private int responseCode;
+        private long latencyNanos;
+        private int upstreamHops;
+    }
+}
@@ -0,0 +1,55 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.Locale;
+
+/***
+ * Identifies a DNS question by (qname, qtype, qclass). Names compare case-insensitively, as DNS does.
+ */
+public final class QuestionKey {
+
+    private final String name;
+    private final int type;
+    private final int dnsClass;
+    private final int hash;
+
+    public QuestionKey(String name, int type, int dnsClass) {
+        this.name = name.toLowerCase(Locale.ROOT);
+        this.type = type;
+        this.dnsClass = dnsClass;
+        this.hash = (this.name.hashCode() * 31 + type) * 31 + dnsClass;
+    }
+
+    public static QuestionKey of(DNSPacketHandler packetHandler) {
+        return new QuestionKey(packetHandler.getQDomainName(), packetHandler.getQType(), packetHandler.getQClass());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getDnsClass() {
+        return dnsClass;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof QuestionKey)) return false;
+        QuestionKey other = (QuestionKey) o;
+        return type == other.type && dnsClass == other.dnsClass && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name + "/" + type + "/" + dnsClass;
+    }
+}
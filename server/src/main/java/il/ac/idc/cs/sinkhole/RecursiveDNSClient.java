@@ -0,0 +1,486 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/***
+ * The client keeps no per-query state in its fields, so a single instance is shared by every query thread.
+ * Upstream traffic goes through a shared non-blocking engine, which matches replies to queries. A query that is lost
+ * is asked again of the zone's next-best server, rather than of the same one, and the one that timed out is penalised.
+ * Queries advertise an EDNS0 payload size, so fewer replies come back truncated; those that still do are asked
+ * again over TCP, on pooled connections.
+ * A hop whose server is slower than usual to answer is hedged: the same query also goes to the next-best server
+ * of the zone, and the first reply wins. Hedges are capped per resolution.
+ */
+public class RecursiveDNSClient implements Resolver {
+
+    public static final int DNS_CLIENT_SENT_TO_PORT = 53;
+    public static final int DNS_UDP_PACKET_SIZE = 1024;
+    public static final int DEFAULT_MAX_HEDGES_PER_RESOLUTION = 2;
+    public static final int MAX_ATTEMPTS_PER_HOP = 3;
+    private static final int QUERY_ITERS_LIMIT = 16;
+    private static final int NAME_SERVER_LOOKUP_DEPTH_LIMIT = 4;
+    private static final int NAME_SERVER_LOOKUPS_PER_HOP = 2;
+    private static final int TYPE_A = 1;
+    private static final String ROOT_ZONE = "";
+    private static final int COUNT_OF_UPSTREAM_HOPS = 0;
+    private static final int COUNT_OF_HEDGES = 1;
+
+    private final UpstreamQueryEngine upstreamQueryEngine;
+    private final DelegationCache delegationCache;
+    private final NameServerAddressCache nameServerAddressCache;
+    private final NameServerSelector nameServerSelector;
+    private final List<InetAddress> rootServerAddresses;
+    private final int upstreamPort;
+    private final ServerMetrics metrics;
+    private final ThreadLocal<int[]> resolutionCounts = ThreadLocal.withInitial(() -> new int[2]);
+    private final TcpUpstreamPool tcpUpstreamPool = new TcpUpstreamPool();
+    private volatile int ednsPayloadSize = Edns0.DEFAULT_PAYLOAD_SIZE;
+    private volatile int maxHedgesPerResolution = DEFAULT_MAX_HEDGES_PER_RESOLUTION;
+    private final LongAdder firedHedges = new LongAdder();
+    private final LongAdder wonHedges = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+    private final LongAdder malformedReplies = new LongAdder();
+    private final LongAdder rejectedReferrals = new LongAdder();
+
+    public RecursiveDNSClient(List<InetAddress> rootServerAddresses) {
+        this(rootServerAddresses, DNS_CLIENT_SENT_TO_PORT);
+    }
+
+    public RecursiveDNSClient(List<InetAddress> rootServerAddresses, int upstreamPort) {
+        this(rootServerAddresses, upstreamPort, new ServerMetrics());
+    }
+
+    /***
+     * @param upstreamPort - The port every root and authority server is asked on. Only a local test hierarchy
+     *                     (e.g. on loopback) would use anything but 53.
+     * @param metrics - Where upstream hops, timeouts and iterations are recorded.
+     */
+    public RecursiveDNSClient(List<InetAddress> rootServerAddresses, int upstreamPort, ServerMetrics metrics) {
+        this.upstreamPort = upstreamPort;
+        this.metrics = metrics;
+        this.rootServerAddresses = NameServerSelector.preferIpv4(List.copyOf(rootServerAddresses));
+        nameServerSelector = new NameServerSelector();
+        upstreamQueryEngine = openUpstreamQueryEngine();
+        delegationCache = new DelegationCache(DelegationCache.DEFAULT_CAPACITY);
+        nameServerAddressCache = new NameServerAddressCache(NameServerAddressCache.DEFAULT_CAPACITY);
+        metrics.registerCounter("upstream_tcp_queries", tcpUpstreamPool::getQueryCount);
+        metrics.registerCounter("upstream_tcp_connections_opened", tcpUpstreamPool::getOpenedConnectionCount);
+        metrics.registerCounter("upstream_hedges_fired", firedHedges::sum);
+        metrics.registerCounter("upstream_hedges_won", wonHedges::sum);
+        metrics.registerCounter("upstream_failovers", failovers::sum);
+        // remotely triggered, so counted rather than printed on the query path (printed only when tracing)
+        metrics.registerCounter("upstream_malformed_replies", malformedReplies::sum);
+        metrics.registerCounter("upstream_referrals_rejected", rejectedReferrals::sum);
+    }
+
+    /***
+     * @param ednsPayloadSize - The UDP payload size our queries advertise, or 0 to send them without EDNS0.
+     */
+    public void setEdnsPayloadSize(int ednsPayloadSize) {
+        this.ednsPayloadSize = ednsPayloadSize;
+    }
+
+    /***
+     * @param maxHedgesPerResolution - How many hedged queries one resolution may send, name server lookups
+     *                               included, or 0 to never hedge.
+     */
+    public void setMaxHedgesPerResolution(int maxHedgesPerResolution) {
+        if (maxHedgesPerResolution < 0) throw new IllegalArgumentException("The hedge cap must not be negative");
+        this.maxHedgesPerResolution = maxHedgesPerResolution;
+    }
+
+    public long getFiredHedgeCount() {
+        return firedHedges.sum();
+    }
+
+    /***
+     * @return How many hedged queries were answered before the query they hedged.
+     */
+    public long getWonHedgeCount() {
+        return wonHedges.sum();
+    }
+
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    public NameServerAddressCache getNameServerAddressCache() {
+        return nameServerAddressCache;
+    }
+
+    public NameServerSelector getNameServerSelector() {
+        return nameServerSelector;
+    }
+
+    private static UpstreamQueryEngine openUpstreamQueryEngine() {
+        try {
+            // exchange() retries on the zone's other servers, so the engine does not retry the same one
+            return new UpstreamQueryEngine(UpstreamQueryEngine.DEFAULT_CHANNEL_COUNT,
+                    UpstreamQueryEngine.DEFAULT_TIMEOUT_MILLIS, 0);
+        } catch (IOException e) {
+            System.err.printf("Exception occurred while trying to open UDP channels to DNS servers. " +
+                    "exception = %s\r\n", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /***
+     * We build upon the response from the closest zone cut we know (or else the root server) to start challenging
+     * our iterative DNS server for a final answer regarding our target domain-name.
+     * We also limit ourselves to 16 iterations.
+     * There is always translation between received queries and responses, for both communicating sides.
+     * Every referral on the way is remembered, so later resolutions under the same zones can skip ahead.
+     * If a server never answers, the client gets a SERVFAIL instead of waiting forever.
+     * @param packetToQuery
+     * @return
+     */
+    @Override
+    public DNSPacketHandler getResponsePacket(DatagramPacket packetToQuery) {
+        int[] counts = resolutionCounts.get();
+        counts[COUNT_OF_UPSTREAM_HOPS] = 0;
+        counts[COUNT_OF_HEDGES] = 0;
+        DNSPacketHandler lastResponsePacket = resolve(new DNSPacketHandler(packetToQuery), 0);
+        if (lastResponsePacket == null) return getServerFailurePacket(packetToQuery);
+        // flip necessary bits.
+        lastResponsePacket.setRecursionBit(true);
+        lastResponsePacket.setAuthAnswerBit(false);
+        return lastResponsePacket;
+    }
+
+    /***
+     * A resolution runs on its caller's thread from start to end, so the count is kept per thread.
+     * @return How many upstream queries the last resolution on this thread sent, name server lookups included.
+     */
+    @Override
+    public int getUpstreamHops() {
+        return resolutionCounts.get()[COUNT_OF_UPSTREAM_HOPS];
+    }
+
+    /***
+     * The iterative walk itself. It also runs, one level deeper, for name servers we only know by name.
+     * @param originalDNSQuery - The query to resolve.
+     * @param depth - How many name server lookups this walk is nested in.
+     * @return The last response, or null if a server could not be reached.
+     */
+    private DNSPacketHandler resolve(DNSPacketHandler originalDNSQuery, int depth) {
+        String queriedName = originalDNSQuery.getQDomainName();
+        // Obtaining results from the closest known zone cut, or the root server
+        DelegationCache.Delegation delegation = delegationCache.findClosest(queriedName);
+        DatagramPacket firstReceivedPacket = (delegation != null)
+                ? getZoneCutReceivedPacket(originalDNSQuery, delegation, depth) : null;
+        String zone = (firstReceivedPacket != null) ? delegation.getZone() : ROOT_ZONE;
+        if (firstReceivedPacket == null) firstReceivedPacket = getRootReceivedPacket(originalDNSQuery);
+        if (firstReceivedPacket == null) return null;
+        DNSPacketHandler lastResponsePacket = parseResponse(firstReceivedPacket);
+        if (lastResponsePacket == null) return null;
+        zone = learnReferral(queriedName, zone, lastResponsePacket);
+        if (zone == null) return null;
+        // Iterating to get response
+        int iterationNumber = 1;
+        // run on all servers.
+        while (!lastResponsePacket.isFinalAnswer() && iterationNumber < QUERY_ITERS_LIMIT) {
+            DatagramPacket lastReceivedPacket = challengingDNS(originalDNSQuery, lastResponsePacket, depth);
+            if (lastReceivedPacket == null) return null;
+            lastResponsePacket = parseResponse(lastReceivedPacket);
+            if (lastResponsePacket == null) return null;
+            zone = learnReferral(queriedName, zone, lastResponsePacket);
+            if (zone == null) return null;
+            iterationNumber++;
+        }
+        if (depth == 0) metrics.recordIterations(iterationNumber);
+        return lastResponsePacket;
+    }
+
+    /***
+     * A malformed response is treated like a server that never answered.
+     */
+    private DNSPacketHandler parseResponse(DatagramPacket receivedPacket) {
+        try {
+            return new DNSPacketHandler(receivedPacket);
+        } catch (IllegalArgumentException e) {
+            malformedReplies.increment();
+            if (QueryLog.TRACE) System.err.printf("Exception occurred in Recursive DNS Client, " +
+                    "while parsing a response from %s. exception = %s\r\n", receivedPacket.getAddress(), e);
+            return null;
+        }
+    }
+
+    /***
+     * A referral must lead strictly down from the zone of the server that sent it, toward the queried name; one that
+     * points up or sideways is not followed, let alone cached. Glue is only trusted along with a referral we accepted.
+     * @param zone - The zone of the server that sent the response.
+     * @return The zone to ask next: the referral's, or still zone if the response is no referral.
+     * Null if the referral is not to be followed.
+     */
+    private String learnReferral(String queriedName, String zone, DNSPacketHandler response) {
+        String referralZone = response.getReferralZone();
+        if (response.isFinalAnswer() || referralZone == null) return zone;
+        if (!DelegationCache.isDelegationBelow(queriedName, zone, referralZone)) {
+            rejectedReferrals.increment();
+            if (QueryLog.TRACE) System.err.printf("Recursive DNS Client ignored a referral to %s " +
+                    "from a server of \"%s\", while resolving %s.\r\n", referralZone, zone, queriedName);
+            return null;
+        }
+        if (delegationCache.put(queriedName, zone, response)) {
+            nameServerAddressCache.putGlue(response, zone);
+        }
+        return referralZone.toLowerCase(Locale.ROOT);
+    }
+
+    static DNSPacketHandler getServerFailurePacket(DatagramPacket packetToQuery) {
+        DNSPacketHandler failurePacket = new DNSPacketHandler(packetToQuery);
+        failurePacket.setRCodeToServFail();
+        failurePacket.setResponseBit(true);
+        failurePacket.setRecursionBit(true);
+        return failurePacket;
+    }
+
+    private DatagramPacket getRootReceivedPacket(DNSPacketHandler originalDNSQuery) {
+        // Ask the fastest root
+        return exchange(originalDNSQuery, rootServerAddresses);
+    }
+
+    /***
+     * Asks one of the name servers of the deepest cached delegation above the queried name.
+     * @return Its response, or null if its servers could not be reached.
+     */
+    private DatagramPacket getZoneCutReceivedPacket(DNSPacketHandler originalDNSQuery,
+                                                    DelegationCache.Delegation delegation, int depth) {
+        List<InetAddress> nameServerAddresses = getNameServerAddresses(delegation.getNameServers(), depth);
+        if (nameServerAddresses == null) return null;
+        if (QueryLog.TRACE) System.out.printf("Recursive DNS Client is starting from the cached zone cut %s.\r\n", delegation.getZone());
+        return exchange(originalDNSQuery, nameServerAddresses);
+    }
+
+    private DatagramPacket challengingDNS(DNSPacketHandler originalDNSQuery, DNSPacketHandler lastResponsePacket,
+                                          int depth) {
+        List<InetAddress> nameServerAddresses = getNameServerAddresses(lastResponsePacket.getAuthorityNames(), depth);
+        if (nameServerAddresses == null) {
+            if (QueryLog.TRACE) System.err.printf("Recursive DNS Client could not find an address " +
+                    "for any of %s.\r\n", lastResponsePacket.getAuthorityNames());
+            return null;
+        }
+        // Send to DNS and get response
+        return exchange(originalDNSQuery, nameServerAddresses);
+    }
+
+    /***
+     * Finds addresses for a zone's name servers. All the cached ones (glue included) are candidates.
+     * Otherwise a few of the names are resolved through our own iterative walk, never through the JVM resolver.
+     * @return The candidates, or null if none could be found.
+     */
+    private List<InetAddress> getNameServerAddresses(List<String> nameServers, int depth) {
+        List<InetAddress> knownAddresses = new ArrayList<>();
+        for (String nameServer : nameServers) {
+            List<InetAddress> cachedAddresses = nameServerAddressCache.get(nameServer);
+            if (cachedAddresses != null) knownAddresses.addAll(cachedAddresses);
+        }
+        if (!knownAddresses.isEmpty()) return NameServerSelector.preferIpv4(knownAddresses);
+        if (depth >= NAME_SERVER_LOOKUP_DEPTH_LIMIT) return null;
+        List<String> candidates = new ArrayList<>(nameServers);
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        int lookups = Math.min(candidates.size(), NAME_SERVER_LOOKUPS_PER_HOP);
+        for (int i = 0; i < lookups; i++) {
+            List<InetAddress> resolvedAddresses = lookupNameServerAddresses(candidates.get(i), depth + 1);
+            if (resolvedAddresses != null) return resolvedAddresses;
+        }
+        return null;
+    }
+
+    private List<InetAddress> lookupNameServerAddresses(String nameServer, int depth) {
+        if (QueryLog.TRACE) System.out.printf("Recursive DNS Client is resolving the name server %s.\r\n", nameServer);
+        DNSPacketHandler addressQuery = new DNSPacketHandler(DNSPacketHandler.buildQuery(nameServer, TYPE_A));
+        DNSPacketHandler addressResponse = resolve(addressQuery, depth);
+        if (addressResponse == null || addressResponse.getAnswerAddresses().isEmpty()) return null;
+        List<InetAddress> addresses = addressResponse.getAnswerAddresses();
+        nameServerAddressCache.put(nameServer, addresses, addressResponse.getMinAnswerTtl());
+        return NameServerSelector.preferIpv4(addresses);
+    }
+
+    /***
+     * Asks the fastest of the candidate servers over UDP (hedging to the next-best if it is slow), advertising our
+     * EDNS0 payload size. If no reply comes, the next-best server not asked yet is tried, up to MAX_ATTEMPTS_PER_HOP
+     * times; a zone with fewer servers than that has its best one asked again. Whichever server answered is then
+     * the one asked again, if need be:
+     * 1.   A server that does not understand EDNS0 (FORMERR or NOTIMP) is asked again without it.
+     * 2.   A reply that is truncated anyway is asked for again over TCP.
+     * @param candidates - The addresses that can answer the query; must not be empty.
+     * @return The reply, or null if no server could be reached.
+     */
+    private DatagramPacket exchange(DNSPacketHandler query, List<InetAddress> candidates) {
+        DatagramPacket queryPacket = new DatagramPacket(query.getData(), query.getData().length);
+        DatagramPacket packetToSend = queryPacket;
+        if (ednsPayloadSize > 0) {
+            byte[] ednsQuery = Edns0.withOptRecord(queryPacket.getData(), queryPacket.getLength(), ednsPayloadSize);
+            packetToSend = new DatagramPacket(ednsQuery, ednsQuery.length);
+        }
+        List<InetAddress> askedServers = new ArrayList<>();
+        DatagramPacket reply = null;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS_PER_HOP && reply == null; attempt++) {
+            if (Thread.currentThread().isInterrupted()) return null;
+            List<InetAddress> unaskedCandidates = new ArrayList<>(candidates);
+            unaskedCandidates.removeAll(askedServers);
+            if (unaskedCandidates.isEmpty()) unaskedCandidates = candidates;
+            if (attempt > 0) {
+                failovers.increment();
+                if (QueryLog.TRACE) System.out.printf("Recursive DNS Client got no reply from %s, " +
+                        "and is trying another server.\r\n", askedServers);
+            }
+            InetAddress server = nameServerSelector.select(unaskedCandidates);
+            packetToSend.setSocketAddress(new InetSocketAddress(server, upstreamPort));
+            reply = getHedgedReply(packetToSend, unaskedCandidates, askedServers);
+        }
+        if (reply == null) return null;
+        queryPacket.setSocketAddress(reply.getSocketAddress());
+        packetToSend.setSocketAddress(reply.getSocketAddress());
+        DNSMessageView replyView = new DNSMessageView().wrap(ByteBuffer.wrap(reply.getData(), 0, reply.getLength()));
+        if (!replyView.hasHeader()) return reply;
+        int responseCode = replyView.getResponseCode();
+        if (packetToSend != queryPacket && (responseCode == DNSMessageView.RCODE_FORMAT_ERROR
+                || responseCode == DNSMessageView.RCODE_NOT_IMPLEMENTED)) {
+            packetToSend = queryPacket;
+            reply = getSentPacket(sendQueryPacket(packetToSend));
+            if (reply == null) return null;
+            replyView.wrap(ByteBuffer.wrap(reply.getData(), 0, reply.getLength()));
+            if (!replyView.hasHeader()) return reply;
+        }
+        return replyView.isTruncated() ? sendQueryOverTcp(packetToSend) : reply;
+    }
+
+    /***
+     * Sends the query, and if no reply comes within the server's hedge delay (about its 90th-95th percentile RTT),
+     * sends it to the next-best candidate as well. The first reply wins. The slower query is left to finish, so
+     * its server's SRTT still learns how slow it was, or is penalised for timing out.
+     * @param askedServers - Where every server asked is added.
+     * @return The reply, carrying the address of the server that sent it, or null if no server answered.
+     */
+    private DatagramPacket getHedgedReply(DatagramPacket queryPacket, List<InetAddress> candidates,
+                                          List<InetAddress> askedServers) {
+        askedServers.add(queryPacket.getAddress());
+        CompletableFuture<DatagramPacket> pendingReply = sendQueryPacket(queryPacket);
+        int[] counts = resolutionCounts.get();
+        if (candidates.size() < 2 || counts[COUNT_OF_HEDGES] >= maxHedgesPerResolution) {
+            return getSentPacket(pendingReply);
+        }
+        InetAddress hedgeServer = nameServerSelector.selectOther(candidates, queryPacket.getAddress());
+        if (hedgeServer == null) return getSentPacket(pendingReply);
+        try {
+            return pendingReply.get(nameServerSelector.getHedgeDelayMicros(queryPacket.getAddress()),
+                    TimeUnit.MICROSECONDS);
+        } catch (TimeoutException e) {
+            // slower than usual, so hedge
+        } catch (ExecutionException e) {
+            return getSentPacket(pendingReply);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (QueryLog.TRACE) System.out.printf("Recursive DNS Client is hedging, asking %s as well.\r\n", hedgeServer);
+        counts[COUNT_OF_HEDGES]++;
+        firedHedges.increment();
+        askedServers.add(hedgeServer);
+        CompletableFuture<DatagramPacket> hedgedReply = sendQueryPacket(new DatagramPacket(
+                queryPacket.getData(), queryPacket.getLength(), hedgeServer, upstreamPort));
+        DatagramPacket reply = getSentPacket(firstSuccessful(pendingReply, hedgedReply));
+        if (reply != null && hedgedReply.isDone() && !hedgedReply.isCompletedExceptionally()
+                && hedgedReply.join() == reply) {
+            wonHedges.increment();
+        }
+        return reply;
+    }
+
+    /***
+     * @return A future completed by whichever of the two succeeds first, or failed once both have failed.
+     */
+    private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T> first, CompletableFuture<T> second) {
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        BiConsumer<T, Throwable> race = (result, failure) -> {
+            if (failure == null) {
+                winner.complete(result);
+            } else if (first.isCompletedExceptionally() && second.isCompletedExceptionally()) {
+                winner.completeExceptionally(failure);
+            }
+        };
+        first.whenComplete(race);
+        second.whenComplete(race);
+        return winner;
+    }
+
+    /***
+     * Recorded as an upstream hop like any other, but left out of the server's SRTT, which the handshake would skew.
+     * @return The reply, or null if the server could not be reached over TCP.
+     */
+    private DatagramPacket sendQueryOverTcp(DatagramPacket queryPacket) {
+        if (QueryLog.TRACE) System.out.println("Recursive DNS Client got a truncated reply, and is asking again over TCP.");
+        long sentAtNanos = System.nanoTime();
+        metrics.countUpstreamQuery();
+        resolutionCounts.get()[COUNT_OF_UPSTREAM_HOPS]++;
+        try {
+            byte[] reply = tcpUpstreamPool.query(queryPacket.getData(), queryPacket.getLength(),
+                    (InetSocketAddress) queryPacket.getSocketAddress());
+            metrics.recordStage(ServerMetrics.STAGE_UPSTREAM_HOP, sentAtNanos);
+            return new DatagramPacket(reply, reply.length);
+        } catch (IOException e) {
+            metrics.countUpstreamTimeout();
+            if (QueryLog.TRACE) System.err.printf("Exception occurred while Recursive DNS Client was asking %s " +
+                    "over TCP. exception = %s\r\n", queryPacket.getSocketAddress(), e);
+            return null;
+        }
+    }
+
+    /***
+     * Every reply (or timeout) also updates the server's SRTT, and is recorded as an upstream hop (or timeout).
+     * @return The reply, carrying the address of the server it was sent to.
+     */
+    private CompletableFuture<DatagramPacket> sendQueryPacket(DatagramPacket queryPacket) {
+        if (QueryLog.TRACE) System.out.println("Recursive DNS Client is sending datagram to authority (or root) DNS server.");
+        InetAddress server = queryPacket.getAddress();
+        SocketAddress serverSocketAddress = queryPacket.getSocketAddress();
+        long sentAtNanos = System.nanoTime();
+        metrics.countUpstreamQuery();
+        resolutionCounts.get()[COUNT_OF_UPSTREAM_HOPS]++;
+        return upstreamQueryEngine.query(
+                queryPacket.getData(),
+                queryPacket.getLength(),
+                (InetSocketAddress) queryPacket.getSocketAddress())
+                .whenComplete((reply, failure) -> {
+                    if (failure == null) {
+                        nameServerSelector.recordRtt(server, System.nanoTime() - sentAtNanos);
+                        metrics.recordStage(ServerMetrics.STAGE_UPSTREAM_HOP, sentAtNanos);
+                    } else {
+                        nameServerSelector.recordTimeout(server);
+                        metrics.countUpstreamTimeout();
+                    }
+                })
+                .thenApply(reply -> new DatagramPacket(reply, reply.length, serverSocketAddress));
+    }
+
+    private DatagramPacket getSentPacket(CompletableFuture<DatagramPacket> pendingReply) {
+        try {
+            if (QueryLog.TRACE) System.out.println("Recursive DNS Client is waiting for Authority DNS server to respond.");
+            DatagramPacket receivedPacket = pendingReply.join();
+            if (QueryLog.TRACE) System.out.println("Recursive DNS Client received response from DNS Authority server.");
+            return receivedPacket;
+        } catch (CompletionException e) {
+            if (QueryLog.TRACE) System.err.printf("Exception occurred while Recursive DNS Client was trying to " +
+                    "receive Packet from an Authority DNS server. exception = %s\r\n", e.getCause());
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,22 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.net.DatagramPacket;
+
+/***
+ * Answers the queries that pass the blocklist and miss the caches. The Iterative DNS Server holds one, chosen at
+ * startup: a RecursiveDNSClient walking down from the roots, or a ForwardingResolver handing the queries to other
+ * recursive resolvers. One instance serves every query thread.
+ */
+public interface Resolver {
+
+    /***
+     * @param packetToQuery - The client's query.
+     * @return The response to it, or a SERVFAIL if none could be had; never null.
+     */
+    DNSPacketHandler getResponsePacket(DatagramPacket packetToQuery);
+
+    /***
+     * @return How many upstream queries the last resolution on this thread sent.
+     */
+    int getUpstreamHops();
+}
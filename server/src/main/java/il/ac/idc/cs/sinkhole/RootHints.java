@@ -0,0 +1,110 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ * The addresses of the root servers, loaded once from a hints file in the named.root format, e.g.
+ *     A.ROOT-SERVERS.NET.      3600000      A     198.41.0.4
+ * Only the A and AAAA lines matter; comments (;) and the NS lines are skipped.
+ * Without a usable file we fall back to the well-known IPv4 addresses built in here.
+ */
+public class RootHints {
+
+    public static final String DEFAULT_ROOT_HINTS_FILE_PATH = "named.root";
+
+    private RootHints() {
+    }
+
+    public static List<InetAddress> load(String filePath) {
+        List<InetAddress> rootServerAddresses = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                InetAddress rootServerAddress = parseHintLine(line);
+                if (rootServerAddress != null) rootServerAddresses.add(rootServerAddress);
+            }
+        } catch (IOException e) {
+            System.err.printf("Exception occurred while loading root hints from %s, " +
+                    "using the built-in root servers. exception = %s\r\n", filePath, e);
+            return builtIn();
+        }
+        if (rootServerAddresses.isEmpty()) {
+            System.err.printf("No root server addresses found in %s, using the built-in root servers.\r\n", filePath);
+            return builtIn();
+        }
+        System.out.printf("Loaded %d root server addresses from %s.\r\n", rootServerAddresses.size(), filePath);
+        return rootServerAddresses;
+    }
+
+    /***
+     * @return The root servers' well-known IPv4 addresses.
+     */
+    public static List<InetAddress> builtIn() {
+        List<InetAddress> rootServerAddresses = new ArrayList<>();
+        addRootServer(rootServerAddresses, "a.root-servers.net", "198.41.0.4");
+        addRootServer(rootServerAddresses, "b.root-servers.net", "170.247.170.2");
+        addRootServer(rootServerAddresses, "c.root-servers.net", "192.33.4.12");
+        addRootServer(rootServerAddresses, "d.root-servers.net", "199.7.91.13");
+        addRootServer(rootServerAddresses, "e.root-servers.net", "192.203.230.10");
+        addRootServer(rootServerAddresses, "f.root-servers.net", "192.5.5.241");
+        addRootServer(rootServerAddresses, "g.root-servers.net", "192.112.36.4");
+        addRootServer(rootServerAddresses, "h.root-servers.net", "198.97.190.53");
+        addRootServer(rootServerAddresses, "i.root-servers.net", "192.36.148.17");
+        addRootServer(rootServerAddresses, "j.root-servers.net", "192.58.128.30");
+        addRootServer(rootServerAddresses, "k.root-servers.net", "193.0.14.129");
+        addRootServer(rootServerAddresses, "l.root-servers.net", "199.7.83.42");
+        addRootServer(rootServerAddresses, "m.root-servers.net", "202.12.27.33");
+        return rootServerAddresses;
+    }
+
+    private static void addRootServer(List<InetAddress> rootServerAddresses, String hostName, String address) {
+        InetAddress rootServerAddress = parseAddressLiteral(hostName, address);
+        if (rootServerAddress == null) throw new IllegalArgumentException("Malformed root server address " + address);
+        rootServerAddresses.add(rootServerAddress);
+    }
+
+    private static InetAddress parseHintLine(String line) {
+        int commentStart = line.indexOf(';');
+        if (commentStart >= 0) line = line.substring(0, commentStart);
+        String[] fields = line.trim().split("\\s+");
+        // NAME [TTL] [CLASS] TYPE ADDRESS
+        if (fields.length < 3) return null;
+        String type = fields[fields.length - 2];
+        if (!type.equalsIgnoreCase("A") && !type.equalsIgnoreCase("AAAA")) return null;
+        String hostName = fields[0].endsWith(".") ? fields[0].substring(0, fields[0].length() - 1) : fields[0];
+        return parseAddressLiteral(hostName.toLowerCase(), fields[fields.length - 1]);
+    }
+
+    /***
+     * InetAddress only skips the name lookup for literals, so anything that is not one is rejected up front.
+     * @return The address, or null if the text is not an IPv4 or IPv6 literal.
+     */
+    private static InetAddress parseAddressLiteral(String hostName, String address) {
+        if (!isAddressLiteral(address)) return null;
+        try {
+            return InetAddress.getByAddress(hostName, InetAddress.getByName(address).getAddress());
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /***
+     * @return Whether the text looks like an IPv4 or IPv6 address literal, so parsing it never needs a DNS lookup.
+     */
+    static boolean isAddressLiteral(String address) {
+        boolean isIpv6 = address.indexOf(':') >= 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            boolean isLiteralChar = isIpv6 ? (Character.digit(c, 16) >= 0 || c == ':' || c == '.')
+                    : (Character.isDigit(c) || c == '.');
+            if (!isLiteralChar) return false;
+        }
+        return isIpv6 || address.chars().filter(c -> c == '.').count() == 3;
+    }
+}
@@ -0,0 +1,284 @@
+package il.ac.idc.cs.sinkhole;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/***
+ * Counters and per-stage latency histograms for everything the server does, recorded on the hot path and read
+ * over JMX or the Prometheus endpoint (MetricsHttpServer). A query passes through these stages:
+ * 1.   Receive - validating the datagram that was just received (the wait for it is not counted).
+ * 2.   Blocklist - asking the enforcer about the name.
+ * 3.   Parse - reading the query into a DNSPacketHandler.
+ * 4.   Cache lookup - asking the answer and negative caches.
+ * 5.   Resolution - walking the hierarchy, made of upstream hops (one query and its reply, or timeout, each).
+ * 6.   Send - handing the response to the socket.
+ * The query stage spans them all, from receipt to response. Counters kept elsewhere (e.g. the caches' hits) are
+ * registered here as suppliers, so they are exported along with ours without being counted twice. So are gauges,
+ * values that may go down as well as up (e.g. how many forwarders are up).
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "il.ac.idc.cs.sinkhole:type=ServerMetrics";
+    public static final int STAGE_RECEIVE = 0;
+    public static final int STAGE_BLOCKLIST = 1;
+    public static final int STAGE_PARSE = 2;
+    public static final int STAGE_CACHE_LOOKUP = 3;
+    public static final int STAGE_RESOLUTION = 4;
+    public static final int STAGE_UPSTREAM_HOP = 5;
+    public static final int STAGE_SEND = 6;
+    public static final int STAGE_QUERY = 7;
+    private static final String[] STAGE_NAMES = {
+            "receive", "blocklist", "parse", "cache_lookup", "resolution", "upstream_hop", "send", "query"};
+    private static final String[] RCODE_NAMES = {
+            "NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+    private static final double[] EXPORTED_PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] EXPORTED_QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final String METRIC_PREFIX = "sinkhole_";
+
+    private final LatencyHistogram[] stageLatencies = new LatencyHistogram[STAGE_NAMES.length];
+    private final LatencyHistogram iterationsPerResolution = new LatencyHistogram();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder blockedQueries = new LongAdder();
+    private final LongAdder upstreamQueries = new LongAdder();
+    private final LongAdder upstreamTimeouts = new LongAdder();
+    private final LongAdder[] responsesByCode = new LongAdder[16];
+    private final Map<String, LongSupplier> registeredCounters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> registeredGauges = new ConcurrentSkipListMap<>();
+
+    public ServerMetrics() {
+        for (int stage = 0; stage < stageLatencies.length; stage++) stageLatencies[stage] = new LatencyHistogram();
+        for (int responseCode = 0; responseCode < responsesByCode.length; responseCode++) {
+            responsesByCode[responseCode] = new LongAdder();
+        }
+    }
+
+    /***
+     * @param stage - One of the STAGE_ constants.
+     * @param startNanos - When the stage started, by System.nanoTime().
+     */
+    public void recordStage(int stage, long startNanos) {
+        stageLatencies[stage].record(System.nanoTime() - startNanos);
+    }
+
+    public void recordIterations(int iterations) {
+        iterationsPerResolution.record(iterations);
+    }
+
+    public void countQuery() {
+        queries.increment();
+    }
+
+    public void countBlockedQuery() {
+        blockedQueries.increment();
+    }
+
+    public void countResponse(int responseCode) {
+        responsesByCode[responseCode & 0xF].increment();
+    }
+
+    public void countUpstreamQuery() {
+        upstreamQueries.increment();
+    }
+
+    public void countUpstreamTimeout() {
+        upstreamTimeouts.increment();
+    }
+
+    /***
+     * @param name - The counter's name, in snake case, e.g. answer_cache_hits.
+     * @param counter - Reads the counter's current value.
+     */
+    public void registerCounter(String name, LongSupplier counter) {
+        registeredCounters.put(name, counter);
+    }
+
+    /***
+     * @param name - The gauge's name, in snake case, e.g. forwarders_up.
+     * @param gauge - Reads the gauge's current value.
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        registeredGauges.put(name, gauge);
+    }
+
+    public LatencyHistogram getStageLatency(int stage) {
+        return stageLatencies[stage];
+    }
+
+    public LatencyHistogram getIterationsPerResolution() {
+        return iterationsPerResolution;
+    }
+
+    /***
+     * Registers these metrics with the platform MBean server, once per process.
+     */
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.printf("Exception occurred while registering the server metrics with JMX. " +
+                    "exception = %s\r\n", e);
+        }
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getBlockedQueries() {
+        return blockedQueries.sum();
+    }
+
+    @Override
+    public long getNxdomainResponses() {
+        return responsesByCode[DNSMessageView.RCODE_NAME_ERROR].sum();
+    }
+
+    @Override
+    public long getServfailResponses() {
+        return responsesByCode[DNSMessageView.RCODE_SERVER_FAILURE].sum();
+    }
+
+    @Override
+    public long getUpstreamQueries() {
+        return upstreamQueries.sum();
+    }
+
+    @Override
+    public long getUpstreamTimeouts() {
+        return upstreamTimeouts.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("queries", getQueries());
+        counters.put("blocked_queries", getBlockedQueries());
+        for (int responseCode = 0; responseCode < responsesByCode.length; responseCode++) {
+            long responses = responsesByCode[responseCode].sum();
+            if (responses != 0) counters.put("responses_" + responseCodeName(responseCode), responses);
+        }
+        counters.put("upstream_queries", getUpstreamQueries());
+        counters.put("upstream_timeouts", getUpstreamTimeouts());
+        registeredCounters.forEach((name, counter) -> counters.put(name, counter.getAsLong()));
+        return counters;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        registeredGauges.forEach((name, gauge) -> gauges.put(name, gauge.getAsLong()));
+        return gauges;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return getLatencyMicros(50);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return getLatencyMicros(99);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP999Micros() {
+        return getLatencyMicros(99.9);
+    }
+
+    @Override
+    public double getIterationsPerResolutionP99() {
+        return iterationsPerResolution.getValueAtPercentile(99);
+    }
+
+    private Map<String, Double> getLatencyMicros(double percentile) {
+        Map<String, Double> latencies = new LinkedHashMap<>();
+        for (int stage = 0; stage < stageLatencies.length; stage++) {
+            latencies.put(STAGE_NAMES[stage], stageLatencies[stage].getValueAtPercentile(percentile) / 1e3);
+        }
+        return latencies;
+    }
+
+    /***
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4). Latencies are summaries in
+     * seconds, with a few quantiles; counters are totals since the server started, and gauges current values.
+     */
+    public void writePrometheus(StringBuilder out) {
+        writeCounterHeader(out, "queries_total", "Well-formed queries received.");
+        writeSample(out, "queries_total", "", getQueries());
+        writeCounterHeader(out, "blocked_queries_total", "Queries answered NXDOMAIN by the blocklist.");
+        writeSample(out, "blocked_queries_total", "", getBlockedQueries());
+        writeCounterHeader(out, "responses_total", "Responses sent to clients, by response code.");
+        for (int responseCode = 0; responseCode < responsesByCode.length; responseCode++) {
+            long responses = responsesByCode[responseCode].sum();
+            if (responses == 0 && responseCode >= RCODE_NAMES.length) continue;
+            writeSample(out, "responses_total", "rcode=\"" + responseCodeName(responseCode) + "\"", responses);
+        }
+        writeCounterHeader(out, "upstream_queries_total", "Queries sent to root and authority servers.");
+        writeSample(out, "upstream_queries_total", "", getUpstreamQueries());
+        writeCounterHeader(out, "upstream_timeouts_total", "Upstream queries that were never answered.");
+        writeSample(out, "upstream_timeouts_total", "", getUpstreamTimeouts());
+        registeredCounters.forEach((name, counter) -> {
+            writeCounterHeader(out, name + "_total", "");
+            writeSample(out, name + "_total", "", counter.getAsLong());
+        });
+        registeredGauges.forEach((name, gauge) -> {
+            writeHeader(out, name, "", "gauge");
+            writeSample(out, name, "", gauge.getAsLong());
+        });
+
+        out.append("# HELP ").append(METRIC_PREFIX).append("stage_latency_seconds ")
+                .append("Time spent in each stage of handling a query.\n");
+        out.append("# TYPE ").append(METRIC_PREFIX).append("stage_latency_seconds summary\n");
+        for (int stage = 0; stage < stageLatencies.length; stage++) {
+            writeSummary(out, "stage_latency_seconds", "stage=\"" + STAGE_NAMES[stage] + "\"",
+                    stageLatencies[stage], NANOS_PER_SECOND);
+        }
+        out.append("# HELP ").append(METRIC_PREFIX).append("resolution_iterations ")
+                .append("Servers asked per iterative resolution.\n");
+        out.append("# TYPE ").append(METRIC_PREFIX).append("resolution_iterations summary\n");
+        writeSummary(out, "resolution_iterations", "", iterationsPerResolution, 1);
+    }
+
+    private static void writeCounterHeader(StringBuilder out, String name, String help) {
+        writeHeader(out, name, help, "counter");
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        if (!help.isEmpty()) out.append("# HELP ").append(METRIC_PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(METRIC_PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, Object value) {
+        out.append(METRIC_PREFIX).append(name);
+        if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+        out.append(' ').append(value).append('\n');
+    }
+
+    /***
+     * @param divisor - What the recorded values are divided by for export, e.g. nanoseconds per second.
+     */
+    private static void writeSummary(StringBuilder out, String name, String labels, LatencyHistogram histogram,
+                                     double divisor) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (int i = 0; i < EXPORTED_PERCENTILES.length; i++) {
+            String quantile = "quantile=\"" + EXPORTED_QUANTILES[i] + "\"";
+            writeSample(out, name, labels + separator + quantile,
+                    histogram.getValueAtPercentile(EXPORTED_PERCENTILES[i]) / divisor);
+        }
+        writeSample(out, name + "_sum", labels, histogram.getSum() / divisor);
+        writeSample(out, name + "_count", labels, histogram.getCount());
+    }
+
+    private static String responseCodeName(int responseCode) {
+        return responseCode < RCODE_NAMES.length ? RCODE_NAMES[responseCode] : "RCODE" + responseCode;
+    }
+}
@@ -0,0 +1,34 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.Map;
+
+/***
+ * What the server's metrics look like over JMX (e.g. in JConsole, under il.ac.idc.cs.sinkhole:type=ServerMetrics).
+ * Latencies are in microseconds, keyed by stage.
+ */
+public interface ServerMetricsMXBean {
+
+    long getQueries();
+
+    long getBlockedQueries();
+
+    long getNxdomainResponses();
+
+    long getServfailResponses();
+
+    long getUpstreamQueries();
+
+    long getUpstreamTimeouts();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    Map<String, Double> getLatencyP50Micros();
+
+    Map<String, Double> getLatencyP99Micros();
+
+    Map<String, Double> getLatencyP999Micros();
+
+    double getIterationsPerResolutionP99();
+}
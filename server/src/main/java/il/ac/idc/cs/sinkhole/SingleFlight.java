@@ -0,0 +1,62 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/***
+ * Coalesces concurrent calls for the same key: the first caller runs the call, and everyone who asks for the
+ * same key while it is running waits for that call's result instead of starting their own.
+ * Nothing is remembered once the call completes; caching the result is the caller's business.
+ * @param <K> - The key calls are coalesced by.
+ * @param <V> - The call's result, shared by every caller, so it should not be mutated.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlightCalls = new ConcurrentHashMap<>();
+    private final LongAdder leaderCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+
+    /***
+     * @return The result of the call, whether this caller ran it or joined one already running.
+     * @throws java.util.concurrent.CompletionException - Wrapping the failure, if a joined call failed.
+     */
+    public V execute(K key, Supplier<V> call) {
+        CompletableFuture<V> ownCall = new CompletableFuture<>();
+        CompletableFuture<V> runningCall = inFlightCalls.putIfAbsent(key, ownCall);
+        if (runningCall != null) {
+            coalescedCount.increment();
+            return runningCall.join();
+        }
+        leaderCount.increment();
+        try {
+            V result = call.get();
+            ownCall.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            ownCall.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightCalls.remove(key, ownCall);
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlightCalls.size();
+    }
+
+    /***
+     * @return How many calls were actually run.
+     */
+    public long getLeaderCount() {
+        return leaderCount.sum();
+    }
+
+    /***
+     * @return How many callers joined a call that was already running.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+}
@@ -0,0 +1,120 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.List;
+
+/***
+ * We differentiate between receiving a block-list flag, and not.
+ * If we do receive an input, we use it to determine which DNS records are to be blocked. It may be a text list,
+ * or one compiled by BlockListCompiler, which is memory-mapped rather than parsed. Either way it is watched and
+ * reloaded in place when it (or its delta file) changes.
+ * A few system properties point the server elsewhere, e.g. at a local test hierarchy:
+ *     -Dsinkhole.port=5300 -Dsinkhole.rootHints=named.root -Dsinkhole.upstreamPort=53
+ * Metrics are registered with JMX, and served to Prometheus on -Dsinkhole.metricsPort=9153 (0 turns that off).
+ * Answered queries are logged to a file only when asked to, at a level and sample rate of choice:
+ *     -Dsinkhole.queryLog=queries.log -Dsinkhole.queryLog.level=all|blocked|errors -Dsinkhole.queryLog.sampleRate=100
+ * Popular answers are refreshed ahead of expiry when asked to, within the last percent of their TTL and a budget:
+ *     -Dsinkhole.prefetch=true -Dsinkhole.prefetch.percent=10 -Dsinkhole.prefetch.maxPerSecond=50
+ * The server listens on TCP as well as UDP, on the same port. The UDP payload size it advertises in EDNS0, and
+ * sends at most, is -Dsinkhole.ednsBufferSize=1232 (0 turns EDNS0 off).
+ * UDP may be received by several sockets sharing the port with SO_REUSEPORT, each with its own loop:
+ *     -Dsinkhole.receiveShards=4 (0 for one per available processor; 1, a single socket, is the default)
+ * An upstream query that is slow to answer is hedged to another of the zone's servers, at most this many times
+ * per resolution: -Dsinkhole.hedge.max=2 (0 turns hedging off).
+ * The caches survive restarts when kept in a snapshot file, rewritten every interval and at shutdown:
+ *     -Dsinkhole.cacheSnapshot=cache.snapshot -Dsinkhole.cacheSnapshot.intervalSeconds=300
+ * Instead of resolving from the roots, the server may forward to recursive resolvers, spreading the queries over
+ * the healthy ones: -Dsinkhole.forwarders=192.0.2.1,192.0.2.2:5353,[2001:db8::1]:53
+ */
+public class SinkholeServer {
+
+    public static final int DNS_SERVER_SENT_TO_PORT = 5300;
+    public static final int MAX_IN_FLIGHT_QUERIES = 1024;
+    public static final String LISTEN_PORT_PROPERTY = "sinkhole.port";
+    public static final String ROOT_HINTS_PROPERTY = "sinkhole.rootHints";
+    public static final String UPSTREAM_PORT_PROPERTY = "sinkhole.upstreamPort";
+    public static final String METRICS_PORT_PROPERTY = "sinkhole.metricsPort";
+    public static final String QUERY_LOG_PROPERTY = "sinkhole.queryLog";
+    public static final String QUERY_LOG_LEVEL_PROPERTY = "sinkhole.queryLog.level";
+    public static final String QUERY_LOG_SAMPLE_RATE_PROPERTY = "sinkhole.queryLog.sampleRate";
+    public static final String EDNS_BUFFER_SIZE_PROPERTY = "sinkhole.ednsBufferSize";
+    public static final String RECEIVE_SHARDS_PROPERTY = "sinkhole.receiveShards";
+    public static final String MAX_HEDGES_PROPERTY = "sinkhole.hedge.max";
+    public static final String CACHE_SNAPSHOT_PROPERTY = "sinkhole.cacheSnapshot";
+    public static final String CACHE_SNAPSHOT_INTERVAL_PROPERTY = "sinkhole.cacheSnapshot.intervalSeconds";
+    public static final String FORWARDERS_PROPERTY = "sinkhole.forwarders";
+    public static final String PREFETCH_PROPERTY = "sinkhole.prefetch";
+    public static final String PREFETCH_PERCENT_PROPERTY = "sinkhole.prefetch.percent";
+    public static final String PREFETCH_MAX_PER_SECOND_PROPERTY = "sinkhole.prefetch.maxPerSecond";
+
+    public static void main(String[] args) {
+        String blockListFilePath;
+        BlockListEnforcer blockListEnforcer = new BlockListEnforcer(new DomainTrie());
+
+        if (args.length != 0) {
+            blockListFilePath = args[0];
+            BlockListReloader blockListReloader = new BlockListReloader(blockListEnforcer, Paths.get(blockListFilePath));
+            blockListReloader.reload();
+            try {
+                blockListReloader.start();
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in Sinkhole Server, while watching the blocklist. " +
+                        "It will not be reloaded until restart. exception = %s\r\n", e);
+            }
+        }
+
+        List<InetAddress> rootServerAddresses = RootHints.load(
+                System.getProperty(ROOT_HINTS_PROPERTY, RootHints.DEFAULT_ROOT_HINTS_FILE_PATH));
+        int listenPort = Integer.getInteger(LISTEN_PORT_PROPERTY, DNS_SERVER_SENT_TO_PORT);
+        int upstreamPort = Integer.getInteger(UPSTREAM_PORT_PROPERTY, RecursiveDNSClient.DNS_CLIENT_SENT_TO_PORT);
+
+        IterativeDNSServer server = new IterativeDNSServer(listenPort, blockListEnforcer,
+                MAX_IN_FLIGHT_QUERIES, rootServerAddresses, upstreamPort);
+        server.setEdnsPayloadSize(Integer.getInteger(EDNS_BUFFER_SIZE_PROPERTY, Edns0.DEFAULT_PAYLOAD_SIZE));
+        int receiveShardCount = Integer.getInteger(RECEIVE_SHARDS_PROPERTY, 1);
+        server.setReceiveShardCount(receiveShardCount > 0
+                ? receiveShardCount : Runtime.getRuntime().availableProcessors());
+        server.setMaxHedgesPerResolution(Integer.getInteger(MAX_HEDGES_PROPERTY,
+                RecursiveDNSClient.DEFAULT_MAX_HEDGES_PER_RESOLUTION));
+        String forwarders = System.getProperty(FORWARDERS_PROPERTY);
+        if (forwarders != null) {
+            server.setForwarders(ForwardingResolver.parseForwarders(forwarders));
+        }
+        String cacheSnapshotPath = System.getProperty(CACHE_SNAPSHOT_PROPERTY);
+        if (cacheSnapshotPath != null) {
+            server.setCacheSnapshot(Paths.get(cacheSnapshotPath),
+                    Long.getLong(CACHE_SNAPSHOT_INTERVAL_PROPERTY, CacheSnapshot.DEFAULT_INTERVAL_SECONDS));
+        }
+        server.getMetrics().registerMBean();
+        String queryLogPath = System.getProperty(QUERY_LOG_PROPERTY);
+        if (queryLogPath != null) {
+            try {
+                server.setQueryLog(new QueryLog(Paths.get(queryLogPath),
+                        QueryLog.parseLevel(System.getProperty(QUERY_LOG_LEVEL_PROPERTY, "all")),
+                        Integer.getInteger(QUERY_LOG_SAMPLE_RATE_PROPERTY, 1), QueryLog.DEFAULT_CAPACITY));
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in Sinkhole Server, while opening the query log. " +
+                        "Queries will not be logged. exception = %s\r\n", e);
+            }
+        }
+        if (Boolean.getBoolean(PREFETCH_PROPERTY)) {
+            server.setPrefetcher(new Prefetcher(
+                    Integer.getInteger(PREFETCH_PERCENT_PROPERTY, Prefetcher.DEFAULT_REFRESH_PERCENT),
+                    Prefetcher.DEFAULT_MIN_HITS,
+                    Integer.getInteger(PREFETCH_MAX_PER_SECOND_PROPERTY, Prefetcher.DEFAULT_MAX_PREFETCHES_PER_SECOND),
+                    Prefetcher.DEFAULT_THREAD_COUNT));
+        }
+        int metricsPort = Integer.getInteger(METRICS_PORT_PROPERTY, MetricsHttpServer.DEFAULT_PORT);
+        if (metricsPort > 0) {
+            try {
+                new MetricsHttpServer(server.getMetrics(), metricsPort).start();
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in Sinkhole Server, while starting the metrics endpoint. " +
+                        "Metrics are still available over JMX. exception = %s\r\n", e);
+            }
+        }
+        server.Start();
+    }
+}
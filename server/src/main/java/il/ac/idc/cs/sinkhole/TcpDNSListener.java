@@ -0,0 +1,340 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Answers queries over TCP (RFC 7766), for clients that were told their UDP answer was truncated, and for those
+ * that prefer TCP to begin with. Every message on a connection is prefixed with its length.
+ * One selector thread accepts, reads and writes for all the connections, and never resolves anything itself:
+ * 1.   Connections are persistent, and a client may pipeline queries on one without waiting for the answers.
+ * 2.   Each query is handed to the executor as soon as it is read, so answers go back in whatever order they are
+ *      ready, each carrying its query's transaction ID.
+ * 3.   A connection with too many queries outstanding is not read from until some are answered.
+ * 4.   Connections left idle are closed, as are new ones past the connection limit.
+ */
+public class TcpDNSListener implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 256;
+    public static final int DEFAULT_MAX_PIPELINED_QUERIES = 64;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+    private static final int LENGTH_OF_PREFIX = 2;
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    /***
+     * Answers one query, on an executor thread, handing the response (if any) to the sink before returning.
+     */
+    public interface QueryHandler {
+        void handle(byte[] query, InetSocketAddress client, long receivedAtNanos,
+                    IterativeDNSServer.ResponseSink responseSink);
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Executor queryExecutor;
+    private final QueryHandler queryHandler;
+    private final int maxConnections;
+    private final int maxPipelinedQueries;
+    private final long idleTimeoutNanos;
+    // Connections with responses to write, or reading to resume; handed over to the selector thread.
+    private final ConcurrentLinkedQueue<Connection> changedConnections = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private int connectionCount;
+    private long lastIdleCheckNanos;
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder refusedConnections = new LongAdder();
+    private final LongAdder receivedQueries = new LongAdder();
+    private volatile boolean isRunning = true;
+
+    public TcpDNSListener(int port, Executor queryExecutor, QueryHandler queryHandler) throws IOException {
+        this(port, queryExecutor, queryHandler, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PIPELINED_QUERIES,
+                DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /***
+     * @param maxConnections - How many clients may be connected at once.
+     * @param maxPipelinedQueries - How many queries one connection may have outstanding.
+     * @param idleTimeoutMillis - How long a connection with nothing outstanding is kept open.
+     */
+    public TcpDNSListener(int port, Executor queryExecutor, QueryHandler queryHandler, int maxConnections,
+                          int maxPipelinedQueries, long idleTimeoutMillis) throws IOException {
+        this.queryExecutor = queryExecutor;
+        this.queryHandler = queryHandler;
+        this.maxConnections = maxConnections;
+        this.maxPipelinedQueries = maxPipelinedQueries;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+        selectorThread = new Thread(this::runSelectorLoop, "tcp-dns-listener");
+        selectorThread.setDaemon(true);
+    }
+
+    public void start() {
+        selectorThread.start();
+        System.out.printf("Iterative DNS Server started listening on TCP port %s.\r\n", getPort());
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getAcceptedConnectionCount() {
+        return acceptedConnections.sum();
+    }
+
+    public long getRefusedConnectionCount() {
+        return refusedConnections.sum();
+    }
+
+    public long getReceivedQueryCount() {
+        return receivedQueries.sum();
+    }
+
+    private void runSelectorLoop() {
+        lastIdleCheckNanos = System.nanoTime();
+        while (isRunning) {
+            try {
+                selector.select(IDLE_CHECK_INTERVAL_MILLIS);
+                Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+                while (readyKeys.hasNext()) {
+                    SelectionKey readyKey = readyKeys.next();
+                    readyKeys.remove();
+                    if (!readyKey.isValid()) continue;
+                    if (readyKey.isAcceptable()) {
+                        acceptConnections();
+                        continue;
+                    }
+                    Connection connection = (Connection) readyKey.attachment();
+                    if (readyKey.isReadable()) readQueries(connection);
+                    if (readyKey.isValid() && readyKey.isWritable()) writeResponses(connection);
+                }
+                applyChanges();
+                closeIdleConnections();
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in TCP DNS Listener's selector loop. exception = %s\r\n", e);
+            }
+        }
+    }
+
+    private void acceptConnections() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (connectionCount >= maxConnections) {
+                refusedConnections.increment();
+                channel.close();
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connectionCount++;
+            acceptedConnections.increment();
+        }
+    }
+
+    /***
+     * Reads every complete query the socket has for us, handing each to the executor, until the connection's
+     * pipeline is full.
+     */
+    private void readQueries(Connection connection) {
+        try {
+            while (connection.outstandingQueries.get() < maxPipelinedQueries) {
+                ByteBuffer target = (connection.message == null) ? connection.lengthPrefix : connection.message;
+                int read = connection.channel.read(target);
+                if (read < 0) {
+                    // The client is done asking, but may still be waiting for answers.
+                    connection.isInputShutdown = true;
+                    connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+                    closeIfFinished(connection);
+                    return;
+                }
+                if (read == 0) return;
+                connection.lastActivityNanos = System.nanoTime();
+                if (target.hasRemaining()) continue;
+                if (connection.message == null) {
+                    int messageLength = connection.lengthPrefix.getShort(0) & 0xffff;
+                    connection.lengthPrefix.clear();
+                    if (messageLength < DNSMessageView.LENGTH_OF_HEADER) {
+                        close(connection);
+                        return;
+                    }
+                    connection.message = ByteBuffer.allocate(messageLength);
+                } else {
+                    dispatch(connection, connection.message.array());
+                    connection.message = null;
+                }
+            }
+            // Full; reading resumes once a query finishes.
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void dispatch(Connection connection, byte[] query) {
+        long receivedAtNanos = System.nanoTime();
+        receivedQueries.increment();
+        connection.outstandingQueries.incrementAndGet();
+        InetSocketAddress client = connection.remoteAddress;
+        queryExecutor.execute(() -> {
+            try {
+                queryHandler.handle(query, client, receivedAtNanos, connection);
+            } catch (RuntimeException e) {
+                System.err.printf("Exception occurred in TCP DNS Listener, " +
+                        "while handling a query from %s. exception = %s\r\n", client, e);
+            } finally {
+                connection.outstandingQueries.decrementAndGet();
+                markChanged(connection);
+            }
+        });
+    }
+
+    private void markChanged(Connection connection) {
+        changedConnections.add(connection);
+        selector.wakeup();
+    }
+
+    /***
+     * Picks up what query threads left for us: responses to write, and room in a full pipeline.
+     */
+    private void applyChanges() {
+        Connection connection;
+        while ((connection = changedConnections.poll()) != null) {
+            SelectionKey key = connection.key;
+            if (!key.isValid()) continue;
+            int interestOps = key.interestOps();
+            if (!connection.pendingResponses.isEmpty()) interestOps |= SelectionKey.OP_WRITE;
+            if (!connection.isInputShutdown && connection.outstandingQueries.get() < maxPipelinedQueries) {
+                interestOps |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interestOps);
+            closeIfFinished(connection);
+        }
+    }
+
+    private void writeResponses(Connection connection) {
+        try {
+            while (true) {
+                if (connection.response == null) connection.response = connection.pendingResponses.poll();
+                if (connection.response == null) break;
+                connection.channel.write(connection.response);
+                // The socket buffer is full; wait until it drains.
+                if (connection.response.hasRemaining()) return;
+                connection.response = null;
+                connection.lastActivityNanos = System.nanoTime();
+            }
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfFinished(connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    private void closeIfFinished(Connection connection) {
+        if (connection.isInputShutdown && connection.isIdle()) close(connection);
+    }
+
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        if (now - lastIdleCheckNanos < TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_INTERVAL_MILLIS)) return;
+        lastIdleCheckNanos = now;
+        for (SelectionKey key : selector.keys()) {
+            if (!(key.attachment() instanceof Connection)) continue;
+            Connection connection = (Connection) key.attachment();
+            if (connection.isIdle() && now - connection.lastActivityNanos > idleTimeoutNanos) close(connection);
+        }
+    }
+
+    private void close(Connection connection) {
+        if (!connection.key.isValid()) return;
+        connection.key.cancel();
+        connectionCount--;
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        isRunning = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(IDLE_CHECK_INTERVAL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /***
+     * A client's connection. Its buffers belong to the selector thread; query threads only queue responses.
+     */
+    private static final class Connection implements IterativeDNSServer.ResponseSink {
+        private final SocketChannel channel;
+        private final InetSocketAddress remoteAddress;
+        private SelectionKey key;
+        private final ByteBuffer lengthPrefix = ByteBuffer.allocate(LENGTH_OF_PREFIX);
+        private ByteBuffer message;
+        private ByteBuffer response;
+        private final ConcurrentLinkedQueue<ByteBuffer> pendingResponses = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outstandingQueries = new AtomicInteger();
+        private boolean isInputShutdown;
+        private long lastActivityNanos = System.nanoTime();
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        }
+
+        /***
+         * Queues the response behind its length; the selector thread is told once the query finishes.
+         */
+        @Override
+        public void send(DatagramPacket responsePacket) {
+            int length = responsePacket.getLength();
+            ByteBuffer framedResponse = ByteBuffer.allocate(LENGTH_OF_PREFIX + length);
+            framedResponse.putShort((short) length);
+            framedResponse.put(responsePacket.getData(), responsePacket.getOffset(), length);
+            framedResponse.flip();
+            pendingResponses.add(framedResponse);
+        }
+
+        @Override
+        public int getMaxResponseSize(int requestorPayloadSize) {
+            return Edns0.MAX_PAYLOAD_SIZE;
+        }
+
+        private boolean isIdle() {
+            return outstandingQueries.get() == 0 && response == null && pendingResponses.isEmpty();
+        }
+    }
+}
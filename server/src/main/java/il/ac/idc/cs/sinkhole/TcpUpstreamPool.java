@@ -0,0 +1,194 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Asks upstream servers over TCP, for replies that came back truncated over UDP (RFC 7766).
+ * Connections are kept open after use, a few per server, so the next truncated reply from the same server does
+ * not pay for another handshake. A server may close an idle connection at any time; a pooled connection that
+ * turns out to be closed is dropped, and the query is asked again on a fresh one.
+ * Each connection carries one query at a time, on the caller's thread, so it blocks until the reply is read.
+ */
+public class TcpUpstreamPool implements Closeable {
+
+    public static final int DEFAULT_MAX_IDLE_PER_SERVER = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 2000;
+    private static final int LENGTH_OF_PREFIX = 2;
+
+    private final int maxIdlePerServer;
+    private final long idleTimeoutNanos;
+    private final int timeoutMillis;
+    private final ConcurrentHashMap<InetSocketAddress, Deque<PooledConnection>> idleConnections =
+            new ConcurrentHashMap<>();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder openedConnections = new LongAdder();
+    private volatile boolean isClosed;
+
+    public TcpUpstreamPool() {
+        this(DEFAULT_MAX_IDLE_PER_SERVER, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /***
+     * @param maxIdlePerServer - How many connections to each server are kept open between queries.
+     * @param idleTimeoutMillis - How long a connection may sit unused before it is closed instead of reused.
+     * @param timeoutMillis - How long connecting, and then waiting for a reply, may each take.
+     */
+    public TcpUpstreamPool(int maxIdlePerServer, long idleTimeoutMillis, int timeoutMillis) {
+        this.maxIdlePerServer = maxIdlePerServer;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    public long getOpenedConnectionCount() {
+        return openedConnections.sum();
+    }
+
+    /***
+     * @param queryData - The raw DNS query, sent as it is.
+     * @param length - The length of the query inside queryData.
+     * @return The reply, whose transaction ID and question match the query's.
+     * @throws IOException - If the server could not be reached, or its reply was malformed or did not match.
+     */
+    public byte[] query(byte[] queryData, int length, InetSocketAddress server) throws IOException {
+        queries.increment();
+        byte[] message = new byte[LENGTH_OF_PREFIX + length];
+        message[0] = (byte) (length >>> 8);
+        message[1] = (byte) length;
+        System.arraycopy(queryData, 0, message, LENGTH_OF_PREFIX, length);
+
+        PooledConnection connection;
+        while ((connection = pollIdle(server)) != null) {
+            try {
+                return exchangeAndRelease(connection, message, server);
+            } catch (SocketTimeoutException e) {
+                connection.close();
+                throw e;
+            } catch (IOException e) {
+                // Most likely closed by the server while idle; a fresh connection settles it.
+                connection.close();
+            }
+        }
+        connection = open(server);
+        try {
+            return exchangeAndRelease(connection, message, server);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private byte[] exchangeAndRelease(PooledConnection connection, byte[] message, InetSocketAddress server)
+            throws IOException {
+        connection.output.write(message);
+        connection.output.flush();
+        int replyLength = connection.input.readUnsignedShort();
+        byte[] reply = new byte[replyLength];
+        connection.input.readFully(reply);
+        if (!isReplyTo(message, reply)) throw new IOException("Mismatched TCP reply from " + server);
+        release(server, connection);
+        return reply;
+    }
+
+    private PooledConnection pollIdle(InetSocketAddress server) {
+        Deque<PooledConnection> connections = idleConnections.get(server);
+        if (connections == null) return null;
+        PooledConnection connection;
+        while ((connection = connections.pollFirst()) != null) {
+            if (System.nanoTime() - connection.idleSinceNanos < idleTimeoutNanos) return connection;
+            connection.close();
+        }
+        return null;
+    }
+
+    private PooledConnection open(InetSocketAddress server) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(server, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        openedConnections.increment();
+        return new PooledConnection(socket);
+    }
+
+    private void release(InetSocketAddress server, PooledConnection connection) {
+        Deque<PooledConnection> connections = idleConnections.computeIfAbsent(server,
+                address -> new ConcurrentLinkedDeque<>());
+        connection.idleSinceNanos = System.nanoTime();
+        // the size is only a bound, so a race past it by a connection or two is harmless
+        if (isClosed || connections.size() >= maxIdlePerServer) {
+            connection.close();
+        } else {
+            connections.addFirst(connection);
+        }
+    }
+
+    /***
+     * Connections are not shared, so the reply must carry the query's own transaction ID and question.
+     */
+    private static boolean isReplyTo(byte[] message, byte[] reply) {
+        int queryLength = message.length - LENGTH_OF_PREFIX;
+        int questionEnd = UpstreamQueryEngine.questionEnd(reply, reply.length);
+        if (questionEnd < 0 || questionEnd > queryLength) return false;
+        if (reply[0] != message[LENGTH_OF_PREFIX] || reply[1] != message[LENGTH_OF_PREFIX + 1]) return false;
+        for (int i = DNSMessageView.LENGTH_OF_HEADER; i < questionEnd; i++) {
+            int sent = message[LENGTH_OF_PREFIX + i] & 0xff;
+            int received = reply[i] & 0xff;
+            if (sent != received && DNSMessageView.toLowerAscii(sent) != DNSMessageView.toLowerAscii(received)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        for (Deque<PooledConnection> connections : idleConnections.values()) {
+            PooledConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static final class PooledConnection {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final OutputStream output;
+        private long idleSinceNanos;
+
+        private PooledConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            input = new DataInputStream(socket.getInputStream());
+            output = socket.getOutputStream();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+}
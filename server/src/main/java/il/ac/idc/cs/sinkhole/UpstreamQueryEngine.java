@@ -0,0 +1,318 @@
+package il.ac.idc.cs.sinkhole;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/***
+ * A non-blocking engine for the queries we send to upstream DNS servers.
+ * A handful of ephemeral-port channels share one selector thread, so any number of queries can be outstanding
+ * without a thread or socket per query. Every query gets a fresh transaction ID, and a reply is only accepted
+ * if its ID, source address, receiving channel and question all match what we sent.
+ * Lost packets are retried and eventually fail the query's future with a TimeoutException.
+ */
+public class UpstreamQueryEngine implements Closeable {
+
+    public static final int DEFAULT_CHANNEL_COUNT = 4;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_RETRIES = 2;
+    private static final int MAX_DNS_MESSAGE_SIZE = 65535;
+    private static final int LENGTH_OF_HEADER = 12;
+    private static final int THRESHOLD_TO_READING_PTR = 192;
+
+    private final DatagramChannel[] channels;
+    private final Selector selector;
+    private final long timeoutMillis;
+    private final int retries;
+    private final ConcurrentHashMap<PendingKey, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<PendingQuery> sendQueue = new ConcurrentLinkedQueue<>();
+    // Only touched by the selector thread.
+    private final PriorityQueue<PendingQuery> deadlines =
+            new PriorityQueue<>((a, b) -> Long.compare(a.deadlineNanos, b.deadlineNanos));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DNS_MESSAGE_SIZE);
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    public UpstreamQueryEngine() throws IOException {
+        this(DEFAULT_CHANNEL_COUNT, DEFAULT_TIMEOUT_MILLIS, DEFAULT_RETRIES);
+    }
+
+    public UpstreamQueryEngine(int channelCount, long timeoutMillis, int retries) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        selector = Selector.open();
+        channels = new DatagramChannel[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].configureBlocking(false);
+            channels[i].bind(null);
+            channels[i].register(selector, SelectionKey.OP_READ, i);
+        }
+        selectorThread = new Thread(this::runSelectorLoop, "upstream-query-engine");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /***
+     * Queues a query for an upstream server. The caller's buffer is copied, so it may be reused right away.
+     * @param queryData - The raw DNS query, whose transaction ID is replaced on the wire.
+     * @param length - The length of the query inside queryData.
+     * @param server - The upstream server to ask.
+     * @return A future completed with the reply (carrying the query's original transaction ID),
+     * or failed with a TimeoutException once all retries are spent.
+     */
+    public CompletableFuture<byte[]> query(byte[] queryData, int length, InetSocketAddress server) {
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        int questionEnd = questionEnd(queryData, length);
+        if (questionEnd < 0) {
+            reply.completeExceptionally(new IllegalArgumentException("Malformed question in upstream query"));
+            return reply;
+        }
+        byte[] wireQuery = new byte[length];
+        System.arraycopy(queryData, 0, wireQuery, 0, length);
+        int originalId = readUnsignedShort(wireQuery, 0);
+        int channelIndex = ThreadLocalRandom.current().nextInt(channels.length);
+        PendingQuery pendingQuery;
+        PendingKey key;
+        do {
+            int upstreamId = ThreadLocalRandom.current().nextInt(0x10000);
+            key = new PendingKey(upstreamId, server);
+            pendingQuery = new PendingQuery(key, wireQuery, questionEnd, originalId, channelIndex, reply);
+        } while (pendingQueries.putIfAbsent(key, pendingQuery) != null);
+        wireQuery[0] = (byte) (key.transactionId >>> 8);
+        wireQuery[1] = (byte) key.transactionId;
+        sendQueue.add(pendingQuery);
+        selector.wakeup();
+        return reply;
+    }
+
+    public int getPendingQueryCount() {
+        return pendingQueries.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+        for (PendingQuery pendingQuery : pendingQueries.values()) {
+            pendingQuery.reply.completeExceptionally(new IOException("Upstream query engine closed"));
+        }
+        pendingQueries.clear();
+    }
+
+    private void runSelectorLoop() {
+        while (running) {
+            try {
+                selector.select(millisUntilNextDeadline());
+                Iterator<SelectionKey> readyKeys = selector.selectedKeys().iterator();
+                while (readyKeys.hasNext()) {
+                    SelectionKey readyKey = readyKeys.next();
+                    readyKeys.remove();
+                    if (readyKey.isValid() && readyKey.isReadable()) {
+                        receiveReplies((DatagramChannel) readyKey.channel(), (Integer) readyKey.attachment());
+                    }
+                }
+                sendQueuedQueries();
+                expireQueries();
+            } catch (IOException e) {
+                System.err.printf("Exception occurred in Upstream Query Engine's selector loop. exception = %s\r\n", e);
+            }
+        }
+    }
+
+    private long millisUntilNextDeadline() {
+        if (!sendQueue.isEmpty()) return 1;
+        PendingQuery next = deadlines.peek();
+        if (next == null) return 0;
+        long millis = (next.deadlineNanos - System.nanoTime()) / 1_000_000;
+        return Math.max(1, millis);
+    }
+
+    private void sendQueuedQueries() {
+        PendingQuery pendingQuery;
+        while ((pendingQuery = sendQueue.peek()) != null) {
+            if (pendingQuery.reply.isDone()) {
+                // Cancelled by the caller before it reached the wire.
+                pendingQueries.remove(pendingQuery.key, pendingQuery);
+            } else if (!transmit(pendingQuery)) {
+                // The socket buffer is full; try again on the next loop.
+                return;
+            }
+            sendQueue.poll();
+        }
+    }
+
+    private boolean transmit(PendingQuery pendingQuery) {
+        try {
+            int sent = channels[pendingQuery.channelIndex].send(
+                    ByteBuffer.wrap(pendingQuery.wireQuery), pendingQuery.key.server);
+            if (sent == 0) return false;
+        } catch (IOException e) {
+            fail(pendingQuery, e);
+            return true;
+        }
+        pendingQuery.attempts++;
+        pendingQuery.deadlineNanos = System.nanoTime() + timeoutMillis * 1_000_000;
+        deadlines.add(pendingQuery);
+        return true;
+    }
+
+    private void receiveReplies(DatagramChannel channel, int channelIndex) throws IOException {
+        SocketAddress source;
+        while (true) {
+            receiveBuffer.clear();
+            source = channel.receive(receiveBuffer);
+            if (source == null) return;
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < LENGTH_OF_HEADER) continue;
+            int transactionId = ((receiveBuffer.get(0) & 0xff) << 8) | (receiveBuffer.get(1) & 0xff);
+            PendingQuery pendingQuery = pendingQueries.get(new PendingKey(transactionId, (InetSocketAddress) source));
+            if (pendingQuery == null || pendingQuery.channelIndex != channelIndex
+                    || !isSameQuestion(pendingQuery, receiveBuffer)) {
+                // Late, duplicate or spoofed reply.
+                continue;
+            }
+            byte[] replyData = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(replyData);
+            replyData[0] = (byte) (pendingQuery.originalId >>> 8);
+            replyData[1] = (byte) pendingQuery.originalId;
+            // its deadline is left in the queue, where expireQueries() drops it: removing it here would cost a
+            // linear scan of the queue for every reply
+            if (pendingQueries.remove(pendingQuery.key, pendingQuery)) {
+                pendingQuery.reply.complete(replyData);
+            }
+        }
+    }
+
+    private void expireQueries() {
+        long now = System.nanoTime();
+        PendingQuery pendingQuery;
+        while ((pendingQuery = deadlines.peek()) != null && pendingQuery.deadlineNanos - now <= 0) {
+            deadlines.poll();
+            if (pendingQuery.reply.isDone()) {
+                pendingQueries.remove(pendingQuery.key, pendingQuery);
+                continue;
+            }
+            if (pendingQuery.attempts <= retries) {
+                sendQueue.add(pendingQuery);
+            } else {
+                fail(pendingQuery, new TimeoutException("No reply from " + pendingQuery.key.server
+                        + " after " + pendingQuery.attempts + " attempts"));
+            }
+        }
+    }
+
+    private void fail(PendingQuery pendingQuery, Throwable cause) {
+        pendingQueries.remove(pendingQuery.key, pendingQuery);
+        pendingQuery.reply.completeExceptionally(cause);
+    }
+
+    /***
+     * Servers may echo the question with different letter case (0x20 randomization), so letters compare
+     * case-insensitively while everything else must match byte for byte.
+     */
+    private static boolean isSameQuestion(PendingQuery pendingQuery, ByteBuffer reply) {
+        if (reply.remaining() < pendingQuery.questionEnd) return false;
+        for (int i = LENGTH_OF_HEADER; i < pendingQuery.questionEnd; i++) {
+            int sent = pendingQuery.wireQuery[i] & 0xff;
+            int received = reply.get(i) & 0xff;
+            if (sent != received && toLowerAscii(sent) != toLowerAscii(received)) return false;
+        }
+        return true;
+    }
+
+    private static int toLowerAscii(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    /***
+     * @return The index right after the first question's QTYPE and QCLASS, or -1 if it does not fit the data.
+     */
+    static int questionEnd(byte[] data, int length) {
+        if (length < LENGTH_OF_HEADER) return -1;
+        int index = LENGTH_OF_HEADER;
+        while (index < length) {
+            int labelLength = data[index] & 0xff;
+            if (labelLength == 0) {
+                index++;
+                break;
+            }
+            if (labelLength >= THRESHOLD_TO_READING_PTR) {
+                index += 2;
+                break;
+            }
+            index += labelLength + 1;
+        }
+        index += 4;
+        return (index <= length) ? index : -1;
+    }
+
+    private static int readUnsignedShort(byte[] data, int index) {
+        return ((data[index] & 0xff) << 8) | (data[index + 1] & 0xff);
+    }
+
+    private static final class PendingKey {
+        private final int transactionId;
+        private final InetSocketAddress server;
+
+        private PendingKey(int transactionId, InetSocketAddress server) {
+            this.transactionId = transactionId;
+            this.server = server;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PendingKey)) return false;
+            PendingKey other = (PendingKey) o;
+            return transactionId == other.transactionId && server.equals(other.server);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * transactionId + server.hashCode();
+        }
+    }
+
+    private static final class PendingQuery {
+        private final PendingKey key;
+        private final byte[] wireQuery;
+        private final int questionEnd;
+        private final int originalId;
+        private final int channelIndex;
+        private final CompletableFuture<byte[]> reply;
+        private int attempts;
+        private long deadlineNanos;
+
+        private PendingQuery(PendingKey key, byte[] wireQuery, int questionEnd, int originalId,
+                             int channelIndex, CompletableFuture<byte[]> reply) {
+            this.key = key;
+            this.wireQuery = wireQuery;
+            this.questionEnd = questionEnd;
+            this.originalId = originalId;
+            this.channelIndex = channelIndex;
+            this.reply = reply;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package il.ac.idc.cs.sinkhole;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class AnswerCacheTest {
+
+    private static final int TYPE_A = 1;
+    private static final int CLASS_IN = 1;
+
+    @Test
+    void hitCarriesTheRequestsOwnQuestion() {
+        AnswerCache answerCache = new AnswerCache(AnswerCache.DEFAULT_CAPACITY);
+        answerCache.put(new QuestionKey("www.example.com", TYPE_A, CLASS_IN), answer("www.example.com"));
+        DNSPacketHandler request = new DNSPacketHandler(DNSPacketHandler.buildQuery("wWw.ExAmPlE.cOm", TYPE_A));
+
+        byte[] response = answerCache.get(QuestionKey.of(request), request);
+
+        assertNotNull(response);
+        byte[] query = request.getData();
+        assertEquals(request.getTransactionId(),
+                new DNSPacketHandler(new DatagramPacket(response, response.length)).getTransactionId());
+        assertArrayEquals(Arrays.copyOfRange(query, DNSMessageView.LENGTH_OF_HEADER, query.length),
+                Arrays.copyOfRange(response, DNSMessageView.LENGTH_OF_HEADER, query.length));
+    }
+
+    /***
+     * An answer for the name, with a single A record pointing back at the question's name.
+     */
+    private static DNSPacketHandler answer(String name) {
+        byte[] query = DNSPacketHandler.buildQuery(name, TYPE_A).getData().clone();
+        // QR, RD and RA, with one answer record
+        query[2] = (byte) 0x81;
+        query[3] = (byte) 0x80;
+        query[7] = 1;
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(query, 0, query.length);
+        // a pointer to the question's name, then type, class, TTL, and the address
+        response.write(0xc0);
+        response.write(DNSMessageView.LENGTH_OF_HEADER);
+        byte[] record = {0, TYPE_A, 0, CLASS_IN, 0, 0, 1, 44, 0, 4, (byte) 192, 0, 2, 1};
+        response.write(record, 0, record.length);
+        byte[] message = response.toByteArray();
+        return new DNSPacketHandler(new DatagramPacket(message, message.length));
+    }
+}
@@ -0,0 +1,26 @@
+package il.ac.idc.cs.sinkhole;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DelegationCacheTest {
+
+    @Test
+    void acceptsReferralsLeadingDownTowardTheName() {
+        assertTrue(DelegationCache.isDelegationBelow("www.example.com", "", "com"));
+        assertTrue(DelegationCache.isDelegationBelow("www.example.com", "com", "example.com"));
+        assertTrue(DelegationCache.isDelegationBelow("a.b.example.com", "com", "b.example.com"));
+        assertTrue(DelegationCache.isDelegationBelow("WWW.Example.COM", "com", "example.com"));
+    }
+
+    @Test
+    void rejectsReferralsUpwardOrSideways() {
+        assertFalse(DelegationCache.isDelegationBelow("www.example.com", "example.com", "com"));
+        assertFalse(DelegationCache.isDelegationBelow("www.example.com", "example.com", "example.com"));
+        assertFalse(DelegationCache.isDelegationBelow("www.example.com", "example.com", ""));
+        assertFalse(DelegationCache.isDelegationBelow("www.example.com", "example.net", "example.com"));
+        assertFalse(DelegationCache.isDelegationBelow("www.example.com", "com", "other.com"));
+    }
+}
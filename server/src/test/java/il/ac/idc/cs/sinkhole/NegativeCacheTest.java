@@ -0,0 +1,113 @@
+package il.ac.idc.cs.sinkhole;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NegativeCacheTest {
+
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int TYPE_SOA = 6;
+    private static final int CLASS_IN = 1;
+
+    @Test
+    void nameErrorCachedForOneTypeAnswersAnotherWithItsQuestion() {
+        NegativeCache negativeCache = new NegativeCache(NegativeCache.DEFAULT_CAPACITY);
+        negativeCache.put(new QuestionKey("nx.example.com", TYPE_A, CLASS_IN),
+                nameError("nx.example.com", TYPE_A, "example.com"));
+
+        assertAnswersWithItsQuestion(negativeCache, packetHandler(DNSPacketHandler.buildQuery("nx.example.com", TYPE_AAAA)));
+    }
+
+    @Test
+    void restoredNameErrorAnswersAnotherTypeWithItsQuestion() {
+        NegativeCache snapshotted = new NegativeCache(NegativeCache.DEFAULT_CAPACITY);
+        snapshotted.put(new QuestionKey("nx.example.com", TYPE_A, CLASS_IN),
+                nameError("nx.example.com", TYPE_A, "example.com"));
+        NegativeCache restored = new NegativeCache(NegativeCache.DEFAULT_CAPACITY);
+        snapshotted.forEachNameError((name, cachedResponse, expiresAtNanos) ->
+                restored.restoreNameError(name, cachedResponse));
+
+        assertAnswersWithItsQuestion(restored, packetHandler(DNSPacketHandler.buildQuery("nx.example.com", TYPE_AAAA)));
+    }
+
+    @Test
+    void nameErrorWithTheRootSoaIsCached() {
+        NegativeCache negativeCache = new NegativeCache(NegativeCache.DEFAULT_CAPACITY);
+        negativeCache.put(new QuestionKey("foo.invalidtld", TYPE_A, CLASS_IN),
+                nameError("foo.invalidtld", TYPE_A, ""));
+        DNSPacketHandler request = packetHandler(DNSPacketHandler.buildQuery("foo.invalidtld", TYPE_A));
+
+        byte[] response = negativeCache.get(QuestionKey.of(request), request);
+
+        assertNotNull(response);
+        DNSPacketHandler responseHandler = packetHandler(new DatagramPacket(response, response.length));
+        assertEquals(request.getTransactionId(), responseHandler.getTransactionId());
+        assertTrue(responseHandler.isNameError());
+    }
+
+    private static void assertAnswersWithItsQuestion(NegativeCache negativeCache, DNSPacketHandler request) {
+        byte[] response = negativeCache.get(QuestionKey.of(request), request);
+
+        assertNotNull(response);
+        DNSPacketHandler responseHandler = packetHandler(new DatagramPacket(response, response.length));
+        assertEquals(request.getTransactionId(), responseHandler.getTransactionId());
+        assertEquals(TYPE_AAAA, responseHandler.getQType());
+        assertEquals("nx.example.com", responseHandler.getQDomainName());
+        assertTrue(responseHandler.isNameError());
+    }
+
+    private static DNSPacketHandler packetHandler(DatagramPacket packet) {
+        return new DNSPacketHandler(packet);
+    }
+
+    /***
+     * An NXDOMAIN for the name, with the SOA of the zone ("" for the root) in its authority section.
+     */
+    private static DNSPacketHandler nameError(String name, int type, String soaZone) {
+        byte[] query = DNSPacketHandler.buildQuery(name, type).getData().clone();
+        // QR, RD, RA and NXDOMAIN, with one authority record
+        query[2] = (byte) 0x81;
+        query[3] = (byte) 0x83;
+        query[9] = 1;
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        response.write(query, 0, query.length);
+        writeName(response, soaZone);
+        writeShort(response, TYPE_SOA);
+        writeShort(response, CLASS_IN);
+        writeInt(response, 300);
+        writeShort(response, 22);
+        // root MNAME and RNAME, then serial, refresh, retry, expire and minimum
+        response.write(0);
+        response.write(0);
+        for (int i = 0; i < 5; i++) {
+            writeInt(response, 300);
+        }
+        byte[] message = response.toByteArray();
+        return packetHandler(new DatagramPacket(message, message.length));
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        for (String label : name.isEmpty() ? new String[0] : name.split("\\.")) {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+}